@@ -0,0 +1,195 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+/**
+ * {@link MemoryTileCache} that adapts its size to the display and to the heap:
+ * <ul>
+ * <li>the size never drops below the number of visible tiles reported by the
+ * {@link JMapViewer} times a working set factor, so panning around does not
+ * thrash the cache on large displays,</li>
+ * <li>when the cache is full, it grows instead of evicting as long as the heap
+ * has enough headroom,</li>
+ * <li>when a heap {@link MemoryPoolMXBean} crosses its usage threshold, the
+ * cache is shrunk to half of its tiles, but not below the visible tiles.</li>
+ * </ul>
+ * The memory notifications hold the cache weakly, a cache that is no longer
+ * used is garbage collected without being closed. Call {@link #close()} to
+ * unregister from the notifications right away.
+ */
+public class AdaptiveMemoryTileCache extends MemoryTileCache implements NotificationListener {
+
+    /**
+     * Usage of a heap pool, relative to its maximum, at which the cache shrinks
+     */
+    public static final double SHRINK_THRESHOLD = 0.85;
+
+    /**
+     * Usage of a heap pool, relative to its maximum, up to which the cache may grow
+     */
+    public static final double GROW_LIMIT = 0.6;
+
+    private static final int MIN_GROWTH = 16;
+
+    /** memory of a decoded 256x256 ARGB tile */
+    private static final long TILE_BYTES = 256 * 256 * 4L;
+
+    /** listeners of caches that have been garbage collected */
+    private static final ReferenceQueue<AdaptiveMemoryTileCache> COLLECTED = new ReferenceQueue<>();
+
+    private final double workingSetFactor;
+    private final int maxCacheSize;
+    private final List<MemoryPoolMXBean> pools = new ArrayList<>();
+    private int visibleTileCount;
+    private final CacheListener listener;
+
+    /**
+     * Constructs a new {@code AdaptiveMemoryTileCache} with a working set
+     * factor of 3, which may grow to tiles using a quarter of the heap.
+     */
+    public AdaptiveMemoryTileCache() {
+        this(3, (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 4 / TILE_BYTES));
+    }
+
+    /**
+     * Constructs a new {@code AdaptiveMemoryTileCache}.
+     * @param workingSetFactor number of tiles to keep per visible tile
+     * @param maxCacheSize maximum number of tiles the cache grows to
+     */
+    public AdaptiveMemoryTileCache(double workingSetFactor, int maxCacheSize) {
+        super(Math.min(200, maxCacheSize));
+        this.workingSetFactor = workingSetFactor;
+        this.maxCacheSize = maxCacheSize;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            long max = pool.getUsage().getMax();
+            if (pool.getType() != MemoryType.HEAP || !pool.isUsageThresholdSupported() || max <= 0)
+                continue;
+            // leave thresholds configured by the application alone
+            if (pool.getUsageThreshold() == 0) {
+                pool.setUsageThreshold((long) (max * SHRINK_THRESHOLD));
+            }
+            if (pool.isCollectionUsageThresholdSupported() && pool.getCollectionUsageThreshold() == 0) {
+                pool.setCollectionUsageThreshold((long) (max * SHRINK_THRESHOLD));
+            }
+            pools.add(pool);
+        }
+        CacheListener collected;
+        while ((collected = (CacheListener) COLLECTED.poll()) != null) {
+            collected.unregister();
+        }
+        listener = new CacheListener(this);
+        ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(listener, null, null);
+    }
+
+    /**
+     * Sets the size of the cache to at least the visible tiles times the working set factor.
+     */
+    @Override
+    public synchronized void setVisibleTileCount(int count) {
+        visibleTileCount = count;
+        int baseline = (int) Math.min(maxCacheSize, Math.ceil(count * workingSetFactor));
+        if (cacheSize < baseline) {
+            cacheSize = baseline;
+        }
+    }
+
+    @Override
+    public synchronized void addTile(Tile tile) {
+        if (getTileCount() >= cacheSize && cacheSize < maxCacheSize && hasHeadroom()) {
+            cacheSize = (int) Math.min(maxCacheSize, cacheSize + Math.max(MIN_GROWTH, cacheSize / 4L));
+        }
+        super.addTile(tile);
+    }
+
+    /**
+     * Determines whether the heap has enough headroom for the cache to grow.
+     * @return {@code true} if no heap pool is used above {@link #GROW_LIMIT}
+     */
+    protected boolean hasHeadroom() {
+        if (pools.isEmpty()) {
+            Runtime runtime = Runtime.getRuntime();
+            return runtime.totalMemory() - runtime.freeMemory() <= runtime.maxMemory() * GROW_LIMIT;
+        }
+        for (MemoryPoolMXBean pool : pools) {
+            MemoryUsage usage = pool.getUsage();
+            if (usage.getMax() > 0 && usage.getUsed() > usage.getMax() * GROW_LIMIT)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Shrinks the cache to half of its tiles, but not below the visible tiles.
+     */
+    protected synchronized void shrink() {
+        int size = Math.max(visibleTileCount, Math.max(1, getTileCount() / 2));
+        if (size < cacheSize) {
+            log.fine(() -> "Heap usage threshold exceeded, shrinking tile cache from " + cacheSize + " to " + size + " tiles");
+            setCacheSize(size);
+        }
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        String type = notification.getType();
+        if (MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED.equals(type)
+                || MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(type)) {
+            shrink();
+        }
+    }
+
+    /**
+     * @return maximum number of tiles the cache grows to
+     */
+    public int getMaxCacheSize() {
+        return maxCacheSize;
+    }
+
+    /**
+     * Unregisters this cache from the memory notifications of the JVM.
+     */
+    public void close() {
+        listener.unregister();
+    }
+
+    /**
+     * Forwards the memory notifications to a cache, as long as the cache is used.
+     */
+    private static final class CacheListener extends WeakReference<AdaptiveMemoryTileCache> implements NotificationListener {
+        CacheListener(AdaptiveMemoryTileCache cache) {
+            super(cache, COLLECTED);
+        }
+
+        @Override
+        public void handleNotification(Notification notification, Object handback) {
+            AdaptiveMemoryTileCache cache = get();
+            if (cache != null) {
+                cache.handleNotification(notification, handback);
+            } else {
+                unregister();
+            }
+        }
+
+        void unregister() {
+            try {
+                ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).removeNotificationListener(this);
+            } catch (ListenerNotFoundException e) {
+                log.fine(e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer;
+
+import org.openstreetmap.gui.jmapviewer.interfaces.TileSource;
+
+/**
+ * A bounding box and a range of zoom levels whose tiles are never evicted
+ * from a {@link MemoryTileCache}.
+ *
+ * @see MemoryTileCache#addAreaOfInterest(AreaOfInterest)
+ */
+public class AreaOfInterest {
+
+    private final double minLat;
+    private final double minLon;
+    private final double maxLat;
+    private final double maxLon;
+    private final int minZoom;
+    private final int maxZoom;
+
+    /**
+     * Constructs a new {@code AreaOfInterest}.
+     * @param minLat southern border
+     * @param minLon western border
+     * @param maxLat northern border
+     * @param maxLon eastern border
+     * @param minZoom lowest zoom level, inclusive
+     * @param maxZoom highest zoom level, inclusive
+     */
+    public AreaOfInterest(double minLat, double minLon, double maxLat, double maxLon, int minZoom, int maxZoom) {
+        this.minLat = Math.min(minLat, maxLat);
+        this.minLon = Math.min(minLon, maxLon);
+        this.maxLat = Math.max(minLat, maxLat);
+        this.maxLon = Math.max(minLon, maxLon);
+        this.minZoom = minZoom;
+        this.maxZoom = maxZoom;
+    }
+
+    /**
+     * Determines whether the tile is within the zoom range and overlaps the bounding box.
+     * @param tile the tile
+     * @return {@code true} if the tile belongs to this area of interest
+     */
+    public boolean contains(Tile tile) {
+        int zoom = tile.getZoom();
+        TileSource source = tile.getSource();
+        if (zoom < minZoom || zoom > maxZoom || source == null)
+            return false;
+        TileXY topLeft = source.latLonToTileXY(maxLat, minLon, zoom);
+        TileXY bottomRight = source.latLonToTileXY(minLat, maxLon, zoom);
+        int x = tile.getXtile();
+        int y = tile.getYtile();
+        return x >= Math.floor(Math.min(topLeft.getX(), bottomRight.getX()))
+            && x <= Math.floor(Math.max(topLeft.getX(), bottomRight.getX()))
+            && y >= Math.floor(Math.min(topLeft.getY(), bottomRight.getY()))
+            && y <= Math.floor(Math.max(topLeft.getY(), bottomRight.getY()));
+    }
+
+    @Override
+    public String toString() {
+        return "AreaOfInterest[" + minLat + ',' + minLon + ',' + maxLat + ',' + maxLon + ", zoom " + minZoom + '-' + maxZoom + ']';
+    }
+}
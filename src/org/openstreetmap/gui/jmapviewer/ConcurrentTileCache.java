@@ -0,0 +1,190 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.openstreetmap.gui.jmapviewer.interfaces.TileCache;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileSource;
+
+/**
+ * {@link TileCache} implementation that can be accessed by the tile loader
+ * threads and the painting thread without serializing on a single monitor.
+ * <p>
+ * Lookups are lock-free and keyed by {@link Tile#getPackedKey()}, like the
+ * other caches. Instead of maintaining an exact LRU order, every entry
+ * carries a "referenced" flag that is set on access, and eviction follows the
+ * CLOCK algorithm: a hand sweeps over the entries, clearing the flag of
+ * referenced entries and removing the first unreferenced one. Added
+ * tiles start out referenced, so they survive at least one sweep. This
+ * approximates LRU while keeping {@link #getTile(TileSource, int, int, int)}
+ * free of any shared writes for tiles that are painted repeatedly.
+ * <p>
+ * The cache may temporarily hold slightly more than {@link #getCacheSize()}
+ * tiles while another thread is evicting.
+ */
+public class ConcurrentTileCache implements TileCache {
+
+    protected final ConcurrentHashMap<Long, CacheEntry> hash;
+
+    /**
+     * Maximum number of tiles
+     */
+    protected volatile int cacheSize;
+
+    /**
+     * Held by the thread that currently advances the clock hand
+     */
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    /**
+     * Clock hand, only accessed while holding {@link #evictionLock}
+     */
+    private Iterator<CacheEntry> clockHand;
+
+    /**
+     * Constructs a new {@code ConcurrentTileCache} holding up to 200 tiles.
+     */
+    public ConcurrentTileCache() {
+        this(200);
+    }
+
+    /**
+     * Constructs a cache updated concurrently by as many threads as there are processors.
+     * @param cacheSize size of the cache
+     */
+    public ConcurrentTileCache(int cacheSize) {
+        this(cacheSize, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructs a new {@code ConcurrentTileCache}.
+     * @param cacheSize size of the cache
+     * @param concurrencyLevel estimated number of concurrently updating threads
+     */
+    public ConcurrentTileCache(int cacheSize, int concurrencyLevel) {
+        this.cacheSize = cacheSize;
+        hash = new ConcurrentHashMap<>(cacheSize, 0.75f, Math.max(1, concurrencyLevel));
+    }
+
+    @Override
+    public Tile getTile(TileSource source, int x, int y, int z) {
+        CacheEntry entry = hash.get(Tile.getPackedKey(source, x, y, z));
+        if (entry == null || !entry.tile.hasSource(source))
+            return null;
+        // avoid the volatile write (and cache line invalidation) for hot tiles
+        if (!entry.referenced) {
+            entry.referenced = true;
+        }
+        return entry.tile;
+    }
+
+    @Override
+    public void addTile(Tile tile) {
+        CacheEntry old = hash.put(tile.getPackedKey(), new CacheEntry(tile));
+        if (old != null) {
+            if (old.tile != tile) {
+                old.tile.releaseImage();
+            }
+        } else if (hash.size() > cacheSize) {
+            removeOldEntries();
+        }
+    }
+
+    /**
+     * Removes tiles until the cache fits into {@link #getCacheSize()}. If another
+     * thread is already evicting, this method returns immediately.
+     */
+    protected void removeOldEntries() {
+        if (!evictionLock.tryLock())
+            return;
+        try {
+            while (hash.size() > cacheSize) {
+                CacheEntry victim = advanceClockHand();
+                if (victim == null)
+                    break;
+                if (hash.remove(victim.tile.getPackedKey(), victim)) {
+                    victim.tile.releaseImage();
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Advances the clock hand to the next unreferenced entry, clearing the
+     * referenced flag of all entries passed on the way.
+     * @return the entry to evict, or {@code null} if the cache is empty
+     */
+    private CacheEntry advanceClockHand() {
+        // two full sweeps are enough: the first one clears all flags
+        int budget = 2 * hash.size() + 1;
+        while (budget-- > 0) {
+            if (clockHand == null || !clockHand.hasNext()) {
+                clockHand = hash.values().iterator();
+                if (!clockHand.hasNext())
+                    return null;
+            }
+            CacheEntry entry = clockHand.next();
+            if (entry.referenced) {
+                entry.referenced = false;
+            } else {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void clear() {
+        Iterator<CacheEntry> it = hash.values().iterator();
+        while (it.hasNext()) {
+            CacheEntry entry = it.next();
+            it.remove();
+            entry.tile.releaseImage();
+        }
+    }
+
+    @Override
+    public int getTileCount() {
+        return hash.size();
+    }
+
+    @Override
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Changes the maximum number of {@link Tile} objects that this cache holds.
+     *
+     * @param cacheSize
+     *            new maximum number of tiles
+     */
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+        if (hash.size() > cacheSize)
+            removeOldEntries();
+    }
+
+    /**
+     * Cache entry holding the {@link Tile} and its CLOCK reference flag.
+     */
+    protected static class CacheEntry {
+        protected final Tile tile;
+        protected volatile boolean referenced;
+
+        protected CacheEntry(Tile tile) {
+            this.tile = tile;
+            // a new tile is about to be painted, the clock hand must not evict it before
+            this.referenced = true;
+        }
+
+        @Override
+        public String toString() {
+            return tile.toString();
+        }
+    }
+}
@@ -0,0 +1,409 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openstreetmap.gui.jmapviewer.interfaces.TileClearController;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileSource;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileStore;
+
+/**
+ * {@link TileStore} implementation that keeps one file per tile below a base
+ * directory, in the layout {@code <source id>-<hash>/<zoom>/<shard>/<x>_<y>.tile}.
+ * Characters of the source id that are not safe in file names are replaced, the
+ * hash of the original id keeps sources apart whose ids differ only in those.
+ * The shard directory spreads the tiles of a zoom level over 256 directories.
+ * <p>
+ * Tiles are written asynchronously by a single background thread; tiles that
+ * are still waiting to be written are served from memory. The total size of
+ * the store is bounded, the least recently used files are deleted first. The
+ * LRU order survives restarts through the modification time of the files.
+ */
+public class DiskTileStore implements TileStore {
+
+    private static final Logger LOG = FeatureAdapter.getLogger(DiskTileStore.class.getName());
+
+    /** "JMVT", marks the start of a tile file */
+    private static final int MAGIC = 0x4A4D5654;
+
+    private static final String SUFFIX = ".tile";
+
+    protected final File baseDir;
+
+    /**
+     * Maximum number of bytes of all tile files
+     */
+    protected long maxBytes;
+
+    /**
+     * Tile files in their last recently used order, with their size
+     */
+    private final LinkedHashMap<File, Long> lruFiles = new LinkedHashMap<>(1024, 0.75f, true);
+
+    private long totalBytes;
+
+    /**
+     * Tiles waiting to be written
+     */
+    private final Map<File, StoredTile> pendingWrites = new ConcurrentHashMap<>();
+
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "DiskTileStore writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Constructs a new {@code DiskTileStore}. Existing tile files below the
+     * base directory are indexed in the background.
+     * @param baseDir directory holding the tile files
+     * @param maxBytes maximum number of bytes of all tile files
+     */
+    public DiskTileStore(File baseDir, long maxBytes) {
+        this.baseDir = baseDir;
+        this.maxBytes = maxBytes;
+        writer.execute(this::indexFiles);
+    }
+
+    /**
+     * Returns the directory holding the tiles of the source.
+     * @param source the tile source
+     * @return directory of the source
+     */
+    protected File getSourceDir(TileSource source) {
+        String id = source.getId();
+        return new File(baseDir, id.replaceAll("[^A-Za-z0-9._-]", "_") + '-' + String.format("%08x", id.hashCode()));
+    }
+
+    /**
+     * Returns the file holding the tile.
+     * @param tile the tile
+     * @return file of the tile
+     */
+    protected File getFile(Tile tile) {
+        int x = tile.getXtile();
+        int y = tile.getYtile();
+        int shard = ((x * 31) ^ y) & 0xff;
+        return new File(getSourceDir(tile.getSource()),
+                tile.getZoom() + File.separator + (shard < 16 ? "0" : "") + Integer.toHexString(shard)
+                + File.separator + x + '_' + y + SUFFIX);
+    }
+
+    @Override
+    public boolean load(Tile tile) throws IOException {
+        File file = getFile(tile);
+        StoredTile stored = pendingWrites.get(file);
+        if (stored == null) {
+            try {
+                stored = read(file);
+            } catch (NoSuchFileException e) {
+                return false;
+            }
+            if (stored == null) {
+                LOG.log(Level.WARNING, "Deleting corrupt tile file {0}", file);
+                delete(file);
+                return false;
+            }
+            synchronized (lruFiles) {
+                lruFiles.get(file);
+            }
+            if (!file.setLastModified(System.currentTimeMillis())) {
+                LOG.log(Level.FINE, "Cannot touch tile file {0}", file);
+            }
+        }
+        tile.getMetadata().putAll(stored.metadata);
+        tile.loadImage(stored.data);
+        return true;
+    }
+
+    @Override
+    public void store(Tile tile) {
+        ByteBuffer data = tile.getEncodedData();
+        if (data == null)
+            return;
+        File file = getFile(tile);
+        StoredTile stored = new StoredTile(data, new HashMap<>(tile.getMetadata()));
+        if (pendingWrites.put(file, stored) == null) {
+            try {
+                writer.execute(() -> writePending(file));
+            } catch (RejectedExecutionException e) {
+                pendingWrites.remove(file, stored);
+                LOG.log(Level.FINE, "Not storing tile {0}, the tile store has been closed", tile.getKey());
+            }
+        }
+    }
+
+    private void writePending(File file) {
+        StoredTile stored;
+        // the tile may have been replaced while it has been written, then write it again
+        while ((stored = pendingWrites.get(file)) != null) {
+            try {
+                write(file, stored);
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Failed writing tile file " + file, e);
+                pendingWrites.remove(file, stored);
+                return;
+            }
+            if (pendingWrites.remove(file, stored))
+                return;
+        }
+    }
+
+    /**
+     * Reads a tile file.
+     * @param file the tile file
+     * @return the stored tile, or {@code null} if the file is corrupt
+     * @throws IOException if an I/O error occurs
+     */
+    protected StoredTile read(File file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            if (bytes.length < 10 || in.readInt() != MAGIC)
+                return null;
+            int count = in.readUnsignedShort();
+            Map<String, String> metadata = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                metadata.put(in.readUTF(), in.readUTF());
+            }
+            int length = in.readInt();
+            int offset = bytes.length - in.available();
+            if (length != in.available())
+                return null;
+            return new StoredTile(ByteBuffer.wrap(bytes, offset, length).slice(), metadata);
+        }
+    }
+
+    /**
+     * Writes a tile file, replacing the previous file of the tile.
+     * @param file the tile file
+     * @param stored the tile to write
+     * @throws IOException if an I/O error occurs
+     */
+    protected void write(File file, StoredTile stored) throws IOException {
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+            throw new IOException("Cannot create directory " + dir);
+        ByteArrayOutputStream header = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(header)) {
+            out.writeInt(MAGIC);
+            out.writeShort(stored.metadata.size());
+            for (Entry<String, String> e : stored.metadata.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeUTF(e.getValue());
+            }
+            out.writeInt(stored.data.remaining());
+        }
+        File tmp = new File(dir, file.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp); FileChannel channel = out.getChannel()) {
+            ByteBuffer[] buffers = {ByteBuffer.wrap(header.toByteArray()), stored.data.duplicate()};
+            while (buffers[1].hasRemaining()) {
+                channel.write(buffers);
+            }
+        }
+        long size = tmp.length();
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        synchronized (lruFiles) {
+            Long old = lruFiles.put(file, size);
+            totalBytes += size - (old == null ? 0 : old);
+        }
+        removeOldFiles();
+    }
+
+    /**
+     * Deletes the least recently used tile files until the store fits into {@link #getMaxBytes()}.
+     */
+    protected void removeOldFiles() {
+        List<File> victims = new ArrayList<>();
+        synchronized (lruFiles) {
+            Iterator<Entry<File, Long>> it = lruFiles.entrySet().iterator();
+            while (totalBytes > maxBytes && it.hasNext()) {
+                Entry<File, Long> eldest = it.next();
+                totalBytes -= eldest.getValue();
+                victims.add(eldest.getKey());
+                it.remove();
+            }
+        }
+        for (File victim : victims) {
+            if (!pendingWrites.containsKey(victim) && !victim.delete() && victim.exists()) {
+                LOG.log(Level.WARNING, "Cannot delete tile file {0}", victim);
+            }
+        }
+    }
+
+    private void delete(File file) {
+        synchronized (lruFiles) {
+            Long size = lruFiles.remove(file);
+            if (size != null) {
+                totalBytes -= size;
+            }
+        }
+        if (!file.delete() && file.exists()) {
+            LOG.log(Level.WARNING, "Cannot delete tile file {0}", file);
+        }
+    }
+
+    /**
+     * Builds the LRU index from the tile files found below the base directory.
+     */
+    private void indexFiles() {
+        List<File> files = new ArrayList<>();
+        collectFiles(baseDir, files);
+        Map<File, Long> modified = new HashMap<>();
+        for (File file : files) {
+            modified.put(file, file.lastModified());
+        }
+        files.sort((a, b) -> Long.compare(modified.get(a), modified.get(b)));
+        synchronized (lruFiles) {
+            for (File file : files) {
+                if (!lruFiles.containsKey(file)) {
+                    long size = file.length();
+                    lruFiles.put(file, size);
+                    totalBytes += size;
+                }
+            }
+        }
+        removeOldFiles();
+    }
+
+    private static void collectFiles(File dir, List<File> files) {
+        File[] children = dir.listFiles();
+        if (children == null)
+            return;
+        for (File child : children) {
+            if (child.isDirectory()) {
+                collectFiles(child, files);
+            } else if (child.getName().endsWith(SUFFIX)) {
+                files.add(child);
+            }
+        }
+    }
+
+    /**
+     * Removes all tile files of the source. This method blocks until all files are deleted,
+     * it should not be called on the event dispatch thread.
+     */
+    @Override
+    public void clear(TileSource source, TileClearController controller) {
+        File dir = getSourceDir(source);
+        String prefix = dir.getPath() + File.separator;
+        pendingWrites.keySet().removeIf(f -> f.getPath().startsWith(prefix));
+        List<File> files = new ArrayList<>();
+        collectFiles(dir, files);
+        if (controller != null) {
+            controller.initClearDir(dir);
+            controller.initClearFiles(files.toArray(new File[0]));
+        }
+        try {
+            for (File file : files) {
+                if (controller != null && controller.cancel())
+                    return;
+                delete(file);
+                if (controller != null) {
+                    controller.fileDeleted(file);
+                }
+            }
+            deleteEmptyDirs(dir);
+        } finally {
+            if (controller != null) {
+                controller.clearFinished();
+            }
+        }
+    }
+
+    private static void deleteEmptyDirs(File dir) {
+        File[] children = dir.listFiles();
+        if (children == null)
+            return;
+        for (File child : children) {
+            if (child.isDirectory()) {
+                deleteEmptyDirs(child);
+            }
+        }
+        // fails for directories that are not empty
+        dir.delete();
+    }
+
+    /**
+     * Waits until all pending tiles are written and stops the background writer.
+     * Tiles that have not been written within the timeout are lost, which is logged.
+     * Tiles stored afterwards are ignored.
+     * @param timeoutMillis maximum time to wait in milliseconds
+     * @return {@code true} if all pending tiles have been written
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean close(long timeoutMillis) throws InterruptedException {
+        writer.shutdown();
+        if (writer.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS))
+            return true;
+        LOG.log(Level.WARNING, "Closed tile store {0} before writing {1} pending tiles",
+                new Object[] {baseDir, pendingWrites.size()});
+        return false;
+    }
+
+    /**
+     * @return number of bytes of all indexed tile files
+     */
+    public long getTotalBytes() {
+        synchronized (lruFiles) {
+            return totalBytes;
+        }
+    }
+
+    /**
+     * @return maximum number of bytes of all tile files
+     */
+    public long getMaxBytes() {
+        synchronized (lruFiles) {
+            return maxBytes;
+        }
+    }
+
+    /**
+     * Changes the maximum number of bytes of all tile files.
+     * @param maxBytes new maximum number of bytes
+     */
+    public void setMaxBytes(long maxBytes) {
+        synchronized (lruFiles) {
+            this.maxBytes = maxBytes;
+        }
+        writer.execute(this::removeOldFiles);
+    }
+
+    /**
+     * Encoded image data and metadata of a stored tile.
+     */
+    protected static class StoredTile {
+        protected final ByteBuffer data;
+        protected final Map<String, String> metadata;
+
+        protected StoredTile(ByteBuffer data, Map<String, String> metadata) {
+            this.data = data;
+            this.metadata = metadata;
+        }
+    }
+}
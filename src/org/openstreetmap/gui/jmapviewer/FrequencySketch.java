@@ -0,0 +1,101 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer;
+
+/**
+ * Count-min sketch estimating how often a tile has been accessed recently,
+ * using four 4 bit counters per key out of a table of 16 counters per cached
+ * tile, so it needs 8 bytes per cached tile regardless of how many distinct
+ * tiles have been seen.
+ * <p>
+ * To let the sketch follow changes of the working set, all counters are
+ * halved once the number of recorded accesses reaches ten times the
+ * capacity. This class is not thread safe.
+ *
+ * @see TinyLfuTileCache
+ */
+public class FrequencySketch {
+
+    private static final long[] SEEDS = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_COUNT = 15;
+
+    /** 16 counters of 4 bits per word */
+    private long[] table;
+    private int sampleSize;
+    private int additions;
+
+    /**
+     * Constructs a new {@code FrequencySketch}.
+     * @param capacity expected number of frequently accessed keys
+     */
+    public FrequencySketch(int capacity) {
+        ensureCapacity(capacity);
+    }
+
+    /**
+     * Grows the sketch for the given number of keys. Growing discards all recorded accesses.
+     * @param capacity expected number of frequently accessed keys
+     */
+    public final void ensureCapacity(int capacity) {
+        int words = 1;
+        while (words < capacity && words < (1 << 26)) {
+            words <<= 1;
+        }
+        if (table != null && table.length >= words)
+            return;
+        table = new long[words];
+        sampleSize = 10 * Math.max(capacity, 1);
+        additions = 0;
+    }
+
+    private int counterIndex(long key, int i) {
+        long h = (key + SEEDS[i]) * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 32;
+        return (int) h & ((table.length << 4) - 1);
+    }
+
+    /**
+     * Returns the estimated number of recent accesses of the key.
+     * @param key the key, e.g. {@link Tile#getPackedKey()}
+     * @return the estimated frequency, between 0 and 15
+     */
+    public int frequency(long key) {
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < SEEDS.length; i++) {
+            int index = counterIndex(key, i);
+            int count = (int) ((table[index >>> 4] >>> ((index & 15) << 2)) & 0xf);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Records an access of the key.
+     * @param key the key, e.g. {@link Tile#getPackedKey()}
+     */
+    public void increment(long key) {
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            int index = counterIndex(key, i);
+            int shift = (index & 15) << 2;
+            if (((table[index >>> 4] >>> shift) & 0xf) < MAX_COUNT) {
+                table[index >>> 4] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Halves all counters, so past accesses count less than new ones.
+     */
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+}
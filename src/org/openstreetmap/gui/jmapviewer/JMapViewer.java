@@ -121,6 +121,9 @@ public class JMapViewer extends JPanel implements TileLoaderListener {
     
     /**
      * Creates a new {@link JMapViewer} instance.
+     * @param tileCache The cache where to store tiles, e.g. a {@link MemoryTileCache} or,
+     *        when many loader threads are in use, a {@link ConcurrentTileCache}
+     * @param useDefaultMapController whether to create a {@link DefaultMapController}
      */
     @SuppressWarnings("unused")
     public JMapViewer(TileCache tileCache, boolean useDefaultMapController) {
@@ -595,6 +598,11 @@ public class JMapViewer extends JPanel implements TileLoaderListener {
         int xMax = getWidth();
         int yMax = getHeight();
 
+        // let the cache size itself to the viewport, the tile cache may have been replaced
+        tileController.getTileCache().setVisibleTileCount((xMax / tilesize + 2) * (yMax / tilesize + 2));
+        // load the tiles queued by the spiral below by their distance from the current centre
+        tileController.setViewport((double) center.x / tilesize, (double) center.y / tilesize, zoom);
+
         // calculate the length of the grid (number of squares per edge)
         int gridLength = 1 << zoom;
 
@@ -635,6 +643,9 @@ public class JMapViewer extends JPanel implements TileLoaderListener {
                 iMove = (iMove + 1) % move.length;
             }
         }
+        // cancel the jobs of tiles which have been scrolled or zoomed out of view
+        tileController.cancelOutside(getVisibleTileRange(tilesize, gridLength));
+
         // outer border of the map
         int mapSize = tilesize << zoom;
         if (scrollWrapEnabled) {
@@ -801,6 +812,30 @@ public class JMapViewer extends JPanel implements TileLoaderListener {
         }
     }
 
+    /**
+     * Returns the tiles painted by {@link #paintComponent(Graphics)}.
+     * @param tilesize size of a tile in pixels
+     * @param gridLength number of tiles per edge of the map at the current zoom level
+     * @return the displayed tiles, with the tile indexes wrapped if scroll wrap is enabled
+     */
+    private TileRange getVisibleTileRange(int tilesize, int gridLength) {
+        int minX = Math.floorDiv(center.x - getWidth() / 2, tilesize);
+        int maxX = Math.floorDiv(center.x - getWidth() / 2 + getWidth(), tilesize);
+        int minY = Math.floorDiv(center.y - getHeight() / 2, tilesize);
+        int maxY = Math.floorDiv(center.y - getHeight() / 2 + getHeight(), tilesize);
+        if (scrollWrapEnabled) {
+            int width = maxX - minX;
+            minX = Math.floorMod(minX, gridLength);
+            maxX = minX + width;
+            if (maxX >= gridLength) {
+                // crosses the antimeridian
+                minX = 0;
+                maxX = gridLength - 1;
+            }
+        }
+        return new TileRange(minX, minY, maxX, maxY, zoom);
+    }
+
     /**
      * Moves the visible map pane.
      *
@@ -810,7 +845,6 @@ public class JMapViewer extends JPanel implements TileLoaderListener {
      *            vertical movement in pixel
      */
     public void moveMap(int x, int y) {
-        tileController.cancelOutstandingJobs(); // Clear outstanding load
         center.x += x;
         center.y += y;
         repaint();
@@ -866,8 +900,6 @@ public class JMapViewer extends JPanel implements TileLoaderListener {
                 || zoom == this.zoom)
             return;
         ICoordinate zoomPos = getPosition(mapPoint);
-        tileController.cancelOutstandingJobs(); // Clearing outstanding load
-        // requests
         setDisplayPosition(mapPoint, zoomPos, zoom);
 
         this.fireJMVEvent(new JMVCommandEvent(COMMAND.ZOOM, this));
@@ -0,0 +1,209 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Hash map with primitive {@code long} keys, using open addressing with
+ * linear probing. Unlike a {@code HashMap<Long, V>} neither lookups nor
+ * updates of existing keys allocate any objects.
+ * <p>
+ * The key {@code 0} is reserved to mark empty slots and must not be used;
+ * the packed tile keys of {@link Tile#getPackedKey()} are never {@code 0}.
+ * This class is not thread safe.
+ *
+ * @param <V> type of the values
+ */
+public class LongHashMap<V> {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private V[] values;
+    private int size;
+    /** number of bits of the hash used as slot index */
+    private int shift;
+
+    /**
+     * Constructs a new {@code LongHashMap}.
+     * @param expectedSize number of entries the map should hold without resizing
+     */
+    public LongHashMap(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2 && capacity < (1 << 30)) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = (V[]) new Object[capacity];
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+    }
+
+    private int slot(long key) {
+        // Fibonacci hashing spreads the packed bit fields over the table
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+    }
+
+    /**
+     * Returns the value mapped to the key.
+     * @param key the key, not {@code 0}
+     * @return the value, or {@code null} if the key is not mapped
+     */
+    public V get(long key) {
+        int mask = keys.length - 1;
+        for (int i = slot(key);; i = (i + 1) & mask) {
+            long k = keys[i];
+            if (k == key)
+                return values[i];
+            if (k == 0)
+                return null;
+        }
+    }
+
+    /**
+     * Maps the key to the value.
+     * @param key the key, not {@code 0}
+     * @param value the value, not {@code null}
+     * @return the previous value of the key, or {@code null}
+     */
+    public V put(long key, V value) {
+        if (key == 0)
+            throw new IllegalArgumentException("Key 0 is reserved");
+        int mask = keys.length - 1;
+        for (int i = slot(key);; i = (i + 1) & mask) {
+            long k = keys[i];
+            if (k == key) {
+                V old = values[i];
+                values[i] = value;
+                return old;
+            }
+            if (k == 0) {
+                keys[i] = key;
+                values[i] = value;
+                if (++size * 2 > keys.length) {
+                    rehash(keys.length << 1);
+                }
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Removes the mapping of the key.
+     * @param key the key
+     * @return the removed value, or {@code null} if the key was not mapped
+     */
+    public V remove(long key) {
+        int mask = keys.length - 1;
+        for (int i = slot(key);; i = (i + 1) & mask) {
+            long k = keys[i];
+            if (k == 0)
+                return null;
+            if (k == key) {
+                V old = values[i];
+                shiftBack(i);
+                size--;
+                return old;
+            }
+        }
+    }
+
+    /**
+     * Closes the gap at slot {@code gap} by moving back entries of the
+     * following probe sequence, so no tombstones are needed.
+     */
+    private void shiftBack(int gap) {
+        int mask = keys.length - 1;
+        for (int i = (gap + 1) & mask;; i = (i + 1) & mask) {
+            long k = keys[i];
+            if (k == 0)
+                break;
+            int home = slot(k);
+            // move the entry if its home slot is not within (gap, i]
+            if (((i - home) & mask) >= ((i - gap) & mask)) {
+                keys[gap] = k;
+                values[gap] = values[i];
+                gap = i;
+            }
+        }
+        keys[gap] = 0;
+        values[gap] = null;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        V[] oldValues = values;
+        allocate(capacity);
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            long k = oldKeys[j];
+            if (k != 0) {
+                int i = slot(k);
+                while (keys[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = k;
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    /**
+     * @return the number of mappings
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Performs the action for each value. The map must not be modified by the action.
+     * @param action the action
+     */
+    public void forEachValue(Consumer<? super V> action) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                action.accept(values[i]);
+            }
+        }
+    }
+
+    /**
+     * Performs the action for each mapping. The map must not be modified by the action.
+     * @param action the action
+     */
+    public void forEachEntry(EntryConsumer<? super V> action) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                action.accept(keys[i], values[i]);
+            }
+        }
+    }
+
+    /**
+     * Removes all mappings.
+     */
+    public void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /**
+     * Action performed on a mapping of a {@code LongHashMap}.
+     * @param <V> type of the values
+     */
+    @FunctionalInterface
+    public interface EntryConsumer<V> {
+        /**
+         * Performs the action on a mapping.
+         * @param key the key
+         * @param value the value
+         */
+        void accept(long key, V value);
+    }
+}
@@ -1,17 +1,30 @@
 // License: GPL. For details, see Readme.txt file.
 package org.openstreetmap.gui.jmapviewer;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Logger;
 
 import org.openstreetmap.gui.jmapviewer.interfaces.TileCache;
 import org.openstreetmap.gui.jmapviewer.interfaces.TileSource;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileWeigher;
 
 /**
  * {@link TileCache} implementation that stores all {@link Tile} objects in
  * memory up to a certain limit ({@link #getCacheSize()}). If the limit is
  * exceeded the least recently used {@link Tile} objects will be deleted.
+ * <p>
+ * Optionally the cache can be bounded by the memory of the tile images
+ * instead ({@link #setMaxBytes(long)}). Tiles are weighed with a
+ * {@link TileWeigher} when they are added and again whenever their image
+ * has changed since the last lookup, e.g. after loading finished.
+ * <p>
+ * Tiles matched by a retention policy are never evicted and do not count
+ * towards the cache size and memory budget: tiles at or below
+ * {@link #setRetainedZoom(int)}, which {@link Tile#loadPlaceholderFromCache(TileCache)}
+ * relies on, and tiles of an {@link AreaOfInterest}. The memory held by
+ * retained tiles is reported by {@link #getPinnedBytes()}.
  *
  * @author Jan Peter Stotz
  */
@@ -24,13 +37,47 @@ public class MemoryTileCache implements TileCache {
      */
     protected int cacheSize;
 
-    protected final Map<String, CacheEntry> hash;
+    /**
+     * Maximum number of bytes held by tile images, 0 if unbounded
+     */
+    protected long maxBytes;
+
+    /**
+     * Number of bytes currently held by the images of tiles that are not pinned
+     */
+    protected long bytesInUse;
+
+    /**
+     * Number of bytes currently held by the images of pinned tiles
+     */
+    protected long pinnedBytes;
+
+    /**
+     * Tiles at or below this zoom level are pinned, -1 if none
+     */
+    protected int retainedZoom = -1;
+
+    protected final List<AreaOfInterest> areasOfInterest = new ArrayList<>();
+
+    protected final TileWeigher weigher;
+
+    protected final TileCacheStats stats = new TileCacheStats(this::getBytesInUse);
+
+    /**
+     * Entries by {@link Tile#getPackedKey()}, so lookups do not allocate
+     */
+    protected final LongHashMap<CacheEntry> hash;
 
     /**
      * List of all tiles in their last recently used order
      */
     protected final CacheLinkedListElement lruTiles;
 
+    /**
+     * Tiles matched by a retention policy, never evicted
+     */
+    protected final CacheLinkedListElement pinnedTiles = new CacheLinkedListElement();
+
     /**
      * Constructs a new {@code MemoryTileCache}.
      */
@@ -43,32 +90,181 @@ public class MemoryTileCache implements TileCache {
      * @param cacheSize size of the cache
      */
     public MemoryTileCache(int cacheSize) {
+        this(cacheSize, 0, TileWeigher.RASTER_BYTES);
+    }
+
+    /**
+     * Constructs a new {@code MemoryTileCache} that is bounded by the memory
+     * held by the tile images, and not by the number of tiles.
+     * @param maxBytes maximum number of bytes held by tile images
+     * @param weigher computes the number of bytes held by a tile
+     */
+    public MemoryTileCache(long maxBytes, TileWeigher weigher) {
+        this(Integer.MAX_VALUE, maxBytes, weigher);
+    }
+
+    /**
+     * Constructs a new {@code MemoryTileCache}.
+     * @param cacheSize maximum number of tiles
+     * @param maxBytes maximum number of bytes held by tile images, 0 if unbounded
+     * @param weigher computes the number of bytes held by a tile
+     */
+    public MemoryTileCache(int cacheSize, long maxBytes, TileWeigher weigher) {
         this.cacheSize = cacheSize;
-        hash = new HashMap<>(cacheSize);
+        this.maxBytes = maxBytes;
+        this.weigher = weigher;
+        hash = new LongHashMap<>(Math.min(cacheSize, 1024));
         lruTiles = new CacheLinkedListElement();
     }
 
     @Override
     public synchronized void addTile(Tile tile) {
         CacheEntry entry = createCacheEntry(tile);
-        if (hash.put(tile.getKey(), entry) == null) {
+        entry.pinned = isRetained(tile);
+        CacheEntry old = hash.put(tile.getPackedKey(), entry);
+        if (old == null) {
             // only if hash hadn't had the element, add it to LRU
-            lruTiles.addFirst(entry);
-            if (hash.size() > cacheSize || lruTiles.getElementCount() > cacheSize) {
-                removeOldEntries();
+            listOf(entry).addFirst(entry);
+            stats.recordLoad();
+        } else {
+            // keep the LRU position of the replaced element
+            listOf(old).replaceEntry(old, entry);
+            entry.pinned = old.pinned;
+            addWeight(old, -old.weight);
+            if (old.tile != tile) {
+                old.tile.releaseImage();
             }
         }
+        updateWeight(entry);
+        if (lruTiles.getElementCount() > cacheSize || isOverBudget()) {
+            removeOldEntries();
+        }
     }
 
     @Override
     public synchronized Tile getTile(TileSource source, int x, int y, int z) {
-        CacheEntry entry = hash.get(Tile.getTileKey(source, x, y, z));
-        if (entry == null)
+        CacheEntry entry = hash.get(Tile.getPackedKey(source, x, y, z));
+        if (entry == null || !entry.tile.hasSource(source)) {
+            stats.recordMiss();
             return null;
-        lruTiles.moveElementToFirstPos(entry);
+        }
+        stats.recordHit();
+        if (!entry.pinned) {
+            lruTiles.moveElementToFirstPos(entry);
+        }
+        if (entry.tile.getImage() != entry.weighedImage && updateWeight(entry) && isOverBudget()) {
+            removeOldEntries();
+        }
         return entry.tile;
     }
 
+    /**
+     * Weighs the tile of the entry again and updates {@link #bytesInUse} or {@link #pinnedBytes}.
+     * @param entry the entry
+     * @return {@code true} if the weight of the entry has grown
+     */
+    protected boolean updateWeight(CacheEntry entry) {
+        long weight = weigher.weigh(entry.tile);
+        long delta = weight - entry.weight;
+        entry.weighedImage = entry.tile.getImage();
+        entry.weight = weight;
+        addWeight(entry, delta);
+        return delta > 0 && !entry.pinned;
+    }
+
+    private void addWeight(CacheEntry entry, long delta) {
+        if (entry.pinned) {
+            pinnedBytes += delta;
+        } else {
+            bytesInUse += delta;
+        }
+    }
+
+    private CacheLinkedListElement listOf(CacheEntry entry) {
+        return entry.pinned ? pinnedTiles : lruTiles;
+    }
+
+    /**
+     * Determines whether the tile is matched by a retention policy and must not be evicted.
+     * @param tile the tile
+     * @return {@code true} if the tile is at or below the retained zoom level or in an area of interest
+     */
+    protected boolean isRetained(Tile tile) {
+        if (tile.getZoom() <= retainedZoom)
+            return true;
+        for (AreaOfInterest area : areasOfInterest) {
+            if (area.contains(tile))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Applies changed retention policies to the cached tiles, then evicts
+     * tiles that are no longer pinned if the cache is over its limits.
+     */
+    protected synchronized void updateRetention() {
+        hash.forEachValue(entry -> {
+            boolean pinned = isRetained(entry.tile);
+            if (pinned != entry.pinned) {
+                listOf(entry).removeEntry(entry);
+                addWeight(entry, -entry.weight);
+                entry.pinned = pinned;
+                listOf(entry).addFirst(entry);
+                addWeight(entry, entry.weight);
+            }
+        });
+        removeOldEntries();
+    }
+
+    /**
+     * Pins tiles at low zoom levels, so they remain available as placeholders.
+     * @param retainedZoom tiles at or below this zoom level are never evicted, -1 for none
+     */
+    public synchronized void setRetainedZoom(int retainedZoom) {
+        this.retainedZoom = retainedZoom;
+        updateRetention();
+    }
+
+    /**
+     * @return tiles at or below this zoom level are never evicted, -1 if none
+     */
+    public synchronized int getRetainedZoom() {
+        return retainedZoom;
+    }
+
+    /**
+     * Pins the tiles of an area of interest, including those cached later.
+     * @param area the area of interest
+     */
+    public synchronized void addAreaOfInterest(AreaOfInterest area) {
+        areasOfInterest.add(area);
+        updateRetention();
+    }
+
+    /**
+     * Unpins the tiles of an area of interest; they are evicted as usual from now on.
+     * @param area the area of interest
+     */
+    public synchronized void removeAreaOfInterest(AreaOfInterest area) {
+        areasOfInterest.remove(area);
+        updateRetention();
+    }
+
+    /**
+     * @return the areas of interest whose tiles are never evicted
+     */
+    public synchronized List<AreaOfInterest> getAreasOfInterest() {
+        return new ArrayList<>(areasOfInterest);
+    }
+
+    /**
+     * @return whether the memory held by tile images exceeds {@link #getMaxBytes()}
+     */
+    protected boolean isOverBudget() {
+        return maxBytes > 0 && bytesInUse > maxBytes;
+    }
+
     /**
      * Removes the least recently used tiles
      */
@@ -77,14 +273,43 @@ public class MemoryTileCache implements TileCache {
             while (lruTiles.getElementCount() > cacheSize) {
                 removeEntry(lruTiles.getLastElement());
             }
+            // never evict the most recently used tile for the sake of the memory budget
+            while (isOverBudget() && lruTiles.getElementCount() > 1) {
+                removeEntry(lruTiles.getLastElement());
+            }
         } catch (NullPointerException e) {
             log.warning(e.getMessage());
         }
     }
 
     protected synchronized void removeEntry(CacheEntry entry) {
-        hash.remove(entry.tile.getKey());
-        lruTiles.removeEntry(entry);
+        hash.remove(entry.tile.getPackedKey());
+        listOf(entry).removeEntry(entry);
+        addWeight(entry, -entry.weight);
+        stats.recordEviction(System.nanoTime() - entry.addedNanos);
+        evicted(entry);
+    }
+
+    /**
+     * Called when an entry has been evicted. The default implementation releases the image of the tile.
+     * @param entry the evicted entry
+     */
+    protected void evicted(CacheEntry entry) {
+        entry.tile.releaseImage();
+    }
+
+    /**
+     * Removes a tile from the cache without evicting it, e.g. to move it to another cache.
+     * @param packedKey the {@link Tile#getPackedKey()} of the tile
+     * @return the removed tile, or {@code null} if it was not cached
+     */
+    protected synchronized Tile detach(long packedKey) {
+        CacheEntry entry = hash.remove(packedKey);
+        if (entry == null)
+            return null;
+        listOf(entry).removeEntry(entry);
+        addWeight(entry, -entry.weight);
+        return entry.tile;
     }
 
     protected CacheEntry createCacheEntry(Tile tile) {
@@ -93,8 +318,22 @@ public class MemoryTileCache implements TileCache {
 
     @Override
     public synchronized void clear() {
+        hash.forEachValue(entry -> entry.tile.releaseImage());
         hash.clear();
         lruTiles.clear();
+        pinnedTiles.clear();
+        bytesInUse = 0;
+        pinnedBytes = 0;
+    }
+
+    /**
+     * @return the cached tiles, most recently used first, followed by the pinned tiles
+     */
+    public synchronized List<Tile> getTiles() {
+        List<Tile> tiles = new ArrayList<>(hash.size());
+        lruTiles.addTilesTo(tiles);
+        pinnedTiles.addTilesTo(tiles);
+        return tiles;
     }
 
     @Override
@@ -115,7 +354,46 @@ public class MemoryTileCache implements TileCache {
      */
     public synchronized void setCacheSize(int cacheSize) {
         this.cacheSize = cacheSize;
-        if (hash.size() > cacheSize)
+        if (lruTiles.getElementCount() > cacheSize)
+            removeOldEntries();
+    }
+
+    /**
+     * Memory held by the images of all cached tiles, including pinned tiles.
+     */
+    @Override
+    public synchronized long getBytesInUse() {
+        return bytesInUse + pinnedBytes;
+    }
+
+    /**
+     * @return memory held by the images of pinned tiles, not limited by {@link #getMaxBytes()}
+     */
+    public synchronized long getPinnedBytes() {
+        return pinnedBytes;
+    }
+
+    @Override
+    public TileCacheStats getStats() {
+        return stats;
+    }
+
+    /**
+     * @return maximum number of bytes held by tile images, 0 if the cache is bounded by tile count only
+     */
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Changes the maximum number of bytes held by the images of the cached tiles.
+     *
+     * @param maxBytes
+     *            new maximum number of bytes, 0 to bound the cache by tile count only
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        if (isOverBudget())
             removeOldEntries();
     }
 
@@ -125,9 +403,13 @@ public class MemoryTileCache implements TileCache {
      */
     @SuppressWarnings("javadoc")
     protected static class CacheEntry {
-        private Tile tile;
+        protected final Tile tile;
         private CacheEntry next;
         private CacheEntry prev;
+        protected BufferedImage weighedImage;
+        protected long weight;
+        protected final long addedNanos = System.nanoTime();
+        protected boolean pinned;
 
         protected CacheEntry(Tile tile) {
             this.tile = tile;
@@ -207,6 +489,27 @@ public class MemoryTileCache implements TileCache {
             elementCount--;
         }
 
+        /**
+         * Replaces an element of the list with another one, in place.
+         *
+         * @param element element to be replaced
+         * @param replacement element to take its position
+         */
+        public void replaceEntry(CacheEntry element, CacheEntry replacement) {
+            replacement.prev = element.prev;
+            replacement.next = element.next;
+            if (element.prev != null)
+                element.prev.next = replacement;
+            if (element.next != null)
+                element.next.prev = replacement;
+            if (element == firstElement)
+                firstElement = replacement;
+            if (element == lastElement)
+                lastElement = replacement;
+            element.next = null;
+            element.prev = null;
+        }
+
         public void moveElementToFirstPos(CacheEntry entry) {
             if (firstElement == entry)
                 return;
@@ -225,5 +528,16 @@ public class MemoryTileCache implements TileCache {
         public CacheEntry getFirstElement() {
             return firstElement;
         }
+
+        /**
+         * Adds the tiles of all elements to the list, from the head to the tail of this list.
+         *
+         * @param tiles the list to add the tiles to
+         */
+        public void addTilesTo(List<Tile> tiles) {
+            for (CacheEntry entry = firstElement; entry != null; entry = entry.next) {
+                tiles.add(entry.tile);
+            }
+        }
     }
 }
@@ -0,0 +1,157 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.openstreetmap.gui.jmapviewer.interfaces.TileSource;
+
+/**
+ * Remembers tiles a tile source is known not to have, e.g. tiles outside the
+ * coverage of an MBTiles file or tiles marked as "no-tile" by the server, so
+ * {@link TileController} does not create a load job for them on every repaint.
+ * <p>
+ * Entries are keyed by {@link Tile#getPackedKey()} and expire after the time
+ * to live of their tile source, after which the tile is looked up again.
+ * A loader reports a missing tile by setting the {@code tile-info} metadata
+ * of the tile to {@code no-tile}, see {@link #isNoTile(Tile)}.
+ */
+public class MissingTileCache {
+
+    /** metadata value of {@code tile-info} marking a tile the source does not have */
+    public static final String NO_TILE = "no-tile";
+
+    /** entries purged when the cache grows beyond this size */
+    private static final int MAX_ENTRIES = 100_000;
+
+    /** expiry time in milliseconds by packed tile key */
+    private final LongHashMap<Long> expiries = new LongHashMap<>(1024);
+    private final Map<String, Long> timesToLive = new HashMap<>();
+    private long defaultTimeToLive;
+
+    /**
+     * Constructs a new {@code MissingTileCache} whose entries expire after 10 minutes.
+     */
+    public MissingTileCache() {
+        this(10 * 60 * 1000L);
+    }
+
+    /**
+     * Constructs a new {@code MissingTileCache}.
+     * @param defaultTimeToLive time in milliseconds after which tiles of sources without an explicit time to live are looked up again
+     */
+    public MissingTileCache(long defaultTimeToLive) {
+        this.defaultTimeToLive = defaultTimeToLive;
+    }
+
+    /**
+     * Determines whether a loaded tile has been reported missing by its loader.
+     * @param tile the tile
+     * @return {@code true} if the tile has an error and its {@code tile-info} is {@code no-tile}
+     */
+    public static boolean isNoTile(Tile tile) {
+        return tile.hasError() && NO_TILE.equals(tile.getValue("tile-info"));
+    }
+
+    /**
+     * Remembers that the source of the tile does not have it.
+     * @param tile the missing tile
+     */
+    public synchronized void markMissing(Tile tile) {
+        long ttl = getTimeToLive(tile.getSource());
+        if (ttl <= 0)
+            return;
+        if (expiries.size() >= MAX_ENTRIES) {
+            purge();
+        }
+        expiries.put(tile.getPackedKey(), System.currentTimeMillis() + ttl);
+    }
+
+    /**
+     * Determines whether the tile is known to be missing. Expired entries are removed.
+     * @param tile the tile
+     * @return {@code true} if the tile has been reported missing within the time to live of its source
+     */
+    public synchronized boolean isMissing(Tile tile) {
+        long key = tile.getPackedKey();
+        Long expiry = expiries.get(key);
+        if (expiry == null)
+            return false;
+        if (expiry > System.currentTimeMillis())
+            return true;
+        expiries.remove(key);
+        return false;
+    }
+
+    /**
+     * Determines whether the tile has been reported missing and its entry has expired since,
+     * so it should be looked up again. The expired entry is removed.
+     * @param tile the tile
+     * @return {@code false} if the tile is not known to be missing, e.g. because the time to live of its source is {@code 0}
+     */
+    public synchronized boolean isExpired(Tile tile) {
+        long key = tile.getPackedKey();
+        Long expiry = expiries.get(key);
+        if (expiry == null || expiry > System.currentTimeMillis())
+            return false;
+        expiries.remove(key);
+        return true;
+    }
+
+    /**
+     * Removes expired entries, and all entries if the cache is still full afterwards.
+     */
+    private void purge() {
+        long now = System.currentTimeMillis();
+        LongHashMap<Long> live = new LongHashMap<>(expiries.size());
+        expiries.forEachEntry((key, expiry) -> {
+            if (expiry > now) {
+                live.put(key, expiry);
+            }
+        });
+        expiries.clear();
+        if (live.size() < MAX_ENTRIES) {
+            live.forEachEntry(expiries::put);
+        }
+    }
+
+    /**
+     * Forgets all missing tiles.
+     */
+    public synchronized void clear() {
+        expiries.clear();
+    }
+
+    /**
+     * @return number of tiles known to be missing, including expired entries not yet removed
+     */
+    public synchronized int size() {
+        return expiries.size();
+    }
+
+    /**
+     * Sets the time after which missing tiles of a tile source are looked up again.
+     * @param sourceId the {@link TileSource#getId()}
+     * @param timeToLive time in milliseconds, {@code 0} to not remember missing tiles of the source
+     */
+    public synchronized void setTimeToLive(String sourceId, long timeToLive) {
+        timesToLive.put(sourceId, timeToLive);
+    }
+
+    /**
+     * Returns the time after which missing tiles of a tile source are looked up again.
+     * @param source the tile source
+     * @return time in milliseconds
+     */
+    public synchronized long getTimeToLive(TileSource source) {
+        return timesToLive.getOrDefault(source.getId(), defaultTimeToLive);
+    }
+
+    /**
+     * Sets the time after which missing tiles of sources without an explicit time to live are looked up again.
+     * @param timeToLive time in milliseconds, {@code 0} to not remember missing tiles
+     */
+    public synchronized void setDefaultTimeToLive(long timeToLive) {
+        defaultTimeToLive = timeToLive;
+    }
+}
@@ -0,0 +1,228 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer;
+
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Allocates the pixels of tile images outside of the Java heap, so a large
+ * number of cached tiles does not inflate garbage collection pauses.
+ * <p>
+ * Memory is reserved from the operating system in large direct buffers
+ * ("slabs"), which are cut into blocks of the size of one tile image. Images
+ * are released with {@link #free(BufferedImage)} when a tile is evicted, and
+ * their blocks are reused for the next tile of the same size once the image is
+ * no longer reachable: the painting thread may still draw an evicted image, and
+ * must not see it overwritten. Blocks of images dropped without being freed are
+ * reclaimed the same way. Slabs are never given back. When the configured
+ * maximum is reached, images stay on the heap.
+ * <p>
+ * The pixels are held by a custom {@link DataBuffer}, which Java2D cannot access
+ * directly. This disables its accelerated loops: images backed by off-heap memory
+ * are neither cached in video memory nor drawn by the optimized loops of the
+ * built-in image types, but converted pixel by pixel, and are therefore
+ * considerably slower to paint than regular images.
+ *
+ * @see Tile#setOffHeapAllocator(OffHeapRasterAllocator)
+ */
+public class OffHeapRasterAllocator {
+
+    private static final ColorModel ARGB = new DirectColorModel(32, 0x00ff0000, 0x0000ff00, 0x000000ff, 0xff000000);
+
+    private final int slabBytes;
+    private final long maxBytes;
+
+    /** free blocks by block size, guarded by {@code this} */
+    private final Map<Integer, Deque<ByteBuffer>> freeBlocks = new HashMap<>();
+    /** blocks of images that are still reachable, guarded by {@code this} */
+    private final Set<BlockReference> allocated = new HashSet<>();
+    /** enqueues the blocks of images that are no longer reachable */
+    private final ReferenceQueue<DataBuffer> unreachable = new ReferenceQueue<>();
+    private long reservedBytes;
+    private long usedBytes;
+
+    /**
+     * Constructs a new {@code OffHeapRasterAllocator}.
+     * @param slabBytes size of the direct buffers reserved at once
+     * @param maxBytes maximum number of bytes reserved outside the heap
+     */
+    public OffHeapRasterAllocator(int slabBytes, long maxBytes) {
+        this.slabBytes = slabBytes;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Copies the image into off-heap memory.
+     * @param image the image to copy
+     * @return the off-heap copy of the image as ARGB, or the image itself if
+     *         no off-heap memory is left
+     */
+    public BufferedImage copyOf(BufferedImage image) {
+        if (image == null || image.getRaster().getDataBuffer() instanceof DirectIntDataBuffer)
+            return image;
+        int width = image.getWidth();
+        int height = image.getHeight();
+        ByteBuffer block = allocate(width * height * 4);
+        if (block == null)
+            return image;
+        IntBuffer pixels = block.asIntBuffer();
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            pixels.put(row);
+        }
+        DirectIntDataBuffer dataBuffer = new DirectIntDataBuffer(this, block);
+        synchronized (this) {
+            allocated.add(new BlockReference(dataBuffer, unreachable));
+        }
+        SinglePixelPackedSampleModel sampleModel = new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT, width, height,
+                new int[] {0x00ff0000, 0x0000ff00, 0x000000ff, 0xff000000});
+        WritableRaster raster = Raster.createWritableRaster(sampleModel, dataBuffer, new Point(0, 0));
+        return new BufferedImage(ARGB, raster, false, null);
+    }
+
+    /**
+     * Releases the off-heap memory of the image. It is reused once the image is no longer
+     * reachable, so the image may still be painted, but must not be kept.
+     * @param image the image, may be {@code null}
+     * @return {@code true} if the image has been allocated by this allocator and is freed now
+     */
+    public boolean free(BufferedImage image) {
+        if (image == null)
+            return false;
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        if (!(buffer instanceof DirectIntDataBuffer))
+            return false;
+        DirectIntDataBuffer direct = (DirectIntDataBuffer) buffer;
+        if (direct.allocator != this)
+            return false;
+        synchronized (this) {
+            if (direct.freed.freed)
+                return false;
+            direct.freed.freed = true;
+            usedBytes -= direct.block.capacity();
+        }
+        return true;
+    }
+
+    /**
+     * Returns the blocks of images that are no longer reachable for reuse.
+     */
+    private synchronized void reclaim() {
+        Reference<? extends DataBuffer> ref;
+        while ((ref = unreachable.poll()) != null) {
+            BlockReference block = (BlockReference) ref;
+            if (allocated.remove(block)) {
+                freeBlocks.get(block.block.capacity()).push(block.block);
+                if (!block.freed.freed) {
+                    usedBytes -= block.block.capacity();
+                }
+            }
+        }
+    }
+
+    private synchronized ByteBuffer allocate(int blockBytes) {
+        reclaim();
+        Deque<ByteBuffer> free = freeBlocks.computeIfAbsent(blockBytes, k -> new ArrayDeque<>());
+        if (free.isEmpty()) {
+            int blocksPerSlab = Math.max(1, slabBytes / blockBytes);
+            long size = (long) blocksPerSlab * blockBytes;
+            if (reservedBytes + size > maxBytes)
+                return null;
+            ByteBuffer slab = ByteBuffer.allocateDirect((int) size).order(ByteOrder.nativeOrder());
+            reservedBytes += size;
+            for (int i = 0; i < blocksPerSlab; i++) {
+                slab.limit((i + 1) * blockBytes);
+                slab.position(i * blockBytes);
+                free.push(slab.slice().order(ByteOrder.nativeOrder()));
+            }
+        }
+        usedBytes += blockBytes;
+        ByteBuffer block = free.pop();
+        block.clear();
+        return block;
+    }
+
+    /**
+     * @return number of bytes reserved outside the heap
+     */
+    public synchronized long getReservedBytes() {
+        return reservedBytes;
+    }
+
+    /**
+     * @return number of bytes held by images that have not been freed
+     */
+    public synchronized long getUsedBytes() {
+        reclaim();
+        return usedBytes;
+    }
+
+    /**
+     * Reference to the data buffer of an image, enqueued when the image can no longer be painted.
+     */
+    private static final class BlockReference extends PhantomReference<DataBuffer> {
+        private final ByteBuffer block;
+        private final FreedFlag freed;
+
+        BlockReference(DirectIntDataBuffer buffer, ReferenceQueue<DataBuffer> queue) {
+            super(buffer, queue);
+            this.block = buffer.block;
+            this.freed = buffer.freed;
+        }
+    }
+
+    /**
+     * Whether an image has been freed, shared by its data buffer and the reference to it.
+     */
+    private static final class FreedFlag {
+        /** guarded by the allocator */
+        private boolean freed;
+    }
+
+    /**
+     * {@link DataBuffer} of packed ARGB pixels in a block of off-heap memory.
+     */
+    private static final class DirectIntDataBuffer extends DataBuffer {
+        /** the allocator the block belongs to */
+        private final OffHeapRasterAllocator allocator;
+        private final ByteBuffer block;
+        private final IntBuffer pixels;
+        private final FreedFlag freed = new FreedFlag();
+
+        DirectIntDataBuffer(OffHeapRasterAllocator allocator, ByteBuffer block) {
+            super(DataBuffer.TYPE_INT, block.capacity() / 4);
+            this.allocator = allocator;
+            this.block = block;
+            this.pixels = block.asIntBuffer();
+        }
+
+        @Override
+        public int getElem(int bank, int i) {
+            return pixels.get(i);
+        }
+
+        @Override
+        public void setElem(int bank, int i, int val) {
+            pixels.put(i, val);
+        }
+    }
+}
@@ -0,0 +1,637 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openstreetmap.gui.jmapviewer.interfaces.TileClearController;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileSource;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileStore;
+
+/**
+ * {@link TileStore} implementation that appends tiles to a few large segment
+ * files instead of keeping one file per tile. An in-memory index maps each
+ * tile to its segment, offset and length; it is rebuilt by scanning the
+ * segments when the store is opened.
+ * <p>
+ * Reads are served from memory-mapped segments: the encoded image data handed
+ * to {@link Tile#loadImage(ByteBuffer)} is a slice of the mapping and is not
+ * copied. Records appended to the newest segment after it has been mapped are
+ * read into a copy instead, so the growing segment is not mapped again for
+ * every new tile; it is mapped once it is full. Tiles that are written again or removed leave dead space behind,
+ * which is reclaimed by {@link #compact(double)}, automatically in the
+ * background when a segment is mostly dead. If the total size of the segments
+ * is limited, the oldest segment is dropped with all its tiles when the limit
+ * is exceeded.
+ * <p>
+ * Writers are serialized on the store, while loads only wait for the index to
+ * be updated, not for records to be written.
+ */
+public class PackFileTileStore implements TileStore {
+
+    private static final Logger LOG = FeatureAdapter.getLogger(PackFileTileStore.class.getName());
+
+    /** "JMVR", marks the start of a record */
+    private static final int RECORD_MAGIC = 0x4A4D5652;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".pack";
+
+    /** data length of a record marking a removed tile */
+    private static final int TOMBSTONE = -1;
+
+    protected final File dir;
+
+    /**
+     * Size after which a new segment is started
+     */
+    protected final long maxSegmentBytes;
+
+    /**
+     * Maximum total size of all segments, after which the oldest segment is dropped
+     */
+    protected final long maxTotalBytes;
+
+    /**
+     * Segments by id, the segment with the highest id receives new records, guarded by {@code this}
+     */
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+
+    /**
+     * Index by {@link Tile#getPackedKey()}. Modified while holding {@code this} and the write lock
+     * of {@link #indexLock}, read while holding either.
+     */
+    private final LongHashMap<IndexEntry> index = new LongHashMap<>(1024);
+
+    private final ReadWriteLock indexLock = new ReentrantReadWriteLock();
+
+    /**
+     * Dropped segment files that could not be deleted yet because they were still mapped, guarded by {@code this}
+     */
+    private final List<File> undeleted = new ArrayList<>();
+
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "PackFileTileStore compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicBoolean compactionQueued = new AtomicBoolean();
+
+    /** set by {@link #close()}, guarded by {@code this} */
+    private boolean closed;
+
+    /**
+     * Opens the store in the given directory, scanning existing segments. The total size is not limited.
+     * @param dir directory of the segment files
+     * @param maxSegmentBytes size after which a new segment is started, at most 1 GB
+     * @throws IOException if the segments cannot be opened
+     */
+    public PackFileTileStore(File dir, long maxSegmentBytes) throws IOException {
+        this(dir, maxSegmentBytes, Long.MAX_VALUE);
+    }
+
+    /**
+     * Opens the store in the given directory, scanning existing segments.
+     * @param dir directory of the segment files
+     * @param maxSegmentBytes size after which a new segment is started, at most 1 GB
+     * @param maxTotalBytes maximum total size of all segments, after which the oldest segment is dropped
+     * @throws IOException if the segments cannot be opened
+     */
+    public PackFileTileStore(File dir, long maxSegmentBytes, long maxTotalBytes) throws IOException {
+        if (maxSegmentBytes <= 0 || maxSegmentBytes > 1 << 30)
+            throw new IllegalArgumentException("Invalid segment size " + maxSegmentBytes);
+        if (maxTotalBytes < maxSegmentBytes)
+            throw new IllegalArgumentException("Total size " + maxTotalBytes + " below segment size " + maxSegmentBytes);
+        this.dir = dir;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.maxTotalBytes = maxTotalBytes;
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Cannot create directory " + dir);
+        File[] files = dir.listFiles((d, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                try {
+                    int id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                    segments.put(id, new Segment(id, file));
+                } catch (NumberFormatException e) {
+                    LOG.log(Level.WARNING, "Ignoring unexpected file {0}", file);
+                }
+            }
+        }
+        synchronized (this) {
+            for (Segment segment : segments.values()) {
+                scan(segment);
+                if (segment != segments.lastEntry().getValue()) {
+                    segment.seal();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads all records of a segment into the index. A truncated last record,
+     * e.g. after a crash, is cut off.
+     */
+    private void scan(Segment segment) throws IOException {
+        ByteBuffer buffer = segment.mapAll();
+        int position = 0;
+        while (position < buffer.limit()) {
+            Record record = readRecord(buffer, position);
+            if (record == null) {
+                LOG.log(Level.WARNING, "Truncating corrupt segment {0} at {1}", new Object[] {segment.file, position});
+                segment.channel.truncate(position);
+                break;
+            }
+            addToIndex(record.entry(segment, position));
+            position = record.end;
+        }
+        segment.size = position;
+    }
+
+    private static Record readRecord(ByteBuffer buffer, int position) {
+        try {
+            ByteBuffer b = buffer.duplicate();
+            b.position(position);
+            if (b.remaining() < 12 || b.getInt() != RECORD_MAGIC)
+                return null;
+            int headerLength = b.getInt();
+            if (headerLength < 0 || headerLength > b.remaining() - 4)
+                return null;
+            byte[] header = new byte[headerLength];
+            b.get(header);
+            int dataLength = b.getInt();
+            if (dataLength < 0 ? dataLength != TOMBSTONE : dataLength > b.remaining())
+                return null;
+            Record record = new Record();
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(header))) {
+                record.sourceId = in.readUTF();
+                record.zoom = in.readByte();
+                record.x = in.readInt();
+                record.y = in.readInt();
+                int count = in.readUnsignedShort();
+                if (count > 0) {
+                    record.metadata = new HashMap<>();
+                    for (int i = 0; i < count; i++) {
+                        record.metadata.put(in.readUTF(), in.readUTF());
+                    }
+                }
+            }
+            record.dataOffset = b.position();
+            record.dataLength = dataLength;
+            record.end = b.position() + Math.max(0, dataLength);
+            return record;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static byte[] encodeRecord(Record record) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        try (DataOutputStream header = new DataOutputStream(out)) {
+            header.writeUTF(record.sourceId);
+            header.writeByte(record.zoom);
+            header.writeInt(record.x);
+            header.writeInt(record.y);
+            Map<String, String> metadata = record.metadata == null ? Collections.<String, String>emptyMap() : record.metadata;
+            header.writeShort(metadata.size());
+            for (Entry<String, String> e : metadata.entrySet()) {
+                header.writeUTF(e.getKey());
+                header.writeUTF(e.getValue());
+            }
+        } catch (IOException e) {
+            // cannot happen when writing to memory
+            throw new IllegalStateException(e);
+        }
+        byte[] header = out.toByteArray();
+        ByteBuffer prefix = ByteBuffer.allocate(12 + header.length);
+        prefix.putInt(RECORD_MAGIC).putInt(header.length).put(header).putInt(record.dataLength);
+        return prefix.array();
+    }
+
+    private void addToIndex(IndexEntry entry) {
+        indexLock.writeLock().lock();
+        try {
+            IndexEntry old = index.put(entry.getKey(), entry);
+            if (old != null) {
+                old.segment.liveBytes -= old.recordLength;
+            }
+            entry.segment.liveBytes += entry.recordLength;
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+    }
+
+    private void removeFromIndex(IndexEntry entry) {
+        indexLock.writeLock().lock();
+        try {
+            if (index.get(entry.getKey()) == entry) {
+                index.remove(entry.getKey());
+                entry.segment.liveBytes -= entry.recordLength;
+            }
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Appends a record to the newest segment, starting a new one when it is full.
+     */
+    private IndexEntry append(Record record, ByteBuffer data) throws IOException {
+        byte[] prefix = encodeRecord(record);
+        long recordLength = prefix.length + (data == null ? 0 : data.remaining());
+        Segment segment = segments.isEmpty() ? null : segments.lastEntry().getValue();
+        if (segment == null || (segment.size > 0 && segment.size + recordLength > maxSegmentBytes)) {
+            int id = 1;
+            if (segment != null) {
+                segment.seal();
+                id = segment.id + 1;
+            }
+            segment = new Segment(id, new File(dir, String.format("%s%05d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX)));
+            segments.put(id, segment);
+            scheduleCompaction();
+        }
+        long position = segment.size;
+        ByteBuffer[] buffers = {ByteBuffer.wrap(prefix), data == null ? ByteBuffer.allocate(0) : data.duplicate()};
+        long written = 0;
+        while (written < recordLength) {
+            segment.channel.position(position + written);
+            written += segment.channel.write(buffers);
+        }
+        segment.size += recordLength;
+        IndexEntry entry = record.entry(segment, position);
+        entry.dataOffset = position + prefix.length;
+        entry.recordLength = recordLength;
+        return entry;
+    }
+
+    @Override
+    public boolean load(Tile tile) throws IOException {
+        ByteBuffer data;
+        Map<String, String> metadata;
+        indexLock.readLock().lock();
+        try {
+            IndexEntry entry = index.get(tile.getPackedKey());
+            if (entry == null || entry.dataLength == TOMBSTONE || !entry.sourceId.equals(tile.getSource().getId()))
+                return false;
+            data = entry.segment.read(entry.dataOffset, entry.dataLength);
+            metadata = entry.metadata;
+        } finally {
+            indexLock.readLock().unlock();
+        }
+        if (metadata != null) {
+            tile.getMetadata().putAll(metadata);
+        }
+        tile.loadImage(data);
+        return true;
+    }
+
+    @Override
+    public void store(Tile tile) {
+        ByteBuffer data = tile.getEncodedData();
+        if (data == null)
+            return;
+        Record record = new Record();
+        record.sourceId = tile.getSource().getId();
+        record.zoom = tile.getZoom();
+        record.x = tile.getXtile();
+        record.y = tile.getYtile();
+        record.metadata = new HashMap<>(tile.getMetadata());
+        record.dataLength = data.remaining();
+        synchronized (this) {
+            if (closed)
+                return;
+            try {
+                addToIndex(append(record, data));
+                while (getTotalBytes() > maxTotalBytes && segments.size() > 1) {
+                    // the oldest segment holds the tiles written longest ago
+                    dropSegment(segments.firstEntry().getValue(), false);
+                }
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Failed writing tile " + tile.getKey(), e);
+            }
+        }
+    }
+
+    /**
+     * Removes all tiles of the source by appending removal records. The space is
+     * reclaimed by compaction. The {@link TileClearController} is informed about
+     * the segment files, which are not deleted themselves.
+     */
+    @Override
+    public void clear(TileSource source, TileClearController controller) {
+        String id = source.getId();
+        try {
+            if (controller != null) {
+                controller.initClearDir(dir);
+                synchronized (this) {
+                    controller.initClearFiles(segments.values().stream().map(s -> s.file).toArray(File[]::new));
+                }
+            }
+            List<IndexEntry> removed = new ArrayList<>();
+            synchronized (this) {
+                if (closed)
+                    return;
+                index.forEachValue(e -> {
+                    if (e.sourceId.equals(id) && e.dataLength != TOMBSTONE) {
+                        removed.add(e);
+                    }
+                });
+                for (IndexEntry entry : removed) {
+                    if (controller != null && controller.cancel())
+                        break;
+                    Record tombstone = new Record();
+                    tombstone.sourceId = id;
+                    tombstone.zoom = entry.zoom;
+                    tombstone.x = entry.x;
+                    tombstone.y = entry.y;
+                    tombstone.dataLength = TOMBSTONE;
+                    addToIndex(append(tombstone, null));
+                }
+            }
+            scheduleCompaction();
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Failed clearing tiles of " + id, e);
+        } finally {
+            if (controller != null) {
+                controller.clearFinished();
+            }
+        }
+    }
+
+    private void scheduleCompaction() {
+        if (compactionQueued.compareAndSet(false, true)) {
+            compactor.execute(() -> {
+                compactionQueued.set(false);
+                try {
+                    compact(0.5);
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, "Failed compacting tile store", e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Rewrites the live records of all segments (except the newest one) whose
+     * share of dead space is at least {@code minDeadRatio} to the newest
+     * segment, and deletes them. Records of removed tiles are dropped once no
+     * older record of the tile is left.
+     * @param minDeadRatio minimum share of dead space, between 0 and 1
+     * @throws IOException if an I/O error occurs
+     */
+    public void compact(double minDeadRatio) throws IOException {
+        List<Segment> candidates = new ArrayList<>();
+        synchronized (this) {
+            retryDeletes();
+            for (Segment segment : segments.values()) {
+                if (segment != segments.lastEntry().getValue() && segment.size > 0
+                        && (segment.size - segment.liveBytes) >= minDeadRatio * segment.size) {
+                    candidates.add(segment);
+                }
+            }
+        }
+        for (Segment segment : candidates) {
+            synchronized (this) {
+                if (closed || segments.get(segment.id) != segment)
+                    continue;
+                dropSegment(segment, true);
+            }
+        }
+    }
+
+    /**
+     * Removes a segment and deletes its file.
+     * @param segment the segment
+     * @param keepTiles {@code true} to rewrite the live records of the segment to the newest one,
+     *        {@code false} to remove its tiles from the store
+     */
+    private void dropSegment(Segment segment, boolean keepTiles) throws IOException {
+        // an older record of a removed tile would be found again when the store is reopened
+        boolean dropTombstones = segment == segments.firstEntry().getValue() && undeleted.isEmpty();
+        List<IndexEntry> live = new ArrayList<>();
+        index.forEachValue(e -> {
+            if (e.segment == segment) {
+                live.add(e);
+            }
+        });
+        for (IndexEntry entry : live) {
+            boolean tombstone = entry.dataLength == TOMBSTONE;
+            if (tombstone ? dropTombstones : !keepTiles) {
+                removeFromIndex(entry);
+                continue;
+            }
+            ByteBuffer data = null;
+            if (!tombstone) {
+                data = segment.read(entry.dataOffset, entry.dataLength);
+            }
+            addToIndex(append(entry.toRecord(), data));
+        }
+        indexLock.writeLock().lock();
+        try {
+            segments.remove(segment.id);
+            segment.close();
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+        // mappings handed out before stay valid until they are garbage collected,
+        // some platforms do not delete mapped files until then
+        if (!segment.file.delete()) {
+            undeleted.add(segment.file);
+        }
+    }
+
+    /**
+     * Deletes the files of dropped segments that were still mapped before.
+     */
+    private void retryDeletes() {
+        undeleted.removeIf(file -> file.delete() || !file.exists());
+    }
+
+    /**
+     * @return total size of all segments in bytes
+     */
+    public synchronized long getTotalBytes() {
+        long total = 0;
+        for (Segment segment : segments.values()) {
+            total += segment.size;
+        }
+        return total;
+    }
+
+    /**
+     * @return size of the records in all segments that are still referenced by the index, in bytes
+     */
+    public synchronized long getLiveBytes() {
+        long live = 0;
+        for (Segment segment : segments.values()) {
+            live += segment.liveBytes;
+        }
+        return live;
+    }
+
+    /**
+     * Closes all segment files. The store must not be used afterwards.
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized void close() throws IOException {
+        closed = true;
+        compactor.shutdown();
+        for (Segment segment : segments.values()) {
+            segment.close();
+        }
+        retryDeletes();
+        for (File file : undeleted) {
+            LOG.log(Level.WARNING, "Cannot delete dropped segment {0}", file);
+        }
+    }
+
+    /**
+     * A segment file.
+     */
+    private static final class Segment {
+        private final int id;
+        private final File file;
+        private final FileChannel channel;
+        private long size;
+        private long liveBytes;
+        private MappedByteBuffer mapping;
+        /** set once no records are appended any more, guarded by the segment */
+        private boolean sealed;
+
+        Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        /**
+         * Returns a read-only mapping of the whole segment.
+         */
+        synchronized MappedByteBuffer mapAll() throws IOException {
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return mapping;
+        }
+
+        /**
+         * Marks the segment as no longer receiving records, so it is mapped as a whole when read beyond the mapping.
+         */
+        synchronized void seal() {
+            sealed = true;
+        }
+
+        /**
+         * Returns {@code length} bytes of the segment starting at {@code offset}, a slice of the
+         * mapping if it covers them, otherwise a copy while records are still appended.
+         */
+        synchronized ByteBuffer read(long offset, int length) throws IOException {
+            long end = offset + length;
+            if (sealed && (mapping == null || mapping.capacity() < end)) {
+                mapAll();
+            }
+            if (mapping != null && mapping.capacity() >= end) {
+                ByteBuffer data = mapping.duplicate();
+                data.position((int) offset);
+                data.limit((int) end);
+                return data.slice();
+            }
+            ByteBuffer data = ByteBuffer.allocate(length);
+            while (data.hasRemaining()) {
+                if (channel.read(data, offset + data.position()) < 0)
+                    throw new EOFException("Record beyond the end of segment " + file);
+            }
+            data.flip();
+            return data;
+        }
+
+        /**
+         * Closes the file and drops the mapping, so it can be released once no tile uses it any more.
+         */
+        synchronized void close() throws IOException {
+            mapping = null;
+            channel.close();
+        }
+    }
+
+    /**
+     * Location and identity of the newest record of a tile.
+     */
+    private static final class IndexEntry {
+        private Segment segment;
+        private long dataOffset;
+        private int dataLength;
+        private long recordLength;
+        private String sourceId;
+        private int zoom;
+        private int x;
+        private int y;
+        private Map<String, String> metadata;
+
+        long getKey() {
+            return Tile.getPackedKey(sourceId, x, y, zoom);
+        }
+
+        Record toRecord() {
+            Record record = new Record();
+            record.sourceId = sourceId;
+            record.zoom = zoom;
+            record.x = x;
+            record.y = y;
+            record.metadata = metadata;
+            record.dataLength = dataLength;
+            return record;
+        }
+    }
+
+    /**
+     * A record as read from or written to a segment.
+     */
+    private static final class Record {
+        private String sourceId;
+        private int zoom;
+        private int x;
+        private int y;
+        private Map<String, String> metadata;
+        private int dataLength;
+        private int dataOffset;
+        private int end;
+
+        IndexEntry entry(Segment segment, long position) {
+            IndexEntry entry = new IndexEntry();
+            entry.segment = segment;
+            entry.dataOffset = dataOffset;
+            entry.dataLength = dataLength;
+            entry.recordLength = end - position;
+            entry.sourceId = sourceId;
+            entry.zoom = zoom;
+            entry.x = x;
+            entry.y = y;
+            entry.metadata = metadata;
+            return entry;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openstreetmap.gui.jmapviewer.interfaces.TileCache;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileSource;
+
+/**
+ * {@link TileCache} implementation with one {@link MemoryTileCache} partition
+ * per tile source, keyed by {@link TileSource#getId()}, so switching between
+ * tile sources does not let one source evict the tiles of the other.
+ * <p>
+ * Each partition holds up to its quota of tiles. Tiles evicted from a partition
+ * move to a shared overflow pool, which is an LRU over all sources; a tile
+ * found in the overflow pool moves back to its partition. Only tiles evicted
+ * from the overflow pool leave the cache.
+ */
+public class PartitionedTileCache implements TileCache {
+
+    /**
+     * Quota of partitions without an explicit quota
+     */
+    protected int defaultQuota;
+
+    protected final Map<String, Integer> quotas = new HashMap<>();
+
+    protected final Map<String, Partition> partitions = new HashMap<>();
+
+    protected final MemoryTileCache overflow;
+
+    protected final TileCacheStats stats = new TileCacheStats(this::getBytesInUse);
+
+    /**
+     * Constructs a new {@code PartitionedTileCache} with partitions of 200 tiles and an overflow pool of 200 tiles.
+     */
+    public PartitionedTileCache() {
+        this(200, 200);
+    }
+
+    /**
+     * Constructs a new {@code PartitionedTileCache}.
+     * @param defaultQuota number of tiles per tile source
+     * @param overflowSize number of tiles in the shared overflow pool
+     */
+    public PartitionedTileCache(int defaultQuota, int overflowSize) {
+        this.defaultQuota = defaultQuota;
+        this.overflow = new MemoryTileCache(overflowSize) {
+            @Override
+            protected void evicted(CacheEntry entry) {
+                PartitionedTileCache.this.stats.recordEviction(System.nanoTime() - entry.addedNanos);
+                super.evicted(entry);
+            }
+        };
+    }
+
+    /**
+     * Returns the partition of the tile source, creating it if needed.
+     * @param sourceId the {@link TileSource#getId()}
+     * @return the partition
+     */
+    protected synchronized Partition getPartition(String sourceId) {
+        return partitions.computeIfAbsent(sourceId, id -> new Partition(quotas.getOrDefault(id, defaultQuota)));
+    }
+
+    @Override
+    public synchronized Tile getTile(TileSource source, int x, int y, int z) {
+        Partition partition = getPartition(source.getId());
+        Tile tile = partition.getTile(source, x, y, z);
+        if (tile == null) {
+            tile = overflow.detach(Tile.getPackedKey(source, x, y, z));
+            if (tile != null && !tile.hasSource(source)) {
+                // a tile of another source with the same packed key
+                overflow.addTile(tile);
+                tile = null;
+            }
+            if (tile != null) {
+                partition.addTile(tile);
+            }
+        }
+        if (tile == null) {
+            stats.recordMiss();
+        } else {
+            stats.recordHit();
+        }
+        return tile;
+    }
+
+    @Override
+    public synchronized void addTile(Tile tile) {
+        Partition partition = getPartition(tile.getSource().getId());
+        Tile old = overflow.detach(tile.getPackedKey());
+        if (old != null && old != tile) {
+            old.releaseImage();
+        }
+        if (old == null && partition.getTile(tile.getSource(), tile.getXtile(), tile.getYtile(), tile.getZoom()) == null) {
+            stats.recordLoad();
+        }
+        partition.addTile(tile);
+    }
+
+    @Override
+    public synchronized int getTileCount() {
+        int count = overflow.getTileCount();
+        for (Partition partition : partitions.values()) {
+            count += partition.getTileCount();
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized void clear() {
+        for (Partition partition : partitions.values()) {
+            partition.clear();
+        }
+        overflow.clear();
+    }
+
+    /**
+     * Sum of the quotas of the existing partitions and the size of the overflow pool.
+     */
+    @Override
+    public synchronized int getCacheSize() {
+        int size = overflow.getCacheSize();
+        for (Partition partition : partitions.values()) {
+            size += partition.getCacheSize();
+        }
+        return size;
+    }
+
+    @Override
+    public synchronized long getBytesInUse() {
+        long bytes = overflow.getBytesInUse();
+        for (Partition partition : partitions.values()) {
+            bytes += partition.getBytesInUse();
+        }
+        return bytes;
+    }
+
+    @Override
+    public TileCacheStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Sets the number of tiles the partition of a tile source holds, before tiles move to the overflow pool.
+     * @param sourceId the {@link TileSource#getId()}
+     * @param quota number of tiles
+     */
+    public synchronized void setQuota(String sourceId, int quota) {
+        quotas.put(sourceId, quota);
+        Partition partition = partitions.get(sourceId);
+        if (partition != null) {
+            partition.setCacheSize(quota);
+        }
+    }
+
+    /**
+     * Returns the number of tiles the partition of a tile source holds.
+     * @param sourceId the {@link TileSource#getId()}
+     * @return number of tiles
+     */
+    public synchronized int getQuota(String sourceId) {
+        return quotas.getOrDefault(sourceId, defaultQuota);
+    }
+
+    /**
+     * @return the ids of the tile sources that have a partition
+     */
+    public synchronized List<String> getPartitionIds() {
+        return new ArrayList<>(partitions.keySet());
+    }
+
+    /**
+     * Returns the number of tiles cached in the partition of a tile source, not counting the overflow pool.
+     * @param sourceId the {@link TileSource#getId()}
+     * @return number of tiles
+     */
+    public synchronized int getPartitionTileCount(String sourceId) {
+        Partition partition = partitions.get(sourceId);
+        return partition == null ? 0 : partition.getTileCount();
+    }
+
+    /**
+     * @return number of tiles in the overflow pool
+     */
+    public synchronized int getOverflowTileCount() {
+        return overflow.getTileCount();
+    }
+
+    /**
+     * Changes the number of tiles in the shared overflow pool.
+     * @param overflowSize number of tiles
+     */
+    public synchronized void setOverflowSize(int overflowSize) {
+        overflow.setCacheSize(overflowSize);
+    }
+
+    /**
+     * Partition of a tile source, handing evicted tiles to the overflow pool.
+     */
+    protected class Partition extends MemoryTileCache {
+
+        protected Partition(int quota) {
+            super(quota);
+        }
+
+        @Override
+        protected void evicted(CacheEntry entry) {
+            overflow.addTile(entry.tile);
+        }
+    }
+}
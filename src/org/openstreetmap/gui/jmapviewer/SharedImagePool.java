@@ -0,0 +1,145 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer;
+
+import java.awt.image.BufferedImage;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Shares one decoded image between all tiles with byte-identical encoded
+ * image data, e.g. open ocean, blank overlay tiles or "no data" tiles of
+ * aerial imagery, which make up a large fraction of the tiles at low and
+ * medium zoom levels.
+ * <p>
+ * Images are looked up by the content of the encoded data and reference
+ * counted: {@link Tile#loadImage(ByteBuffer)} acquires a reference and
+ * {@link Tile#releaseImage()} gives it back; the image is dropped from the
+ * pool with its last reference. The pool only holds images weakly, so the image
+ * of a tile which is discarded without being released, e.g. by a third-party
+ * {@link org.openstreetmap.gui.jmapviewer.interfaces.TileCache}, is dropped once
+ * no tile uses it anymore.
+ * <p>
+ * Memory budgets of tile caches still count a shared image for every tile
+ * holding it, so they overestimate the memory in use.
+ * <p>
+ * Sharing is disabled by default, see {@link Tile#setImagePool(SharedImagePool)}.
+ *
+ * @see Tile#setImagePool(SharedImagePool)
+ */
+public class SharedImagePool {
+
+    /** images by encoded data, whose hash code and equality are based on the content */
+    private final Map<ByteBuffer, Shared> images = new HashMap<>();
+    /** images no longer used by any tile, whose entries are to be removed */
+    private final ReferenceQueue<BufferedImage> collected = new ReferenceQueue<>();
+    private long references;
+
+    /**
+     * Returns the image decoded from identical encoded data, if any, and acquires a reference to it.
+     * @param data encoded image data, must not be modified afterwards
+     * @return the shared image, or {@code null} if no image has been decoded from identical data
+     */
+    public synchronized BufferedImage acquire(ByteBuffer data) {
+        purge();
+        Shared shared = images.get(data);
+        BufferedImage image = shared == null ? null : shared.get();
+        if (image == null)
+            return null;
+        shared.references++;
+        references++;
+        return image;
+    }
+
+    /**
+     * Registers an image decoded from the encoded data and acquires a reference to it.
+     * If another thread has registered an image for identical data in the meantime,
+     * that image is returned instead.
+     * @param data encoded image data, must not be modified afterwards
+     * @param image the decoded image, not {@code null}
+     * @return the shared image for the encoded data
+     */
+    public synchronized BufferedImage register(ByteBuffer data, BufferedImage image) {
+        purge();
+        Shared shared = images.get(data);
+        BufferedImage existing = shared == null ? null : shared.get();
+        if (existing == null) {
+            if (shared != null) {
+                remove(shared);
+            }
+            shared = new Shared(data, image, collected);
+            images.put(data, shared);
+            existing = image;
+        }
+        shared.references++;
+        references++;
+        return existing;
+    }
+
+    /**
+     * Gives back a reference to an image.
+     * @param data encoded image data the image has been acquired for
+     * @param image the image
+     * @return {@code true} if the image is not used by other tiles, so its memory can be freed
+     */
+    public synchronized boolean release(ByteBuffer data, BufferedImage image) {
+        purge();
+        Shared shared = images.get(data);
+        if (shared == null || shared.get() != image)
+            return true;
+        references--;
+        if (--shared.references > 0)
+            return false;
+        images.remove(data);
+        return true;
+    }
+
+    /**
+     * Removes the entries of images which have been garbage collected, i.e. whose
+     * tiles have been discarded without being released.
+     */
+    private void purge() {
+        Reference<? extends BufferedImage> ref;
+        while ((ref = collected.poll()) != null) {
+            Shared shared = (Shared) ref;
+            if (images.get(shared.data) == shared) {
+                remove(shared);
+            }
+        }
+    }
+
+    private void remove(Shared shared) {
+        images.remove(shared.data);
+        references -= shared.references;
+    }
+
+    /**
+     * @return number of distinct images in the pool
+     */
+    public synchronized int getImageCount() {
+        purge();
+        return images.size();
+    }
+
+    /**
+     * @return number of references held by tiles to the images in the pool
+     */
+    public synchronized long getReferenceCount() {
+        purge();
+        return references;
+    }
+
+    private static final class Shared extends WeakReference<BufferedImage> {
+        /** key of the entry, removed once the image has been collected */
+        private final ByteBuffer data;
+        private int references;
+
+        private Shared(ByteBuffer data, BufferedImage image, ReferenceQueue<BufferedImage> queue) {
+            super(image, queue);
+            this.data = data;
+        }
+    }
+}
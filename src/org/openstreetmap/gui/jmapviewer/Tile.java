@@ -5,12 +5,16 @@ import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.imageio.ImageIO;
 
@@ -35,18 +39,50 @@ public class Tile {
      */
     public static final BufferedImage ERROR_IMAGE = loadImage("images/error.png");
 
+    /**
+     * Interned index of each tile source id, used in {@link #getPackedKey(TileSource, int, int, int)}.
+     * Ids beyond its capacity are not registered, their index is derived from their hash code.
+     */
+    private static final ConcurrentMap<String, Integer> SOURCE_INDEXES = new ConcurrentHashMap<>();
+
+    /**
+     * Allocator for the pixels of decoded images, {@code null} to keep them on the heap
+     */
+    private static volatile OffHeapRasterAllocator offHeapAllocator;
+
+    /**
+     * Pool of images shared between tiles with identical encoded data, {@code null} (the default) to decode every tile
+     */
+    private static volatile SharedImagePool imagePool;
+
+    private static final int COORDINATE_BITS = 22;
+    private static final int ZOOM_BITS = 6;
+    private static final int SOURCE_BITS = 64 - ZOOM_BITS - 2 * COORDINATE_BITS;
+
     
     // field accessed by multiple threads without any monitors, needs to be volatile
     private volatile boolean loaded; 
     private volatile boolean loading;
     private volatile boolean error;
+    private volatile boolean revalidating;
+    /** time in milliseconds since the epoch before which the tile is not revalidated again, {@code 0} if none */
+    private volatile long revalidationRetryTime;
     
     protected TileSource source;
     protected int xtile;
     protected int ytile;
     protected int zoom;
     protected BufferedImage image;
+    /** encoded (e.g. PNG or JPEG) image data the {@link #image} was decoded from, if retained */
+    protected ByteBuffer encodedData;
+    /** whether {@link #encodedData} is retained when the image is loaded */
+    private volatile boolean retainEncodedData;
+    /** whether {@link #encodedData} is kept when the image is loaded until it has been stored */
+    private volatile boolean keepEncodedDataUntilStored;
+    /** pool the {@link #image} has been acquired from, {@code null} if it is not shared */
+    private SharedImagePool imageSource;
     protected String key;
+    protected long packedKey;
     protected String error_message;
     
     private int loadErrorCount = 0;
@@ -81,7 +117,7 @@ public class Tile {
         this.ytile = ytile;
         this.zoom = zoom;
         this.image = image;
-        this.key = getTileKey(source, xtile, ytile, zoom);
+        this.packedKey = getPackedKey(source, xtile, ytile, zoom);
     }
 
     private static BufferedImage loadImage(String path) {
@@ -93,6 +129,45 @@ public class Tile {
         }
     }
 
+    /**
+     * Reads the remaining bytes of a buffer without copying them.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+            if (!buffer.hasRemaining())
+                return -1;
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
     private static class CachedCallable<V> implements Callable<V> {
         private V result;
         private Callable<V> callable;
@@ -248,17 +323,246 @@ public class Tile {
         this.image = image;
     }
 
+    /**
+     * Reads the encoded image data from the stream and decodes it.
+     * The encoded data is only read into memory if it is retained, see {@link #setRetainEncodedData(boolean)},
+     * or if images are shared, see {@link #setImagePool(SharedImagePool)}.
+     * @param input stream of encoded image data
+     * @throws IOException if an I/O error occurs
+     */
     public void loadImage(InputStream input) throws IOException {
-        setImage(ImageIO.read(input));
+        if (!retainEncodedData && !keepEncodedDataUntilStored && imagePool == null) {
+            BufferedImage decoded = ImageIO.read(input);
+            OffHeapRasterAllocator allocator = offHeapAllocator;
+            if (allocator != null) {
+                decoded = allocator.copyOf(decoded);
+            }
+            setDecodedImage(decoded, null, null);
+            return;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(32 * 1024);
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        loadImage(ByteBuffer.wrap(out.toByteArray()));
+    }
+
+    /**
+     * Decodes the encoded image data, from the position to the limit of the buffer.
+     * The buffer is only kept if the encoded data is retained, see {@link #setRetainEncodedData(boolean)},
+     * or if the image is shared, see {@link #setImagePool(SharedImagePool)}.
+     * @param data encoded image data, not modified by this method
+     * @throws IOException if the data cannot be decoded
+     */
+    public void loadImage(ByteBuffer data) throws IOException {
+        ByteBuffer encoded = data.asReadOnlyBuffer();
+        SharedImagePool pool = imagePool;
+        BufferedImage decoded = pool == null ? null : pool.acquire(encoded);
+        if (decoded == null) {
+            decoded = ImageIO.read(new ByteBufferInputStream(encoded.duplicate()));
+            OffHeapRasterAllocator allocator = offHeapAllocator;
+            if (allocator != null) {
+                decoded = allocator.copyOf(decoded);
+            }
+            if (pool != null && decoded != null) {
+                BufferedImage shared = pool.register(encoded, decoded);
+                if (shared != decoded && allocator != null) {
+                    // decoded concurrently by another tile
+                    allocator.free(decoded);
+                }
+                decoded = shared;
+            }
+        }
+        SharedImagePool source = decoded == null ? null : pool;
+        // a shared image is released by its encoded data
+        setDecodedImage(decoded, retainEncodedData || keepEncodedDataUntilStored || source != null ? encoded : null, source);
+    }
+
+    private void setDecodedImage(BufferedImage decoded, ByteBuffer encoded, SharedImagePool source) {
+        BufferedImage old = image;
+        ByteBuffer oldData = encodedData;
+        SharedImagePool oldSource = imageSource;
+        encodedData = encoded;
+        imageSource = source;
+        setImage(decoded);
+        freeImage(old, oldData, oldSource);
+    }
+
+    /**
+     * Sets whether the encoded image data is retained when the image of this tile is loaded,
+     * so it can be stored or decoded again later, see {@link #getEncodedData()}. Set by the
+     * caches, loaders and controllers that need it; tiles do not retain it by default.
+     * @param retain {@code true} to retain the encoded image data
+     */
+    public void setRetainEncodedData(boolean retain) {
+        retainEncodedData = retain;
+    }
+
+    /**
+     * @return {@code true} if the encoded image data is retained when the image of this tile is loaded
+     */
+    public boolean isRetainEncodedData() {
+        return retainEncodedData;
+    }
+
+    /**
+     * Sets whether the encoded image data is kept when the image of this tile is loaded,
+     * until {@link #encodedDataStored()} is called. Set by loaders that put loaded tiles
+     * into a {@link org.openstreetmap.gui.jmapviewer.interfaces.TileStore}.
+     * @param keep {@code true} to keep the encoded image data until it has been stored
+     */
+    public void setKeepEncodedDataUntilStored(boolean keep) {
+        keepEncodedDataUntilStored = keep;
+    }
+
+    /**
+     * @return {@code true} if the encoded image data is kept when the image of this tile is loaded until it has been stored
+     */
+    public boolean isKeepEncodedDataUntilStored() {
+        return keepEncodedDataUntilStored;
+    }
+
+    /**
+     * Drops the encoded image data kept until the tile has been stored, unless it is
+     * retained, see {@link #setRetainEncodedData(boolean)}, or the image is shared.
+     */
+    public void encodedDataStored() {
+        if (!retainEncodedData && imageSource == null) {
+            encodedData = null;
+        }
+    }
+
+    /**
+     * Gives up a reference to an image that is no longer used by this tile.
+     * @return {@code true} if the image is not used by other tiles and its off-heap memory has been freed
+     */
+    private static boolean freeImage(BufferedImage image, ByteBuffer data, SharedImagePool source) {
+        if (image == null || source != null && !source.release(data, image))
+            return false;
+        OffHeapRasterAllocator allocator = offHeapAllocator;
+        return allocator != null && allocator.free(image);
+    }
+
+    /**
+     * Replaces the image, the encoded image data and the metadata of this tile by
+     * those of a copy that has been loaded again, without this tile ever leaving
+     * the loaded state. Used to refresh expired tiles while they are displayed.
+     * @param reloaded the tile loaded again, must have an image
+     */
+    public void replaceImage(Tile reloaded) {
+        BufferedImage old = image;
+        ByteBuffer oldData = encodedData;
+        SharedImagePool oldSource = imageSource;
+        if (reloaded.metadata != null) {
+            getMetadata().putAll(reloaded.metadata);
+        }
+        // take over the reference of the reloaded tile
+        encodedData = reloaded.encodedData;
+        imageSource = reloaded.imageSource;
+        reloaded.imageSource = null;
+        setImage(reloaded.image);
+        freeImage(old, oldData, oldSource);
+    }
+
+    /**
+     * Gives up the reference of this tile to a shared image and releases the memory
+     * held by the image if it has been allocated off the heap and is not shared with
+     * other tiles. Called when the tile is evicted from a {@link TileCache}; the tile
+     * must not be painted afterwards. A paint already drawing the image is not affected,
+     * off-heap memory is reused once the image is no longer reachable.
+     */
+    public void releaseImage() {
+        SharedImagePool source = imageSource;
+        imageSource = null;
+        BufferedImage old = image;
+        if (old == null)
+            return;
+        boolean shared = source != null && !source.release(encodedData, old);
+        OffHeapRasterAllocator allocator = offHeapAllocator;
+        // a shared image is freed by the last tile holding it, so drop the reference in any case
+        if (shared || allocator != null && allocator.free(old)) {
+            image = null;
+            loaded = false;
+        }
+    }
+
+    /**
+     * Sets the pool used to share decoded images between tiles with identical
+     * encoded image data. Only affects tiles decoded afterwards. No pool is set
+     * by default.
+     * @param pool the pool, or {@code null} to decode the image of every tile
+     */
+    public static void setImagePool(SharedImagePool pool) {
+        imagePool = pool;
+    }
+
+    /**
+     * @return the pool used to share decoded images between tiles, or {@code null}
+     */
+    public static SharedImagePool getImagePool() {
+        return imagePool;
+    }
+
+    /**
+     * Sets the allocator used to store the pixels of decoded tile images outside of
+     * the heap. Only affects tiles decoded afterwards.
+     * @param allocator the allocator, or {@code null} to keep decoded images on the heap
+     */
+    public static void setOffHeapAllocator(OffHeapRasterAllocator allocator) {
+        offHeapAllocator = allocator;
+    }
+
+    /**
+     * @return the allocator used to store the pixels of decoded tile images outside of the heap, or {@code null}
+     */
+    public static OffHeapRasterAllocator getOffHeapAllocator() {
+        return offHeapAllocator;
+    }
+
+    /**
+     * Returns the encoded image data the image of this tile has been decoded from,
+     * if it has been loaded with {@link #loadImage(InputStream)} or {@link #loadImage(ByteBuffer)}
+     * and the encoded data has been retained, see {@link #setRetainEncodedData(boolean)}
+     * and {@link #setKeepEncodedDataUntilStored(boolean)}.
+     * @return read-only buffer of the encoded image data, or {@code null}
+     */
+    public ByteBuffer getEncodedData() {
+        ByteBuffer data = encodedData;
+        return data == null ? null : data.duplicate();
     }
 
     /**
      * @return key that identifies a tile
      */
     public String getKey() {
+        // built lazily, most tiles are only ever looked up by their packed key
+        if (key == null) {
+            key = getTileKey(source, xtile, ytile, zoom);
+        }
         return key;
     }
 
+    /**
+     * @return packed key that identifies a tile
+     * @see #getPackedKey(TileSource, int, int, int)
+     */
+    public long getPackedKey() {
+        return packedKey;
+    }
+
+    /**
+     * Determines whether this tile belongs to a tile source with the id of the given one.
+     * Used to verify a tile found by its packed key, which may be shared by several sources.
+     * @param source the tile source
+     * @return {@code true} if the tile sources have the same id
+     * @see #getPackedKey(TileSource, int, int, int)
+     */
+    public boolean hasSource(TileSource source) {
+        return this.source == source || Objects.equals(this.source.getId(), source.getId());
+    }
+
     public boolean isLoaded() {
         return loaded;
     }
@@ -304,7 +608,7 @@ public class Tile {
 
     @Override
     public String toString() {
-        StringBuilder sb = new StringBuilder(35).append("Tile ").append(key);
+        StringBuilder sb = new StringBuilder(35).append("Tile ").append(getKey());
         if (loading) {
             sb.append(" [LOADING...]");
         }
@@ -355,6 +659,134 @@ public class Tile {
         return zoom + "/" + xtile + "/" + ytile + "@" + source.getId();
     }
 
+    /**
+     * Returns a key that identifies a tile like {@link #getTileKey(TileSource, int, int, int)},
+     * packed into a {@code long} so it can be computed without allocating. The key holds the
+     * interned index of the tile source id, the zoom level and both tile coordinates, which
+     * therefore must be within the range of {@link JMapViewer#MAX_ZOOM}. The key is never 0.
+     * <p>
+     * The index of a tile source id is unique for the first 16383 ids registered by the process.
+     * Later ids share the index of another id, so keys of different tile sources may be equal:
+     * lookups by the key must verify the source of what they find, see {@link #hasSource(TileSource)}.
+     *
+     * @param source tile source
+     * @param xtile X coordinate
+     * @param ytile Y coordinate
+     * @param zoom zoom level
+     * @return packed key that identifies the tile
+     */
+    public static long getPackedKey(TileSource source, int xtile, int ytile, int zoom) {
+        return getPackedKey(source.getId(), xtile, ytile, zoom);
+    }
+
+    /**
+     * Returns a key that identifies a tile, packed into a {@code long}.
+     *
+     * @param sourceId id of the tile source
+     * @param xtile X coordinate
+     * @param ytile Y coordinate
+     * @param zoom zoom level
+     * @return packed key that identifies the tile
+     * @see #getPackedKey(TileSource, int, int, int)
+     */
+    public static long getPackedKey(String sourceId, int xtile, int ytile, int zoom) {
+        long coordinateMask = (1L << COORDINATE_BITS) - 1;
+        return (long) getSourceIndex(sourceId) << (ZOOM_BITS + 2 * COORDINATE_BITS)
+                | (long) zoom << (2 * COORDINATE_BITS)
+                | (xtile & coordinateMask) << COORDINATE_BITS
+                | (ytile & coordinateMask);
+    }
+
+    private static int getSourceIndex(String sourceId) {
+        String id = sourceId;
+        if (id == null) {
+            id = "";
+        }
+        Integer index = SOURCE_INDEXES.get(id);
+        if (index == null) {
+            synchronized (SOURCE_INDEXES) {
+                index = SOURCE_INDEXES.get(id);
+                if (index == null) {
+                    // start at 1, so no packed key is 0
+                    index = SOURCE_INDEXES.size() + 1;
+                    if (index >= 1 << SOURCE_BITS)
+                        // the registry is full, share the index of another id
+                        return 1 + Math.floorMod(id.hashCode(), (1 << SOURCE_BITS) - 1);
+                    SOURCE_INDEXES.put(id, index);
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Returns the time this tile expires, from the {@code expires} metadata set by the tile loader.
+     * @return expiry time in milliseconds since the epoch, or {@code 0} if unknown
+     */
+    public long getExpires() {
+        String expires = getValue("expires");
+        if (expires == null)
+            return 0;
+        try {
+            return Long.parseLong(expires);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Determines whether this tile has expired. Tiles without expiry time never expire.
+     * An expired tile may not be revalidated yet, see {@link #setRevalidationRetryTime(long)}.
+     * @return {@code true} if the expiry time of this tile is known and has passed
+     */
+    public boolean isExpired() {
+        long expires = getExpires();
+        return expires != 0 && expires < System.currentTimeMillis();
+    }
+
+    /**
+     * Marks this loaded tile as being revalidated, so only one revalidation is queued at a time.
+     * The tile stays loaded and keeps its image while it is revalidated.
+     * @return {@code true} if the revalidation should be started, {@code false} if the tile
+     *         is not loaded, already being loaded or revalidated, or its next revalidation is not due yet
+     */
+    public synchronized boolean initRevalidation() {
+        if (!loaded || loading || error || revalidating || System.currentTimeMillis() < revalidationRetryTime)
+            return false;
+        revalidating = true;
+        return true;
+    }
+
+    /**
+     * indicate that revalidation of this tile has ended
+     */
+    public void finishRevalidation() {
+        revalidating = false;
+    }
+
+    /**
+     * @return {@code true} if this tile is currently being revalidated
+     */
+    public boolean isRevalidating() {
+        return revalidating;
+    }
+
+    /**
+     * Postpones the next revalidation of this expired tile, e.g. after revalidating it has failed.
+     * The expiry time sent by the server is kept.
+     * @param time time in milliseconds since the epoch before which the tile is not revalidated, {@code 0} to allow it at once
+     */
+    public void setRevalidationRetryTime(long time) {
+        revalidationRetryTime = time;
+    }
+
+    /**
+     * @return time in milliseconds since the epoch before which the tile is not revalidated, {@code 0} if none
+     */
+    public long getRevalidationRetryTime() {
+        return revalidationRetryTime;
+    }
+
     public String getStatus() {
         if (this.error)
             return "error";
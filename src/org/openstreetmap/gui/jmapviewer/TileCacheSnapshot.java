@@ -0,0 +1,205 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openstreetmap.gui.jmapviewer.interfaces.ICoordinate;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileCache;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileLoaderListener;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileSource;
+
+/**
+ * Saves the working set of a {@link JMapViewer} on shutdown and restores it on
+ * startup, so the first frame after a restart is painted from local data
+ * instead of {@link Tile#LOADING_IMAGE}s.
+ * <p>
+ * The snapshot holds the displayed position, zoom level and tile source, and
+ * the encoded image data and metadata of the tiles in a {@link MemoryTileCache},
+ * most recently used first. On restore the tiles are put into the cache right
+ * away in the loading state and decoded in parallel in the background, most
+ * recently used first; the map is repainted as tiles become available.
+ * <p>
+ * Only tiles retaining their encoded image data can be saved, see
+ * {@link TileController#setRetainEncodedData(boolean)}, which is enabled by
+ * {@link #restore(JMapViewer, File)}.
+ */
+public final class TileCacheSnapshot {
+
+    private static final Logger LOG = FeatureAdapter.getLogger(TileCacheSnapshot.class.getName());
+
+    /** "JMVS", marks the start of a snapshot file */
+    private static final int MAGIC = 0x4A4D5653;
+    private static final int VERSION = 1;
+
+    private TileCacheSnapshot() {
+        // Hide default constructor for utilities classes
+    }
+
+    /**
+     * Saves the position of the map and the tiles of its cache. Only tiles
+     * loaded from encoded image data are saved, and only if the cache is a
+     * {@link MemoryTileCache}.
+     * @param map the map
+     * @param file the snapshot file, replaced atomically
+     * @throws IOException if an I/O error occurs
+     */
+    public static void save(JMapViewer map, File file) throws IOException {
+        TileController controller = map.getTileController();
+        TileSource source = controller.getTileSource();
+        TileCache cache = controller.getTileCache();
+        List<Tile> tiles = cache instanceof MemoryTileCache ? ((MemoryTileCache) cache).getTiles() : new ArrayList<>();
+        ICoordinate position = map.getPosition();
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeUTF(source.getId());
+            out.writeDouble(position.getLat());
+            out.writeDouble(position.getLon());
+            out.writeByte(map.getZoom());
+            for (Tile tile : tiles) {
+                ByteBuffer data = tile.getEncodedData();
+                if (data == null || !tile.isLoaded() || tile.hasError() || !source.getId().equals(tile.getSource().getId()))
+                    continue;
+                Map<String, String> metadata = tile.getMetadata();
+                out.writeBoolean(true);
+                out.writeByte(tile.getZoom());
+                out.writeInt(tile.getXtile());
+                out.writeInt(tile.getYtile());
+                out.writeShort(metadata.size());
+                for (Entry<String, String> e : metadata.entrySet()) {
+                    out.writeUTF(e.getKey());
+                    out.writeUTF(e.getValue());
+                }
+                out.writeInt(data.remaining());
+                if (data.hasArray()) {
+                    out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+                } else {
+                    byte[] bytes = new byte[data.remaining()];
+                    data.get(bytes);
+                    out.write(bytes);
+                }
+            }
+            out.writeBoolean(false);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Restores a snapshot saved with {@link #save(JMapViewer, File)}, if it has been
+     * saved for the current tile source of the map: the map is moved to the saved
+     * position and the saved tiles are decoded in the background. In any case the
+     * tiles of the map retain their encoded image data from now on, so they can be saved.
+     * @param map the map
+     * @param file the snapshot file
+     * @return {@code true} if the snapshot has been restored
+     * @throws IOException if an I/O error occurs
+     */
+    public static boolean restore(JMapViewer map, File file) throws IOException {
+        TileController controller = map.getTileController();
+        // to save the tiles again
+        controller.setRetainEncodedData(true);
+        TileSource source = controller.getTileSource();
+        List<SavedTile> saved = new ArrayList<>();
+        double lat;
+        double lon;
+        int zoom;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION || !source.getId().equals(in.readUTF()))
+                return false;
+            lat = in.readDouble();
+            lon = in.readDouble();
+            zoom = in.readByte();
+            try {
+                while (in.readBoolean()) {
+                    int z = in.readByte();
+                    int x = in.readInt();
+                    int y = in.readInt();
+                    Tile tile = new Tile(source, x, y, z);
+                    tile.setRetainEncodedData(true);
+                    int count = in.readUnsignedShort();
+                    Map<String, String> metadata = new HashMap<>();
+                    for (int i = 0; i < count; i++) {
+                        metadata.put(in.readUTF(), in.readUTF());
+                    }
+                    byte[] data = new byte[in.readInt()];
+                    in.readFully(data);
+                    tile.getMetadata().putAll(metadata);
+                    saved.add(new SavedTile(tile, ByteBuffer.wrap(data)));
+                }
+            } catch (EOFException e) {
+                // truncated snapshot, restore the tiles read so far
+                LOG.log(Level.FINE, "Truncated tile cache snapshot " + file, e);
+            }
+        }
+        map.setDisplayPosition(new Coordinate(lat, lon), zoom);
+
+        TileCache cache = controller.getTileCache();
+        // add the least recently used tiles first, so they are evicted first
+        for (int i = saved.size() - 1; i >= 0; i--) {
+            Tile tile = saved.get(i).tile;
+            tile.initLoading();
+            cache.addTile(tile);
+        }
+        ExecutorService decoder = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+            Thread thread = new Thread(r, "TileCacheSnapshot decoder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (SavedTile s : saved) {
+            decoder.execute(() -> decode(s, map));
+        }
+        decoder.shutdown();
+        return true;
+    }
+
+    private static void decode(SavedTile saved, TileLoaderListener listener) {
+        Tile tile = saved.tile;
+        boolean success = false;
+        try {
+            tile.loadImage(saved.data);
+            success = tile.getImage() != null;
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "Failed decoding " + tile.getKey() + " from snapshot", e);
+        }
+        if (success) {
+            tile.finishLoading();
+        } else {
+            // load it from the tile source on the next repaint
+            tile.setImage(Tile.LOADING_IMAGE);
+            tile.loadingCanceled();
+        }
+        listener.tileLoadingFinished(tile, success);
+    }
+
+    private static final class SavedTile {
+        private final Tile tile;
+        private final ByteBuffer data;
+
+        private SavedTile(Tile tile, ByteBuffer data) {
+            this.tile = tile;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import org.openstreetmap.gui.jmapviewer.interfaces.TileCache;
+
+/**
+ * Statistics of a {@link TileCache}: hits, misses, tiles added on a miss,
+ * evictions with a histogram of the age of evicted tiles, and the memory held
+ * by the cached tile images.
+ * <p>
+ * The counters are {@link LongAdder}s, which are striped across threads, so
+ * recording is cheap enough to stay enabled in production. Reading the
+ * statistics while tiles are recorded may return slightly inconsistent values.
+ */
+public class TileCacheStats {
+
+    /**
+     * Number of buckets of the eviction age histogram
+     */
+    public static final int AGE_BUCKETS = 16;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder[] evictionAges = new LongAdder[AGE_BUCKETS];
+    private final LongSupplier bytesInUse;
+
+    /**
+     * Constructs a new {@code TileCacheStats}.
+     * @param bytesInUse supplies the memory held by the images of the cached tiles
+     */
+    public TileCacheStats(LongSupplier bytesInUse) {
+        this.bytesInUse = bytesInUse;
+        for (int i = 0; i < AGE_BUCKETS; i++) {
+            evictionAges[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records a lookup that found the tile in the cache.
+     */
+    public void recordHit() {
+        hits.increment();
+    }
+
+    /**
+     * Records a lookup that did not find the tile in the cache.
+     */
+    public void recordMiss() {
+        misses.increment();
+    }
+
+    /**
+     * Records a tile added to the cache that was not cached before, usually
+     * because it is going to be loaded after a miss.
+     */
+    public void recordLoad() {
+        loads.increment();
+    }
+
+    /**
+     * Records the eviction of a tile.
+     * @param ageNanos time the tile has been in the cache, in nanoseconds
+     */
+    public void recordEviction(long ageNanos) {
+        evictions.increment();
+        evictionAges[getAgeBucket(TimeUnit.NANOSECONDS.toSeconds(ageNanos))].increment();
+    }
+
+    /**
+     * Returns the bucket of the eviction age histogram for the age: bucket {@code 0}
+     * holds tiles evicted within the first second, bucket {@code i} tiles evicted
+     * after 2<sup>i-1</sup> to 2<sup>i</sup> seconds, the last bucket all older tiles.
+     * @param ageSeconds age of the evicted tile in seconds
+     * @return the bucket index
+     */
+    public static int getAgeBucket(long ageSeconds) {
+        int bucket = 64 - Long.numberOfLeadingZeros(Math.max(0, ageSeconds));
+        return Math.min(bucket, AGE_BUCKETS - 1);
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return ratio of lookups that found the tile, {@code 1} if there have been no lookups
+     */
+    public double getHitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 1 : (double) h / total;
+    }
+
+    public long getLoadCount() {
+        return loads.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return number of evicted tiles per age bucket, see {@link #getAgeBucket(long)}
+     */
+    public long[] getEvictionAgeHistogram() {
+        long[] histogram = new long[AGE_BUCKETS];
+        for (int i = 0; i < AGE_BUCKETS; i++) {
+            histogram[i] = evictionAges[i].sum();
+        }
+        return histogram;
+    }
+
+    /**
+     * @return memory held by the images of the cached tiles, or -1 if unknown
+     * @see TileCache#getBytesInUse()
+     */
+    public long getBytesInUse() {
+        return bytesInUse.getAsLong();
+    }
+
+    /**
+     * Resets all counters to zero.
+     */
+    public void reset() {
+        hits.reset();
+        misses.reset();
+        loads.reset();
+        evictions.reset();
+        for (LongAdder age : evictionAges) {
+            age.reset();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TileCacheStats[hits=" + getHitCount() + ", misses=" + getMissCount() + ", loads=" + getLoadCount()
+                + ", evictions=" + getEvictionCount() + ", bytesInUse=" + getBytesInUse() + ']';
+    }
+}
@@ -16,7 +16,19 @@ public class TileController {
     private TileLoader tileLoader;
     private TileCache tileCache;
     private TileSource tileSource;
+    private MissingTileCache missingTiles = new MissingTileCache();
+    /** number of tiles around the displayed ones whose jobs are kept when the map moves */
+    private int cancelMargin = 1;
+    /** whether new tiles retain their encoded image data */
+    private boolean retainEncodedData;
     TileLoaderListener listener;
+    /** listener of the tile loader, remembers missing tiles before notifying {@link #listener} */
+    private final TileLoaderListener loaderListener = (tile, success) -> {
+        if (MissingTileCache.isNoTile(tile)) {
+            missingTiles.markMissing(tile);
+        }
+        listener.tileLoadingFinished(tile, success);
+    };
     
     
     /**
@@ -26,12 +38,16 @@ public class TileController {
     public TileController(TileSource tileSource, TileCache tileCache, TileLoaderListener listener) {
         this.listener = listener;
         this.tileCache = tileCache;
+        tileCache.setTileLoaderListener(listener);
         this.setTileSource(tileSource);
     }
 
     /**
      * retrieves a tile from the cache. If the tile is not present in the cache
-     * a load job is added to the working queue of {@link TileLoader}.
+     * a load job is added to the working queue of {@link TileLoader}. If the
+     * tile is present but has expired, it is returned as is and a revalidation
+     * job is queued. No job is queued for tiles known to be missing from the
+     * tile source, see {@link #getMissingTileCache()}.
      *
      * @param tilex the X position of the tile
      * @param tiley the Y position of the tile
@@ -46,6 +62,7 @@ public class TileController {
         Tile tile = tileCache.getTile(tileSource, tilex, tiley, zoom);
         if (tile == null) {
             tile = new Tile(tileSource, tilex, tiley, zoom);
+            tile.setRetainEncodedData(retainEncodedData);
             tileCache.addTile(tile);
             tile.loadPlaceholderFromCache(tileCache);
         }
@@ -53,19 +70,86 @@ public class TileController {
             tile.loadPlaceholderFromCache(tileCache);
         }
         if (!tile.isLoaded()) {
-            if (tile.getLoadErrorCount() <= tileLoader.getMaxLoadRetries()) {
+            if (missingTiles.isMissing(tile)) {
+                tile.putValue("tile-info", MissingTileCache.NO_TILE);
+                tile.setError("No tile at this zoom level");
+                tile.finishLoading();
+            } else if (tile.getLoadErrorCount() <= tileLoader.getMaxLoadRetries()) {
                tileLoader.createTileLoaderJob(tile).startTileLoad();
             }
+        } else if (MissingTileCache.isNoTile(tile) && missingTiles.isExpired(tile)) {
+            // look again once the missing tile has expired, clearing the mark so it is queued once;
+            // tiles not remembered, e.g. with a time to live of 0, are not loaded again like any loaded tile
+            tile.putValue("tile-info", null);
+            tileLoader.createTileLoaderJob(tile).startTileLoad();
+        } else if (tile.isExpired() && tile.initRevalidation()) {
+            // keep showing the stale tile until it has been loaded again
+            tileLoader.createTileLoaderJob(tile).startRevalidation();
         }
         return tile;
     }
 
+    /**
+     * Tells the tile loader which part of the map is displayed, so tiles near
+     * the centre of the viewport are loaded first.
+     * @param tileX X coordinate of the centre of the viewport, in tiles at the zoom level
+     * @param tileY Y coordinate of the centre of the viewport, in tiles at the zoom level
+     * @param zoom displayed zoom level
+     * @see TileLoader#setViewport(double, double, int)
+     */
+    public void setViewport(double tileX, double tileY, int zoom) {
+        tileLoader.setViewport(tileX, tileY, zoom);
+    }
+
+    /**
+     * Cancels the jobs of tiles which are no longer displayed, keeping those within
+     * {@link #getCancelMargin()} tiles of the displayed ones.
+     * @param visible the displayed tiles
+     * @see TileLoader#cancelOutside(TileRange, int)
+     */
+    public void cancelOutside(TileRange visible) {
+        tileLoader.cancelOutside(visible, cancelMargin);
+    }
+
+    /**
+     * @return number of tiles around the displayed ones whose jobs are kept when the map moves
+     */
+    public int getCancelMargin() {
+        return cancelMargin;
+    }
+
+    /**
+     * Sets the number of tiles around the displayed ones whose jobs are kept when the map moves.
+     * @param cancelMargin number of tiles on each side
+     */
+    public void setCancelMargin(int cancelMargin) {
+        this.cancelMargin = cancelMargin;
+    }
+
+    /**
+     * @return {@code true} if new tiles retain their encoded image data
+     */
+    public boolean isRetainEncodedData() {
+        return retainEncodedData;
+    }
+
+    /**
+     * Sets whether new tiles retain their encoded image data, e.g. to save them in a {@link TileCacheSnapshot}.
+     * Caches and loaders that need the encoded image data enable it for their tiles themselves.
+     * @param retainEncodedData {@code true} if new tiles retain their encoded image data
+     * @see Tile#setRetainEncodedData(boolean)
+     */
+    public void setRetainEncodedData(boolean retainEncodedData) {
+        this.retainEncodedData = retainEncodedData;
+    }
+
     public TileCache getTileCache() {
         return tileCache;
     }
 
     public void setTileCache(TileCache tileCache) {
         this.tileCache = tileCache;
+        tileCache.setTileLoaderListener(listener);
     }
     
     public TileSource getTileSource() {
@@ -74,7 +158,23 @@ public class TileController {
 
     public void setTileSource(TileSource tileSource) {
         this.tileSource = tileSource;
-        this.tileLoader = tileSource.getTileLoader(this.listener);
+        this.tileLoader = tileSource.getTileLoader(loaderListener);
+    }
+
+    /**
+     * @return the cache of tiles known to be missing from their tile source
+     */
+    public MissingTileCache getMissingTileCache() {
+        return missingTiles;
+    }
+
+    /**
+     * Replaces the cache of tiles known to be missing from their tile source,
+     * e.g. to share it between several maps.
+     * @param missingTiles the cache of missing tiles
+     */
+    public void setMissingTileCache(MissingTileCache missingTiles) {
+        this.missingTiles = missingTiles;
     }
 
     
@@ -28,6 +28,22 @@ public class TileRange {
         this.zoom = zoom;
     }
 
+    /**
+     * Constructs a new {@code TileRange}.
+     * @param minX lowest X index, inclusive
+     * @param minY lowest Y index, inclusive
+     * @param maxX highest X index, inclusive
+     * @param maxY highest Y index, inclusive
+     * @param zoom zoom level
+     */
+    public TileRange(int minX, int minY, int maxX, int maxY, int zoom) {
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+        this.zoom = zoom;
+    }
+
     /**
      * Constructs a new {@code TileRange}.
      * @param r existing tile range to copy
@@ -53,5 +69,16 @@ public class TileRange {
         int ySpan = maxY - minY + 1;
         return xSpan * ySpan;
     }
-}
 
+    /**
+     * Determines whether the tile is within this range.
+     * @param tile the tile
+     * @param margin number of tiles the range is extended by on each side
+     * @return {@code true} if the tile has the zoom level of this range and lies within it
+     */
+    public boolean contains(Tile tile, int margin) {
+        return tile.getZoom() == zoom
+            && tile.getXtile() >= minX - margin && tile.getXtile() <= maxX + margin
+            && tile.getYtile() >= minY - margin && tile.getYtile() <= maxY + margin;
+    }
+}
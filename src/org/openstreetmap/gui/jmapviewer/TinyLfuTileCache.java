@@ -0,0 +1,215 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openstreetmap.gui.jmapviewer.interfaces.TileCache;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileSource;
+
+/**
+ * {@link TileCache} implementation that evicts like a {@link MemoryTileCache},
+ * but only lets a new tile displace a cached one if the new tile has been
+ * accessed more often recently (W-TinyLFU).
+ * <p>
+ * New tiles enter a small LRU "window" of 1% of the cache size. A tile falling
+ * out of the window is compared with the least recently used tile of the main
+ * LRU region, using the access frequencies estimated by a {@link FrequencySketch},
+ * and the less frequently used of both is evicted. The window lets bursts of
+ * new tiles in, while tiles seen only once, e.g. during a long pan at high
+ * zoom, cannot flush the frequently viewed areas out of the main region.
+ * <p>
+ * The frequency of a tile counts how often it has been requested: once when it
+ * is missing, once when it is added, and once whenever it comes into view again.
+ * Repainting a tile that stays visible does not count, so tiles shown for a long
+ * time, or repainted often while their neighbours load, do not appear frequently
+ * used. The painted frames are told apart by {@link #setVisibleTileCount(int)}.
+ */
+public class TinyLfuTileCache extends MemoryTileCache {
+
+    /**
+     * Tiles that have been added recently, the inherited {@link #lruTiles} form the main region
+     */
+    protected final CacheLinkedListElement windowTiles = new CacheLinkedListElement();
+
+    protected final FrequencySketch sketch;
+
+    /**
+     * Number of the painted frame, advanced by {@link #setVisibleTileCount(int)}
+     */
+    private int frame;
+
+    /**
+     * Constructs a new {@code TinyLfuTileCache} of 200 tiles.
+     */
+    public TinyLfuTileCache() {
+        this(200);
+    }
+
+    /**
+     * Constructs a new {@code TinyLfuTileCache}.
+     * @param cacheSize maximum number of tiles
+     */
+    public TinyLfuTileCache(int cacheSize) {
+        super(cacheSize);
+        sketch = new FrequencySketch(cacheSize);
+    }
+
+    @Override
+    public synchronized void addTile(Tile tile) {
+        long key = tile.getPackedKey();
+        TinyLfuEntry entry = (TinyLfuEntry) createCacheEntry(tile);
+        entry.frame = frame;
+        TinyLfuEntry old = (TinyLfuEntry) hash.put(key, entry);
+        if (old == null) {
+            sketch.increment(key);
+            entry.inWindow = true;
+            windowTiles.addFirst(entry);
+            stats.recordLoad();
+        } else {
+            entry.inWindow = old.inWindow;
+            listOf(old).replaceEntry(old, entry);
+            bytesInUse -= old.weight;
+            if (old.tile != tile) {
+                old.tile.releaseImage();
+            }
+        }
+        updateWeight(entry);
+        removeOldEntries();
+    }
+
+    @Override
+    public synchronized Tile getTile(TileSource source, int x, int y, int z) {
+        long key = Tile.getPackedKey(source, x, y, z);
+        TinyLfuEntry entry = (TinyLfuEntry) hash.get(key);
+        if (entry == null || !entry.tile.hasSource(source)) {
+            sketch.increment(key);
+            stats.recordMiss();
+            return null;
+        }
+        stats.recordHit();
+        if (frame - entry.frame > 1) {
+            // not painted in the previous frame, the tile comes into view again
+            sketch.increment(key);
+        }
+        entry.frame = frame;
+        listOf(entry).moveElementToFirstPos(entry);
+        if (entry.tile.getImage() != entry.weighedImage && updateWeight(entry) && isOverBudget()) {
+            removeOldEntries();
+        }
+        return entry.tile;
+    }
+
+    /**
+     * Starts a new painted frame.
+     */
+    @Override
+    public synchronized void setVisibleTileCount(int count) {
+        frame++;
+    }
+
+    private CacheLinkedListElement listOf(CacheEntry entry) {
+        return ((TinyLfuEntry) entry).inWindow ? windowTiles : lruTiles;
+    }
+
+    /**
+     * @return maximum number of tiles in the window region
+     */
+    protected int getWindowSize() {
+        return Math.max(1, cacheSize / 100);
+    }
+
+    /**
+     * Moves tiles falling out of the window to the main region if they are used
+     * more frequently than its least recently used tile, then evicts down to the
+     * cache size and memory budget.
+     */
+    @Override
+    protected synchronized void removeOldEntries() {
+        int windowSize = getWindowSize();
+        int mainSize = Math.max(0, cacheSize - windowSize);
+        while (windowTiles.getElementCount() > windowSize) {
+            TinyLfuEntry candidate = (TinyLfuEntry) windowTiles.getLastElement();
+            if (lruTiles.getElementCount() >= mainSize) {
+                CacheEntry victim = lruTiles.getLastElement();
+                if (victim == null || sketch.frequency(candidate.tile.getPackedKey()) <= sketch.frequency(victim.tile.getPackedKey())) {
+                    removeEntry(candidate);
+                    continue;
+                }
+                removeEntry(victim);
+            }
+            windowTiles.removeEntry(candidate);
+            candidate.inWindow = false;
+            lruTiles.addFirst(candidate);
+        }
+        // the main region may have been shrunk by setCacheSize
+        while (hash.size() > cacheSize && lruTiles.getElementCount() > 0) {
+            removeEntry(lruTiles.getLastElement());
+        }
+        while (isOverBudget() && hash.size() > 1) {
+            removeEntry(lruTiles.getElementCount() > 0 ? lruTiles.getLastElement() : windowTiles.getLastElement());
+        }
+    }
+
+    @Override
+    protected synchronized void removeEntry(CacheEntry entry) {
+        hash.remove(entry.tile.getPackedKey());
+        listOf(entry).removeEntry(entry);
+        bytesInUse -= entry.weight;
+        entry.tile.releaseImage();
+        stats.recordEviction(System.nanoTime() - entry.addedNanos);
+    }
+
+    /**
+     * Retention policies are not supported, the admission policy keeps frequently used tiles instead.
+     */
+    @Override
+    protected boolean isRetained(Tile tile) {
+        return false;
+    }
+
+    @Override
+    protected CacheEntry createCacheEntry(Tile tile) {
+        return new TinyLfuEntry(tile);
+    }
+
+    @Override
+    public synchronized void clear() {
+        hash.forEachValue(entry -> entry.tile.releaseImage());
+        hash.clear();
+        lruTiles.clear();
+        windowTiles.clear();
+        bytesInUse = 0;
+    }
+
+    /**
+     * @return the cached tiles, the window region first
+     */
+    @Override
+    public synchronized List<Tile> getTiles() {
+        List<Tile> tiles = new ArrayList<>(hash.size());
+        windowTiles.addTilesTo(tiles);
+        lruTiles.addTilesTo(tiles);
+        return tiles;
+    }
+
+    @Override
+    public synchronized void setCacheSize(int cacheSize) {
+        sketch.ensureCapacity(cacheSize);
+        this.cacheSize = cacheSize;
+        removeOldEntries();
+    }
+
+    /**
+     * Cache entry that knows whether it is in the window or in the main region.
+     */
+    protected static class TinyLfuEntry extends CacheEntry {
+        protected boolean inWindow;
+        /** frame the tile has been requested in last */
+        protected int frame;
+
+        protected TinyLfuEntry(Tile tile) {
+            super(tile);
+        }
+    }
+}
@@ -0,0 +1,273 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.openstreetmap.gui.jmapviewer.interfaces.TileCache;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileLoaderListener;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileSource;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileWeigher;
+
+/**
+ * {@link TileCache} implementation with two tiers: a small LRU of decoded
+ * tiles (the "hot" tier, managed like a {@link MemoryTileCache}) and a much
+ * larger LRU of the encoded image data of tiles evicted from the hot tier
+ * (the "warm" tier), bounded by bytes.
+ * <p>
+ * A tile found in the warm tier is promoted back to the hot tier and decoded
+ * again on a background thread, so revisiting a recently seen area does not
+ * load the tile from its source again. The {@link TileLoaderListener} set by
+ * the {@link TileController} is notified when decoding has finished.
+ */
+public class TwoTierTileCache extends MemoryTileCache {
+
+    private static final ExecutorService decoder = Executors.newFixedThreadPool(2, r -> {
+        Thread thread = new Thread(r, "TwoTierTileCache decoder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Encoded image data of tiles evicted from the hot tier, in LRU order
+     */
+    protected final LinkedHashMap<Long, WarmEntry> warmTiles = new LinkedHashMap<>(256, 0.75f, true);
+
+    /**
+     * Maximum number of bytes of encoded image data in the warm tier
+     */
+    protected long maxWarmBytes;
+
+    /**
+     * Number of bytes of encoded image data in the warm tier
+     */
+    protected long warmBytes;
+
+    private volatile TileLoaderListener listener;
+
+    /** number of times the cache has been cleared, guarded by {@code this} */
+    private long clearCount;
+
+    /**
+     * Constructs a new {@code TwoTierTileCache} holding 100 decoded tiles and
+     * 64 MB of encoded image data.
+     */
+    public TwoTierTileCache() {
+        this(100, 64L * 1024 * 1024);
+    }
+
+    /**
+     * Constructs a new {@code TwoTierTileCache}.
+     * @param hotCacheSize maximum number of decoded tiles
+     * @param maxWarmBytes maximum number of bytes of encoded image data
+     */
+    public TwoTierTileCache(int hotCacheSize, long maxWarmBytes) {
+        super(hotCacheSize, 0, TileWeigher.RASTER_BYTES);
+        this.maxWarmBytes = maxWarmBytes;
+    }
+
+    @Override
+    public void setTileLoaderListener(TileLoaderListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public synchronized Tile getTile(TileSource source, int x, int y, int z) {
+        Tile tile = super.getTile(source, x, y, z);
+        if (tile != null)
+            return tile;
+        long key = Tile.getPackedKey(source, x, y, z);
+        WarmEntry warm = warmTiles.get(key);
+        if (warm == null || !Objects.equals(warm.sourceId, source.getId()))
+            return null;
+        warmTiles.remove(key);
+        warmBytes -= warm.data.remaining();
+        tile = new Tile(source, x, y, z);
+        tile.initLoading();
+        addTile(tile);
+        decoder.execute(new DecodeTask(tile, warm, clearCount));
+        return tile;
+    }
+
+    /**
+     * Adds the tile, which retains its encoded image data from now on, so it can be demoted to the warm tier.
+     */
+    @Override
+    public synchronized void addTile(Tile tile) {
+        tile.setRetainEncodedData(true);
+        super.addTile(tile);
+    }
+
+    /**
+     * Demotes the evicted tile to the warm tier, if its encoded image data is known.
+     */
+    @Override
+    protected synchronized void removeEntry(CacheEntry entry) {
+        Tile tile = entry.tile;
+        ByteBuffer data = tile.getEncodedData();
+        boolean demote = data != null && tile.isLoaded() && !tile.hasError() && data.remaining() <= maxWarmBytes;
+        super.removeEntry(entry);
+        if (demote) {
+            putWarm(tile.getPackedKey(), new WarmEntry(tile.getSource().getId(), data, tile.getMetadata()));
+        }
+    }
+
+    /**
+     * Adds the encoded image data of a tile to the warm tier, evicting the least recently used ones beyond the limit.
+     */
+    private void putWarm(long key, WarmEntry warm) {
+        WarmEntry old = warmTiles.put(key, warm);
+        if (old != null) {
+            warmBytes -= old.data.remaining();
+        }
+        warmBytes += warm.data.remaining();
+        Iterator<WarmEntry> it = warmTiles.values().iterator();
+        while (warmBytes > maxWarmBytes && it.hasNext()) {
+            warmBytes -= it.next().data.remaining();
+            it.remove();
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        super.clear();
+        warmTiles.clear();
+        warmBytes = 0;
+        clearCount++;
+    }
+
+    /**
+     * Memory held by the decoded images of the hot tier and the encoded image data of the warm tier.
+     */
+    @Override
+    public synchronized long getBytesInUse() {
+        return super.getBytesInUse() + warmBytes;
+    }
+
+    /**
+     * @return number of tiles in the warm tier
+     */
+    public synchronized int getWarmTileCount() {
+        return warmTiles.size();
+    }
+
+    /**
+     * @return number of bytes of encoded image data in the warm tier
+     */
+    public synchronized long getWarmBytes() {
+        return warmBytes;
+    }
+
+    /**
+     * @return maximum number of bytes of encoded image data in the warm tier
+     */
+    public synchronized long getMaxWarmBytes() {
+        return maxWarmBytes;
+    }
+
+    /**
+     * Changes the maximum number of bytes of encoded image data in the warm tier.
+     * @param maxWarmBytes new maximum number of bytes
+     */
+    public synchronized void setMaxWarmBytes(long maxWarmBytes) {
+        this.maxWarmBytes = maxWarmBytes;
+        Iterator<WarmEntry> it = warmTiles.values().iterator();
+        while (warmBytes > maxWarmBytes && it.hasNext()) {
+            warmBytes -= it.next().data.remaining();
+            it.remove();
+        }
+    }
+
+    /**
+     * Encoded image data and metadata of a tile in the warm tier.
+     */
+    protected static class WarmEntry {
+        /** id of the tile source, to verify the entry found by the packed key */
+        protected final String sourceId;
+        protected final ByteBuffer data;
+        protected final Map<String, String> metadata;
+
+        protected WarmEntry(String sourceId, ByteBuffer data, Map<String, String> metadata) {
+            this.sourceId = sourceId;
+            this.data = data;
+            this.metadata = metadata.isEmpty() ? null : new HashMap<>(metadata);
+        }
+    }
+
+    /**
+     * Decodes a promoted tile.
+     */
+    private final class DecodeTask implements Runnable {
+        private final Tile tile;
+        private final WarmEntry warm;
+        /** {@link #clearCount} when the tile has been promoted */
+        private final long promotedClearCount;
+
+        DecodeTask(Tile tile, WarmEntry warm, long promotedClearCount) {
+            this.tile = tile;
+            this.warm = warm;
+            this.promotedClearCount = promotedClearCount;
+        }
+
+        private boolean isCached() {
+            CacheEntry entry = hash.get(tile.getPackedKey());
+            return entry != null && entry.tile == tile;
+        }
+
+        @Override
+        public void run() {
+            synchronized (TwoTierTileCache.this) {
+                if (!isCached()) {
+                    // evicted or cleared in the meantime, nothing would release the decoded image
+                    tile.loadingCanceled();
+                    return;
+                }
+            }
+            boolean success = false;
+            try {
+                if (warm.metadata != null) {
+                    tile.getMetadata().putAll(warm.metadata);
+                }
+                tile.loadImage(warm.data);
+                success = tile.getImage() != null;
+                if (!success) {
+                    tile.setError("Failed to decode cached tile");
+                }
+            } catch (IOException e) {
+                tile.setError(e);
+            } finally {
+                finish(success);
+            }
+        }
+
+        private void finish(boolean success) {
+            synchronized (TwoTierTileCache.this) {
+                if (!isCached()) {
+                    // evicted while decoding, when it could not be demoted yet, so put its data back
+                    tile.releaseImage();
+                    tile.loadingCanceled();
+                    long key = tile.getPackedKey();
+                    if (clearCount == promotedClearCount && hash.get(key) == null && !warmTiles.containsKey(key)) {
+                        putWarm(key, warm);
+                    }
+                    return;
+                }
+                // evicted from now on like any loaded tile
+                tile.finishLoading();
+            }
+            TileLoaderListener l = listener;
+            if (l != null) {
+                l.tileLoadingFinished(tile, success);
+            } else {
+                tile.setLoaded(success);
+            }
+        }
+    }
+}
@@ -3,6 +3,7 @@ package org.openstreetmap.gui.jmapviewer.interfaces;
 
 import org.openstreetmap.gui.jmapviewer.JMapViewer;
 import org.openstreetmap.gui.jmapviewer.Tile;
+import org.openstreetmap.gui.jmapviewer.TileCacheStats;
 
 /**
  * Implement this interface for creating your custom tile cache for
@@ -53,4 +54,41 @@ public interface TileCache {
      * @return maximum number of tiles in cache
      */
     int getCacheSize();
+
+    /**
+     * Memory held by the images of the cached tiles.
+     * @return number of bytes in use, or -1 if the implementation does not track memory
+     * @see TileWeigher
+     */
+    default long getBytesInUse() {
+        return -1;
+    }
+
+    /**
+     * Statistics of this cache, e.g. to tell whether slow panning comes from cache misses or slow loads.
+     * @return the statistics, or {@code null} if the implementation does not record statistics
+     */
+    default TileCacheStats getStats() {
+        return null;
+    }
+
+    /**
+     * Informs the cache about the number of tiles currently visible in the map, so it can
+     * size itself to hold them. Called by the {@link JMapViewer} whenever it paints.
+     * The default implementation does nothing.
+     * @param count number of visible tiles
+     */
+    default void setVisibleTileCount(int count) {
+        // caches of fixed size ignore the viewport
+    }
+
+    /**
+     * Sets the listener to be notified about tiles the cache completes on its own, e.g. by
+     * decoding image data it retained. Called by the {@link org.openstreetmap.gui.jmapviewer.TileController}
+     * this cache is used by. The default implementation does nothing.
+     * @param listener the listener, usually the {@link JMapViewer}
+     */
+    default void setTileLoaderListener(TileLoaderListener listener) {
+        // caches that only hold tiles do not complete them
+    }
 }
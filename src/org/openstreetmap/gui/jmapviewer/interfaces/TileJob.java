@@ -1,6 +1,8 @@
 // License: GPL. For details, see Readme.txt file.
 package org.openstreetmap.gui.jmapviewer.interfaces;
 
+import org.openstreetmap.gui.jmapviewer.Tile;
+
 /**
  * Interface for implementing a tile loading job. Tiles are usually loaded via HTTP
  * or from a file.
@@ -19,4 +21,26 @@ public interface TileJob extends Runnable {
      * @param force true if the load should skip all the caches (local &amp; remote)
      */
     void startTileLoad(boolean force);
+
+    /**
+     * submits a low priority job to backend that loads an expired tile again while it
+     * stays loaded and displayed. The tile has been marked with {@link Tile#initRevalidation()};
+     * implementations call {@link Tile#finishRevalidation()} when done.
+     * <p>
+     * The default implementation does nothing, so the tile is kept as is.
+     */
+    default void startRevalidation() {
+        // tile loaders without revalidation support keep expired tiles
+    }
+
+    /**
+     * Stops a running load of a tile that is no longer displayed, e.g. by closing its
+     * connection. The tile is left neither loading nor loaded, so it is loaded again
+     * when it is displayed again.
+     * <p>
+     * The default implementation does nothing, so the load completes.
+     */
+    default void cancel() {
+        // the load completes and the tile is kept in the cache
+    }
 }
@@ -2,6 +2,7 @@
 package org.openstreetmap.gui.jmapviewer.interfaces;
 
 import org.openstreetmap.gui.jmapviewer.Tile;
+import org.openstreetmap.gui.jmapviewer.TileRange;
 
 /**
  * Interface for implementing a tile loader. Tiles are usually loaded via HTTP
@@ -27,6 +28,27 @@ public interface TileLoader {
      */
     void cancelOutstandingTasks();
 
+    /**
+     * Tells the loader which part of the map is displayed, so it can load the
+     * tiles near the centre of the viewport first. Called on every repaint.
+     * @param tileX X coordinate of the centre of the viewport, in tiles at the zoom level
+     * @param tileY Y coordinate of the centre of the viewport, in tiles at the zoom level
+     * @param zoom displayed zoom level
+     */
+    default void setViewport(double tileX, double tileY, int zoom) {
+        // loading order is not affected by default
+    }
+
+    /**
+     * Cancels the queued and running jobs of tiles outside the range, e.g. tiles
+     * which are no longer displayed after the map has been moved or zoomed.
+     * @param range the tiles to keep loading, any tile of another zoom level is cancelled
+     * @param margin number of tiles the range is extended by on each side
+     */
+    default void cancelOutside(TileRange range, int margin) {
+        // jobs of tiles no longer displayed complete
+    }
+
     /**
      * Determines whether this {@link TileLoader} has tasks which have not completed.
      * @return whether this {@link TileLoader} has tasks which have not completed. This answer may well be
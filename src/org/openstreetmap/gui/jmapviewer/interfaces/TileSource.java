@@ -55,6 +55,11 @@ public interface TileSource extends Attributed {
      * Unlike the name it has to be unique and has to consist only of characters
      * valid for filenames.
      *
+     * Tiles are keyed by an index of the id, see {@link org.openstreetmap.gui.jmapviewer.Tile#getPackedKey()}.
+     * The first 16383 distinct ids of a process get an index of their own, further ids share
+     * indexes, which makes lookups compare the ids as well; the number of distinct ids should
+     * therefore be bounded, e.g. not depend on the displayed area.
+     *
      * @return the id
      */
     String getId();
@@ -0,0 +1,38 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer.interfaces;
+
+import java.io.IOException;
+
+import org.openstreetmap.gui.jmapviewer.Tile;
+
+/**
+ * Persistent storage for the encoded image data and metadata of tiles,
+ * consulted by a caching {@link TileLoader} before the tile is loaded from
+ * its source.
+ */
+public interface TileStore {
+
+    /**
+     * Loads the stored image data and metadata into the tile.
+     * @param tile the tile to load
+     * @return {@code true} if the tile has been found and loaded,
+     *         {@code false} if the store does not hold the tile
+     * @throws IOException if the stored tile cannot be read or decoded
+     */
+    boolean load(Tile tile) throws IOException;
+
+    /**
+     * Stores the encoded image data ({@link Tile#getEncodedData()}) and
+     * metadata of a loaded tile. Implementations may write asynchronously,
+     * tiles without encoded image data are ignored.
+     * @param tile the tile to store
+     */
+    void store(Tile tile);
+
+    /**
+     * Removes all tiles of the given source from the store.
+     * @param source the tile source
+     * @param controller receives progress and may cancel, can be {@code null}
+     */
+    void clear(TileSource source, TileClearController controller);
+}
@@ -0,0 +1,41 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer.interfaces;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+
+import org.openstreetmap.gui.jmapviewer.Tile;
+
+/**
+ * Computes the memory weight of a {@link Tile}, used by {@link TileCache}
+ * implementations that are bounded by memory instead of by tile count.
+ */
+@FunctionalInterface
+public interface TileWeigher {
+
+    /**
+     * Weighs the tile by the size of the raster behind its current image.
+     * The shared {@link Tile#LOADING_IMAGE} and {@link Tile#ERROR_IMAGE}
+     * weigh nothing, as they are not owned by any tile.
+     */
+    TileWeigher RASTER_BYTES = tile -> rasterBytes(tile.getImage());
+
+    /**
+     * Returns the weight of the tile.
+     * @param tile the tile to weigh
+     * @return weight of the tile in bytes, never negative
+     */
+    long weigh(Tile tile);
+
+    /**
+     * Returns the number of bytes held by the data buffer of the image.
+     * @param image the image, may be {@code null}
+     * @return size of the image raster in bytes
+     */
+    static long rasterBytes(BufferedImage image) {
+        if (image == null || image == Tile.LOADING_IMAGE || image == Tile.ERROR_IMAGE)
+            return 0;
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+}
@@ -9,6 +9,7 @@ import java.util.Map.Entry;
 
 import org.openstreetmap.gui.jmapviewer.interfaces.TileLoader;
 import org.openstreetmap.gui.jmapviewer.interfaces.TileLoaderListener;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileStore;
 
 /**
  * Class generalizing all tile based tile sources
@@ -23,6 +24,10 @@ public abstract class AbstractMapService extends AbstractMercatorTileSource {
     protected boolean modTileFeatures;
     protected int maxZoom;
     protected int minZoom;
+    /** persistent store consulted before tiles are loaded from the service, can be {@code null} */
+    protected TileStore tileStore;
+    /** whether tiles are loaded with asynchronous requests, see {@link AsyncMapServiceLoader} */
+    protected boolean asyncLoading;
 
     /**
      * Creates an instance based on TileSource information
@@ -112,9 +117,46 @@ public abstract class AbstractMapService extends AbstractMercatorTileSource {
     }
  
     
+    /**
+     * @return persistent store consulted before tiles are loaded from the service, or {@code null}
+     */
+    public TileStore getTileStore() {
+        return tileStore;
+    }
+
+    /**
+     * Sets a persistent store (e.g. a {@link org.openstreetmap.gui.jmapviewer.DiskTileStore}) that is
+     * consulted before tiles are loaded from the service, and that receives all loaded tiles.
+     * Takes effect for tile loaders created afterwards.
+     * @param tileStore the store, or {@code null} to always load tiles from the service
+     */
+    public void setTileStore(TileStore tileStore) {
+        this.tileStore = tileStore;
+    }
+
+    /**
+     * Loads tiles with asynchronous requests of the shared {@code java.net.http.HttpClient},
+     * multiplexed over HTTP/2 where the server supports it, instead of a blocking connection
+     * per tile. Has no effect before Java 11. Takes effect for tile loaders created afterwards.
+     * @param asyncLoading {@code true} to load tiles with asynchronous requests
+     * @see AsyncMapServiceLoader
+     */
+    public void setAsyncLoading(boolean asyncLoading) {
+        this.asyncLoading = asyncLoading;
+    }
+
+    /**
+     * @return {@code true} if tiles are loaded with asynchronous requests
+     */
+    public boolean isAsyncLoading() {
+        return asyncLoading && AsyncMapServiceLoader.isSupported();
+    }
+
     @Override
     public TileLoader getTileLoader(TileLoaderListener listener) {
-        return new MapServiceLoader(this, listener);
+        MapServiceLoader loader = isAsyncLoading()
+                ? new AsyncMapServiceLoader(this, listener) : new MapServiceLoader(this, listener);
+        return tileStore == null ? loader : new CachingTileLoader(tileStore, loader);
     }
 
 }
@@ -1,9 +1,13 @@
 // License: GPL. For details, see Readme.txt file.
 package org.openstreetmap.gui.jmapviewer.tilesources;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadPoolExecutor;
 
+import org.openstreetmap.gui.jmapviewer.Tile;
+import org.openstreetmap.gui.jmapviewer.TileRange;
 import org.openstreetmap.gui.jmapviewer.interfaces.TileLoader;
 import org.openstreetmap.gui.jmapviewer.interfaces.TileLoaderListener;
 
@@ -15,12 +19,185 @@ import org.openstreetmap.gui.jmapviewer.interfaces.TileLoaderListener;
  */
 public abstract class AbstractTileLoader implements TileLoader {
 
-    protected static final ThreadPoolExecutor jobDispatcher = (ThreadPoolExecutor) Executors.newFixedThreadPool(8);
+    /**
+     * Default number of concurrent connections to a remote host
+     */
+    private static volatile int connectionsPerHost = 8;
+
+    /**
+     * Number of concurrent connections of hosts with an explicit setting
+     */
+    private static final Map<String, Integer> HOST_CONNECTIONS = new ConcurrentHashMap<>();
+
+    /**
+     * Schedulers of remote hosts, shared by all loaders of a host
+     */
+    private static final Map<String, TileJobScheduler> HOST_DISPATCHERS = new ConcurrentHashMap<>();
+
+    /**
+     * Limiters of the connections to remote hosts, shared by all loaders of a host
+     */
+    private static final Map<String, ConnectionLimiter> HOST_LIMITERS = new ConcurrentHashMap<>();
+
+    /**
+     * Circuit breakers of remote hosts, shared by all loaders of a host
+     */
+    private static final Map<String, HostCircuitBreaker> HOST_BREAKERS = new ConcurrentHashMap<>();
+
+    /**
+     * Adaptive limits of the connections to remote hosts, shared by all loaders of a host
+     */
+    private static final Map<String, AdaptiveConcurrencyLimit> HOST_CONCURRENCY = new ConcurrentHashMap<>();
+
+    /**
+     * Number of threads of a host scheduler running on virtual threads; the connections
+     * are bounded by the {@link ConnectionLimiter} of the host
+     */
+    private static final int VIRTUAL_THREADS_PER_HOST = 256;
+
+    private static volatile boolean virtualThreads;
+
+    private static volatile boolean adaptiveConcurrency;
+
+    /**
+     * Runs the tile jobs of this loader, tiles near the centre of the displayed part of the map first.
+     * Loaders of local sources have their own scheduler, loaders of remote sources share the one of their host.
+     */
+    protected final TileJobScheduler jobDispatcher;
+
+    /**
+     * Runs revalidations of expired tiles, with low thread priority so they do not compete with loading missing tiles
+     */
+    protected static final ThreadPoolExecutor revalidationDispatcher = (ThreadPoolExecutor) Executors.newFixedThreadPool(2, r -> {
+        Thread thread = new Thread(r, "Tile revalidation");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
 
     protected TileLoaderListener listener;
 
+    /**
+     * Constructs a tile loader with its own scheduler, running as many jobs as there are processors.
+     * @param listener the listener notified when tiles have been loaded
+     */
     public AbstractTileLoader(TileLoaderListener listener) {
+        this(listener, new TileJobScheduler("Tile loader", Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Constructs a tile loader.
+     * @param listener the listener notified when tiles have been loaded
+     * @param jobDispatcher the scheduler running the tile jobs, see {@link #getHostDispatcher(String)}
+     */
+    protected AbstractTileLoader(TileLoaderListener listener, TileJobScheduler jobDispatcher) {
         this.listener = listener;
+        this.jobDispatcher = jobDispatcher;
+    }
+
+    /**
+     * Returns the scheduler of a remote host, creating it if needed.
+     * @param host the host, e.g. {@code tile.openstreetmap.org}
+     * @return the scheduler shared by all loaders of the host
+     */
+    protected static TileJobScheduler getHostDispatcher(String host) {
+        return HOST_DISPATCHERS.computeIfAbsent(host, h -> {
+            TileJobScheduler dispatcher = new TileJobScheduler("Tile loader " + h, getConnections(h));
+            configureHost(h, dispatcher);
+            return dispatcher;
+        });
+    }
+
+    /**
+     * Returns the limiter of the connections to a remote host, creating it if needed.
+     * @param host the host, e.g. {@code tile.openstreetmap.org}
+     * @return the limiter shared by all loaders of the host
+     */
+    protected static ConnectionLimiter getHostLimiter(String host) {
+        return HOST_LIMITERS.computeIfAbsent(host, h -> new ConnectionLimiter(getConnections(h)));
+    }
+
+    /**
+     * Returns the circuit breaker of a remote host, creating it if needed.
+     * @param host the host, e.g. {@code tile.openstreetmap.org}
+     * @return the circuit breaker shared by all loaders of the host
+     */
+    public static HostCircuitBreaker getHostBreaker(String host) {
+        return HOST_BREAKERS.computeIfAbsent(host, HostCircuitBreaker::new);
+    }
+
+    /**
+     * Returns the adaptive limit of the connections to a remote host, creating it if needed.
+     * Its latency and error rate are measured even while adaptive concurrency is disabled.
+     * @param host the host, e.g. {@code tile.openstreetmap.org}
+     * @return the adaptive limit shared by all loaders of the host
+     * @see #setAdaptiveConcurrency(boolean)
+     */
+    public static AdaptiveConcurrencyLimit getHostConcurrencyLimit(String host) {
+        return HOST_CONCURRENCY.computeIfAbsent(host, h -> new AdaptiveConcurrencyLimit(getHostLimiter(h)));
+    }
+
+    private static int getConnections(String host) {
+        return HOST_CONNECTIONS.getOrDefault(host, connectionsPerHost);
+    }
+
+    /**
+     * Applies the number of connections and the thread mode to the scheduler and limiter of a host.
+     */
+    private static void configureHost(String host, TileJobScheduler dispatcher) {
+        int connections = getConnections(host);
+        getHostLimiter(host).setLimit(connections);
+        AdaptiveConcurrencyLimit adaptive = getHostConcurrencyLimit(host);
+        adaptive.setEnabled(adaptiveConcurrency);
+        // threads beyond the limit of the connections wait for the limiter
+        int threads = adaptiveConcurrency ? Math.max(connections, adaptive.getMaxLimit()) : connections;
+        if (virtualThreads && dispatcher.setVirtualThreads(true)) {
+            dispatcher.setThreads(Math.max(threads, VIRTUAL_THREADS_PER_HOST));
+        } else {
+            dispatcher.setVirtualThreads(false);
+            dispatcher.setThreads(threads);
+        }
+    }
+
+    /**
+     * Adjusts the number of concurrent connections to each remote host to its observed
+     * latency and error rate, see {@link AdaptiveConcurrencyLimit}. The number set by
+     * {@link #setConcurrentConnections(String, int)} is the starting point, and is
+     * restored when adaptive concurrency is disabled.
+     * @param enabled {@code true} to adjust the number of connections
+     */
+    public static void setAdaptiveConcurrency(boolean enabled) {
+        adaptiveConcurrency = enabled;
+        HOST_DISPATCHERS.forEach(AbstractTileLoader::configureHost);
+    }
+
+    /**
+     * @return {@code true} if the number of concurrent connections to remote hosts is adjusted to their latency
+     */
+    public static boolean isAdaptiveConcurrency() {
+        return adaptiveConcurrency;
+    }
+
+    /**
+     * Runs the jobs of loaders of remote sources on virtual threads, so a high-latency host can have
+     * many more requests waiting than platform threads would allow. The number of concurrent
+     * connections to each host stays bounded by {@link #setConcurrentConnections(String, int)}.
+     * @param enabled {@code true} for virtual threads, {@code false} for platform threads
+     * @return {@code true} if the mode has been set, {@code false} if the JVM does not support virtual threads
+     */
+    public static boolean setVirtualThreads(boolean enabled) {
+        if (enabled && !TileJobScheduler.isVirtualThreadSupported())
+            return false;
+        virtualThreads = enabled;
+        HOST_DISPATCHERS.forEach(AbstractTileLoader::configureHost);
+        return true;
+    }
+
+    /**
+     * @return {@code true} if the jobs of loaders of remote sources run on virtual threads
+     */
+    public static boolean isVirtualThreads() {
+        return virtualThreads;
     }
   
     
@@ -29,21 +206,81 @@ public abstract class AbstractTileLoader implements TileLoader {
         return getClass().getSimpleName();
     }
 
+    @Override
+    public void setViewport(double tileX, double tileY, int zoom) {
+        jobDispatcher.setViewport(this, tileX, tileY, zoom);
+    }
+
+    @Override
+    public void cancelOutside(TileRange range, int margin) {
+        jobDispatcher.cancelOutside(this, range, margin);
+    }
+
     @Override
     public boolean hasOutstandingTasks() {
-        return jobDispatcher.getTaskCount() > jobDispatcher.getCompletedTaskCount();
+        return jobDispatcher.hasJobs(this);
     }
 
     @Override
     public void cancelOutstandingTasks() {
-        jobDispatcher.getQueue().clear();
+        jobDispatcher.cancelQueued(this);
+    }
+
+    /**
+     * Determines whether a job of this loader for the tile is queued or running.
+     * @param tile the tile
+     * @return {@code true} if the tile is being loaded by this loader
+     */
+    public boolean isInFlight(Tile tile) {
+        return jobDispatcher.isInFlight(tile, this);
+    }
+
+    /**
+     * Returns the scheduler running the tile jobs of this loader. It is shared by all
+     * loaders of the host, whose jobs are told apart by their owning loader.
+     * @return the scheduler running the tile jobs of this loader, e.g. for its metrics
+     */
+    public TileJobScheduler getJobDispatcher() {
+        return jobDispatcher;
+    }
+
+    /**
+     * Sets the number of jobs of this loader that run at the same time. Loaders
+     * of remote sources share their scheduler with all loaders of the same host.
+     * @param num number of concurrent jobs
+     */
+    public void setConcurrency(int num) {
+        jobDispatcher.setThreads(num);
+    }
+
+    /**
+     * @return number of jobs of this loader that run at the same time
+     */
+    public int getConcurrency() {
+        return jobDispatcher.getMaximumPoolSize();
     }
 
     /**
-     * Sets the maximum number of concurrent connections the tile loader will do
+     * Sets the maximum number of concurrent connections the tile loader will do to
+     * each remote host without an explicit setting. Local sources are not affected.
      * @param num number of concurrent connections
+     * @see #setConcurrentConnections(String, int)
      */
     public static void setConcurrentConnections(int num) {
-        jobDispatcher.setMaximumPoolSize(num);
+        connectionsPerHost = num;
+        HOST_DISPATCHERS.forEach(AbstractTileLoader::configureHost);
+    }
+
+    /**
+     * Sets the maximum number of concurrent connections the tile loader will do to a remote host.
+     * @param host the host, e.g. {@code tile.openstreetmap.org}
+     * @param num number of concurrent connections
+     */
+    public static void setConcurrentConnections(String host, int num) {
+        HOST_CONNECTIONS.put(host, num);
+        TileJobScheduler dispatcher = HOST_DISPATCHERS.get(host);
+        if (dispatcher != null) {
+            configureHost(host, dispatcher);
+        }
     }
 }
@@ -0,0 +1,217 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer.tilesources;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adjusts the limit of a {@link ConnectionLimiter} to the observed latency and error
+ * rate of the host, with additive increase and multiplicative decrease (AIMD).
+ * <p>
+ * Loaders report the latency of every answered request, i.e. the time from sending
+ * it until the host answered, and every failure of the host. The samples are
+ * evaluated in windows of at least as many requests as the limit, so roughly once per
+ * round trip of all connections:
+ * <ul>
+ * <li>if more than 5% of the requests failed, or their average latency exceeds the
+ * baseline by more than half, the server or the link is congested and the limit is
+ * decreased by a quarter;</li>
+ * <li>otherwise, if all connections were in use, the limit is increased by one.</li>
+ * </ul>
+ * The baseline is a slowly moving average of the latency of past windows, so a server
+ * that is permanently slower does not keep the limit at its minimum.
+ * <p>
+ * Latency and error rate are measured while the limit is not adjusted too, see
+ * {@link #setEnabled(boolean)}.
+ */
+public class AdaptiveConcurrencyLimit {
+
+    /** default maximum number of concurrent connections */
+    public static final int DEFAULT_MAX_LIMIT = 32;
+
+    /** minimum number of samples of a window */
+    private static final int MIN_WINDOW = 10;
+    /** share of failed requests of a window decreasing the limit */
+    private static final double MAX_ERROR_RATE = 0.05;
+    /** ratio of the latency of a window to the baseline decreasing the limit */
+    private static final double LATENCY_TOLERANCE = 1.5;
+    /** factor the limit is multiplied with when it is decreased */
+    private static final double BACKOFF_RATIO = 0.75;
+    /** weight of the latency of a window in the baseline */
+    private static final double BASELINE_WEIGHT = 0.1;
+
+    private final ConnectionLimiter limiter;
+    private boolean enabled;
+    private int limit;
+    private int maxLimit = DEFAULT_MAX_LIMIT;
+
+    private int windowSamples;
+    private int windowErrors;
+    private long windowLatency;
+
+    /** average latency of the last window in nanoseconds, {@code 0} until measured */
+    private double latency;
+    /** baseline latency in nanoseconds, {@code 0} until measured */
+    private double baseline;
+    private double errorRate;
+    private long samples;
+    private long increases;
+    private long decreases;
+
+    /**
+     * Constructs a new {@code AdaptiveConcurrencyLimit}, which is disabled.
+     * @param limiter the limiter of the host
+     */
+    public AdaptiveConcurrencyLimit(ConnectionLimiter limiter) {
+        this.limiter = limiter;
+        this.limit = limiter.getLimit();
+    }
+
+    /**
+     * Enables or disables adjusting the limit. When enabled, the current limit of the
+     * limiter is the starting point; when disabled, the limit is no longer changed.
+     * @param enabled {@code true} to adjust the limit
+     */
+    public synchronized void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        limit = Math.min(limiter.getLimit(), maxLimit);
+        if (enabled) {
+            limiter.setLimit(limit);
+        }
+        resetWindow();
+    }
+
+    /**
+     * @return {@code true} if the limit is adjusted
+     */
+    public synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Sets the maximum the limit is increased to.
+     * @param maxLimit maximum number of concurrent connections, at least 1
+     */
+    public synchronized void setMaxLimit(int maxLimit) {
+        this.maxLimit = Math.max(1, maxLimit);
+        if (limit > this.maxLimit) {
+            limit = this.maxLimit;
+            if (enabled) {
+                limiter.setLimit(limit);
+            }
+        }
+    }
+
+    /**
+     * @return maximum the limit is increased to
+     */
+    public synchronized int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * Reports a request answered by the host.
+     * @param latencyNanos time in nanoseconds from sending the request until the host answered
+     */
+    public void onSuccess(long latencyNanos) {
+        onSample(latencyNanos, false);
+    }
+
+    /**
+     * Reports a request the host did not answer or answered with a server error.
+     */
+    public void onFailure() {
+        onSample(0, true);
+    }
+
+    private synchronized void onSample(long latencyNanos, boolean failed) {
+        samples++;
+        windowSamples++;
+        if (failed) {
+            windowErrors++;
+        } else {
+            windowLatency += latencyNanos;
+        }
+        if (windowSamples < Math.max(limit, MIN_WINDOW))
+            return;
+
+        errorRate = (double) windowErrors / windowSamples;
+        int answered = windowSamples - windowErrors;
+        boolean congested = errorRate > MAX_ERROR_RATE;
+        if (answered > 0) {
+            latency = (double) windowLatency / answered;
+            if (baseline == 0) {
+                baseline = latency;
+            }
+            congested |= latency > baseline * LATENCY_TOLERANCE;
+            baseline += (latency - baseline) * BASELINE_WEIGHT;
+        }
+        int peak = limiter.getAndResetPeak();
+        if (enabled) {
+            if (congested) {
+                limit = Math.max(1, (int) (limit * BACKOFF_RATIO));
+                decreases++;
+            } else if (peak >= limit && limit < maxLimit) {
+                // latency only tells whether more connections help if all of them were in use
+                limit++;
+                increases++;
+            }
+            limiter.setLimit(limit);
+        }
+        resetWindow();
+    }
+
+    private void resetWindow() {
+        windowSamples = 0;
+        windowErrors = 0;
+        windowLatency = 0;
+    }
+
+    /**
+     * @return the current limit of concurrent connections, the limit of the limiter while adjusting is disabled
+     */
+    public synchronized int getLimit() {
+        return enabled ? limit : limiter.getLimit();
+    }
+
+    /**
+     * @return average latency of the last window of requests in milliseconds, {@code 0} until measured
+     */
+    public synchronized double getLatency() {
+        return latency / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * @return baseline latency in milliseconds the latency of a window is compared with, {@code 0} until measured
+     */
+    public synchronized double getBaselineLatency() {
+        return baseline / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * @return share of failed requests of the last window
+     */
+    public synchronized double getErrorRate() {
+        return errorRate;
+    }
+
+    /**
+     * @return number of reported requests
+     */
+    public synchronized long getSampleCount() {
+        return samples;
+    }
+
+    /**
+     * @return number of times the limit has been increased
+     */
+    public synchronized long getIncreaseCount() {
+        return increases;
+    }
+
+    /**
+     * @return number of times the limit has been decreased
+     */
+    public synchronized long getDecreaseCount() {
+        return decreases;
+    }
+}
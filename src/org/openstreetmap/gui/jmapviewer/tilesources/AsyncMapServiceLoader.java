@@ -0,0 +1,297 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer.tilesources;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.openstreetmap.gui.jmapviewer.JMapViewer;
+import org.openstreetmap.gui.jmapviewer.LongHashMap;
+import org.openstreetmap.gui.jmapviewer.MissingTileCache;
+import org.openstreetmap.gui.jmapviewer.Tile;
+import org.openstreetmap.gui.jmapviewer.TileRange;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileJob;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileLoaderListener;
+
+/**
+ * A {@link MapServiceLoader} sending asynchronous requests with the shared
+ * {@code java.net.http.HttpClient} of Java 11 and later, instead of holding a
+ * thread with a blocking connection for every tile. Requests to a host are
+ * multiplexed over HTTP/2 connections where the server supports it.
+ * <p>
+ * Tile jobs are still scheduled by distance from the viewport centre, but a
+ * job only sends its request and returns; the response body is received
+ * without blocking and decoded on a separate pool of decoder threads. The
+ * number of requests in flight to a host is bounded by its {@link ConnectionLimiter}.
+ * Revalidations of expired tiles use the blocking path of {@link MapServiceLoader}.
+ * Failures of the host are reported to its {@link HostCircuitBreaker} like those of
+ * blocking requests.
+ *
+ * @see AbstractMapService#setAsyncLoading(boolean)
+ */
+public class AsyncMapServiceLoader extends MapServiceLoader {
+
+    /**
+     * Decodes received tiles, so the threads of the HTTP client are never blocked by decoding
+     */
+    protected static final ExecutorService decodeDispatcher = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), r -> {
+                Thread thread = new Thread(r, "Tile decoder");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /** jobs whose requests have been sent and not yet received, by packed tile key, guarded by itself */
+    private final LongHashMap<AsyncJob> pending = new LongHashMap<>(64);
+
+    private final class AsyncJob implements TileJob {
+        private final Tile tile;
+        private boolean force;
+        private volatile boolean canceled;
+        /** the request in flight, cancelled with the job */
+        private volatile CompletableFuture<?> exchange;
+        /** description of the failure of the host, {@code null} if it answered */
+        private volatile String hostFailure;
+
+        private AsyncJob(Tile tile) {
+            this.tile = tile;
+        }
+
+        @Override
+        public void run() {
+            synchronized (tile) {
+                if ((tile.isLoaded() && !tile.hasError()) || tile.isLoading())
+                    return;
+                tile.initLoading();
+            }
+            if (!breaker.allowRequest()) {
+                // the host is down, not counted as an error of the tile
+                tile.loadingCanceled();
+                scheduleRetry(tile);
+                return;
+            }
+            String url;
+            try {
+                limiter.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                breaker.recordIgnored();
+                tile.loadingCanceled();
+                return;
+            }
+            try {
+                url = getTileUrl(tile);
+            } catch (IOException e) {
+                limiter.release();
+                breaker.recordIgnored();
+                failed(e);
+                return;
+            }
+            Map<String, String> requestHeaders = headers;
+            if (force) {
+                requestHeaders = new HashMap<>(headers);
+                requestHeaders.put("Cache-Control", "no-cache");
+            }
+            synchronized (pending) {
+                pending.put(tile.getPackedKey(), this);
+            }
+            long start = System.nanoTime();
+            CompletableFuture<HttpClientBridge.Response> response =
+                    HttpClientBridge.getInstance().fetch(url, requestHeaders, timeoutRead);
+            exchange = response;
+            response.whenComplete((r, e) -> {
+                // the exchange has ended, also if it has been cancelled
+                limiter.release();
+                synchronized (pending) {
+                    if (pending.get(tile.getPackedKey()) == this) {
+                        pending.remove(tile.getPackedKey());
+                    }
+                }
+                if (e == null) {
+                    hostFailure = HostCircuitBreaker.isHostFailure(r.getStatus())
+                            ? "Server returned HTTP response code: " + r.getStatus() : null;
+                    recordOutcome(hostFailure == null, hostFailure, System.nanoTime() - start);
+                } else if (canceled || isCancellation(e)) {
+                    recordOutcome(false, null, 0);
+                } else {
+                    Throwable cause = unwrap(e);
+                    hostFailure = cause.getClass().getName() + ": " + cause.getMessage();
+                    recordOutcome(false, hostFailure, 0);
+                }
+            }).thenAcceptAsync(this::decode, decodeDispatcher).exceptionally(e -> {
+                failed(e);
+                return null;
+            });
+            if (canceled) {
+                response.cancel(true);
+            }
+        }
+
+        /**
+         * Second stage, puts the metadata and decodes the image of the received tile.
+         */
+        private void decode(HttpClientBridge.Response response) {
+            if (canceled) {
+                tile.loadingCanceled();
+                return;
+            }
+            if (hostFailure != null) {
+                retryLater();
+                return;
+            }
+            boolean success = false;
+            try {
+                if (response.getStatus() >= 400)
+                    throw new IOException("Server returned HTTP response code: " + response.getStatus());
+                loadTileMetadata(tile, response::getHeader, parseExpires(response.getHeader("Expires")));
+                if (MissingTileCache.NO_TILE.equals(tile.getValue("tile-info"))) {
+                    tile.setError("No tile at this zoom level");
+                } else {
+                    tile.loadImage(ByteBuffer.wrap(response.getBody()));
+                }
+                success = true;
+            } catch (IOException e) {
+                tile.setError(e.getMessage());
+                System.err.println("Failed loading " + tile.getKey() + ": " + e.getClass() + ": " + e.getMessage());
+            }
+            tile.finishLoading();
+            listener.tileLoadingFinished(tile, success);
+        }
+
+        private void failed(Throwable e) {
+            Throwable cause = unwrap(e);
+            if (canceled || isCancellation(e)) {
+                // no longer displayed, load it again when it is
+                tile.loadingCanceled();
+                return;
+            }
+            if (hostFailure != null) {
+                retryLater();
+                return;
+            }
+            tile.setError(cause.getMessage());
+            System.err.println("Failed loading " + tile.getKey() + ": " + cause.getClass() + ": " + cause.getMessage());
+            tile.finishLoading();
+            listener.tileLoadingFinished(tile, false);
+        }
+
+        /**
+         * The host failed, the tile is loaded again once it is available and not counted as failed.
+         */
+        private void retryLater() {
+            if (JMapViewer.debug) {
+                System.err.println("Failed loading " + tile.getKey() + ": " + hostFailure);
+            }
+            tile.loadingCanceled();
+            scheduleRetry(tile);
+        }
+
+        @Override
+        public void startTileLoad() {
+            startTileLoad(false);
+        }
+
+        @Override
+        public void startTileLoad(boolean force) {
+            this.force = force;
+            jobDispatcher.execute(this, tile, AsyncMapServiceLoader.this, force);
+        }
+
+        @Override
+        public void cancel() {
+            canceled = true;
+            CompletableFuture<?> request = exchange;
+            if (request != null) {
+                request.cancel(true);
+            }
+        }
+
+        @Override
+        public void startRevalidation() {
+            AsyncMapServiceLoader.super.createTileLoaderJob(tile).startRevalidation();
+        }
+    }
+
+    /**
+     * Constructs a new {@code AsyncMapServiceLoader}.
+     * @param mapService the map service
+     * @param listener the listener notified when tiles have been loaded
+     * @throws UnsupportedOperationException if the JVM does not provide {@code java.net.http.HttpClient}
+     */
+    public AsyncMapServiceLoader(AbstractMapService mapService, TileLoaderListener listener) {
+        super(mapService, listener);
+        if (!isSupported())
+            throw new UnsupportedOperationException("java.net.http.HttpClient requires Java 11");
+    }
+
+    /**
+     * Determines whether the JVM provides {@code java.net.http.HttpClient}.
+     * @return {@code true} on Java 11 and later
+     */
+    public static boolean isSupported() {
+        return HttpClientBridge.getInstance() != null;
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    }
+
+    private static boolean isCancellation(Throwable e) {
+        return unwrap(e) instanceof CancellationException;
+    }
+
+    private static long parseExpires(String expires) {
+        if (expires == null)
+            return 0;
+        try {
+            return ZonedDateTime.parse(expires, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            // malformed, e.g. "0", the expiry time is unknown
+            return 0;
+        }
+    }
+
+    @Override
+    public TileJob createTileLoaderJob(Tile tile) {
+        return new AsyncJob(tile);
+    }
+
+    /**
+     * Cancels the queued jobs of tiles outside the range, and the requests in flight for them.
+     */
+    @Override
+    public void cancelOutside(TileRange range, int margin) {
+        super.cancelOutside(range, margin);
+        List<AsyncJob> outside = new ArrayList<>();
+        synchronized (pending) {
+            pending.forEachValue(job -> {
+                if (!range.contains(job.tile, margin)) {
+                    outside.add(job);
+                }
+            });
+        }
+        for (AsyncJob job : outside) {
+            job.cancel();
+        }
+    }
+
+    @Override
+    public boolean hasOutstandingTasks() {
+        synchronized (pending) {
+            if (pending.size() > 0)
+                return true;
+        }
+        return super.hasOutstandingTasks();
+    }
+}
@@ -0,0 +1,157 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer.tilesources;
+
+import java.io.IOException;
+
+import org.openstreetmap.gui.jmapviewer.Tile;
+import org.openstreetmap.gui.jmapviewer.TileRange;
+import org.openstreetmap.gui.jmapviewer.interfaces.CachedTileLoader;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileClearController;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileJob;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileLoader;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileLoaderListener;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileSource;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileStore;
+
+/**
+ * A {@link TileLoader} that sits in front of another {@link AbstractTileLoader}:
+ * tiles are loaded from a {@link TileStore} if present, otherwise they are
+ * loaded by the wrapped loader and then put into the store.
+ */
+public class CachingTileLoader implements TileLoader, CachedTileLoader {
+
+    private final class CachingJob implements TileJob {
+        private final Tile tile;
+
+        private CachingJob(Tile tile) {
+            this.tile = tile;
+        }
+
+        @Override
+        public void run() {
+            synchronized (tile) {
+                if ((tile.isLoaded() && !tile.hasError()) || tile.isLoading())
+                    return;
+                tile.initLoading();
+            }
+            boolean found = false;
+            try {
+                found = store.load(tile);
+            } catch (IOException e) {
+                System.err.println("Failed loading " + tile.getKey() + " from tile store: " + e.getMessage());
+            }
+            if (found) {
+                tile.finishLoading();
+                listener.tileLoadingFinished(tile, true);
+                return;
+            }
+            // not stored, queue it for the source, so a slow source does not hold up reading stored tiles
+            tile.loadingCanceled();
+            delegate.createTileLoaderJob(tile).startTileLoad();
+        }
+
+        @Override
+        public void startTileLoad() {
+            startTileLoad(false);
+        }
+
+        @Override
+        public void startTileLoad(boolean force) {
+            if (force) {
+                delegate.createTileLoaderJob(tile).startTileLoad(true);
+            } else if (!delegate.isInFlight(tile)) {
+                // not queued for the source after missing the store already
+                storeDispatcher.execute(this, tile);
+            }
+        }
+
+        @Override
+        public void startRevalidation() {
+            // the refreshed tile is stored by the listener of the wrapped loader
+            delegate.createTileLoaderJob(tile).startRevalidation();
+        }
+    }
+
+    protected final TileStore store;
+    protected final AbstractTileLoader delegate;
+    /** reads tiles from the store, separate from the scheduler of the wrapped loader */
+    protected final TileJobScheduler storeDispatcher = new TileJobScheduler("Tile store", 2);
+    protected final TileLoaderListener listener;
+    private TileClearController clearController;
+
+    /**
+     * Constructs a new {@code CachingTileLoader}. The listener of the wrapped
+     * loader is replaced, so tiles it loads are stored before its original
+     * listener is notified.
+     * @param store the store to load tiles from and to put loaded tiles into
+     * @param delegate the loader that loads tiles which are not stored
+     */
+    public CachingTileLoader(TileStore store, AbstractTileLoader delegate) {
+        this.store = store;
+        this.delegate = delegate;
+        this.listener = delegate.listener;
+        delegate.listener = (tile, success) -> {
+            try {
+                if (success && !tile.hasError()) {
+                    store.store(tile);
+                    tile.encodedDataStored();
+                }
+            } finally {
+                listener.tileLoadingFinished(tile, success);
+            }
+        };
+    }
+
+    @Override
+    public TileJob createTileLoaderJob(Tile tile) {
+        // the encoded image data is put into the store
+        tile.setKeepEncodedDataUntilStored(true);
+        return new CachingJob(tile);
+    }
+
+    @Override
+    public void cancelOutstandingTasks() {
+        storeDispatcher.cancelQueued();
+        delegate.cancelOutstandingTasks();
+    }
+
+    @Override
+    public void setViewport(double tileX, double tileY, int zoom) {
+        storeDispatcher.setViewport(tileX, tileY, zoom);
+        delegate.setViewport(tileX, tileY, zoom);
+    }
+
+    @Override
+    public void cancelOutside(TileRange range, int margin) {
+        storeDispatcher.cancelOutside(range, margin);
+        delegate.cancelOutside(range, margin);
+    }
+
+    @Override
+    public boolean hasOutstandingTasks() {
+        return storeDispatcher.getTaskCount() > storeDispatcher.getCompletedTaskCount() || delegate.hasOutstandingTasks();
+    }
+
+    @Override
+    public int getMaxLoadRetries() {
+        return delegate.getMaxLoadRetries();
+    }
+
+    /**
+     * Sets the controller that receives progress of {@link #clearCache(TileSource)}.
+     * @param clearController the controller, can be {@code null}
+     */
+    public void setTileClearController(TileClearController clearController) {
+        this.clearController = clearController;
+    }
+
+    @Override
+    public void clearCache(TileSource source) {
+        store.clear(source, clearController);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + '(' + delegate + ')';
+    }
+}
@@ -0,0 +1,115 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer.tilesources;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounds the number of concurrent connections to a remote host, independently
+ * of the number of threads loading its tiles. Unlike a {@code Semaphore} the
+ * limit can be lowered while connections are open; it takes effect as they
+ * are closed.
+ * <p>
+ * Uses a {@link ReentrantLock} instead of monitors, so virtual threads waiting
+ * for a connection do not pin their carrier thread.
+ */
+public class ConnectionLimiter {
+
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private final Condition available = lock.newCondition();
+    private int limit;
+    private int active;
+    private int peak;
+
+    /**
+     * Constructs a new {@code ConnectionLimiter}.
+     * @param limit maximum number of concurrent connections, at least 1
+     */
+    public ConnectionLimiter(int limit) {
+        this.limit = Math.max(1, limit);
+    }
+
+    /**
+     * Waits until a connection may be opened and counts it as open.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void acquire() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (active >= limit) {
+                available.await();
+            }
+            active++;
+            peak = Math.max(peak, active);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Counts a connection opened with {@link #acquire()} as closed.
+     */
+    public void release() {
+        lock.lock();
+        try {
+            active--;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Changes the maximum number of concurrent connections.
+     * @param limit maximum number of concurrent connections, at least 1
+     */
+    public void setLimit(int limit) {
+        lock.lock();
+        try {
+            this.limit = Math.max(1, limit);
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return maximum number of concurrent connections
+     */
+    public int getLimit() {
+        lock.lock();
+        try {
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the highest number of connections open at the same time since the last call,
+     * and starts measuring again from the connections open now.
+     * @return highest number of open connections since the last call
+     */
+    public int getAndResetPeak() {
+        lock.lock();
+        try {
+            int result = peak;
+            peak = active;
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of open connections
+     */
+    public int getActive() {
+        lock.lock();
+        try {
+            return active;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
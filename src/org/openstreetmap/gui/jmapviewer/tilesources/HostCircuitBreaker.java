@@ -0,0 +1,196 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer.tilesources;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.openstreetmap.gui.jmapviewer.FeatureAdapter;
+
+/**
+ * Tracks the failures of a remote host and stops sending it requests while it is down.
+ * <p>
+ * The breaker is closed while the host answers. After a number of consecutive failures,
+ * e.g. refused connections or {@code 503 Service Unavailable}, it opens and requests are
+ * rejected without a connection. Once the backoff has passed it is half open: a single
+ * probe request is allowed, which closes the breaker if it succeeds and opens it again
+ * with twice the backoff if it fails, up to a maximum. A small random delay is added to
+ * the backoff, so clients do not probe a recovering server at the same time.
+ * <p>
+ * Every request allowed by {@link #allowRequest()} must be reported with
+ * {@link #recordSuccess()}, {@link #recordFailure(String)} or {@link #recordIgnored()}.
+ * Only changes of the state are logged.
+ */
+public class HostCircuitBreaker {
+
+    /**
+     * State of a circuit breaker.
+     */
+    public enum State {
+        /** requests are sent */
+        CLOSED,
+        /** requests are rejected until the backoff has passed */
+        OPEN,
+        /** a single probe request is sent */
+        HALF_OPEN
+    }
+
+    private static final Logger LOG = FeatureAdapter.getLogger(HostCircuitBreaker.class.getName());
+
+    private final String host;
+    private final int failureThreshold;
+    private final long initialBackoff;
+    private final long maxBackoff;
+
+    private State state = State.CLOSED;
+    private int failures;
+    /** backoff of the current or last opening in milliseconds */
+    private long backoff;
+    /** {@link System#nanoTime()} when the open breaker allows a probe */
+    private long retryAt;
+    private boolean probing;
+    private long rejected;
+
+    /**
+     * Constructs a new {@code HostCircuitBreaker} opening after 5 consecutive failures,
+     * with a backoff from 1 second up to 5 minutes.
+     * @param host the host, used in log messages
+     */
+    public HostCircuitBreaker(String host) {
+        this(host, 5, 1000L, 5 * 60 * 1000L);
+    }
+
+    /**
+     * Constructs a new {@code HostCircuitBreaker}.
+     * @param host the host, used in log messages
+     * @param failureThreshold number of consecutive failures opening the breaker, at least 1
+     * @param initialBackoff time in milliseconds until the first probe after the breaker has opened
+     * @param maxBackoff maximum time in milliseconds between probes
+     */
+    public HostCircuitBreaker(String host, int failureThreshold, long initialBackoff, long maxBackoff) {
+        this.host = host;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = Math.max(initialBackoff, maxBackoff);
+    }
+
+    /**
+     * Determines whether an HTTP status code means the host, rather than the requested tile, failed.
+     * @param status the HTTP status code
+     * @return {@code true} for server errors and {@code 429 Too Many Requests}
+     */
+    public static boolean isHostFailure(int status) {
+        return status >= 500 || status == 429;
+    }
+
+    /**
+     * Determines whether a request may be sent. The first request after the backoff
+     * is the probe of the half open breaker, further requests are rejected until it ends.
+     * @return {@code true} if the request may be sent, it must then be reported as succeeded, failed or ignored
+     */
+    public synchronized boolean allowRequest() {
+        switch (state) {
+        case CLOSED:
+            return true;
+        case OPEN:
+            if (System.nanoTime() - retryAt < 0) {
+                rejected++;
+                return false;
+            }
+            state = State.HALF_OPEN;
+            probing = true;
+            return true;
+        default:
+            if (probing) {
+                rejected++;
+                return false;
+            }
+            probing = true;
+            return true;
+        }
+    }
+
+    /**
+     * Reports that the host answered a request, which closes the breaker.
+     */
+    public synchronized void recordSuccess() {
+        failures = 0;
+        probing = false;
+        if (state != State.CLOSED) {
+            state = State.CLOSED;
+            backoff = 0;
+            LOG.info("Tile server " + host + " is available again");
+        }
+    }
+
+    /**
+     * Reports that the host did not answer a request or answered with a server error.
+     * @param reason description of the failure, logged if the breaker opens
+     */
+    public synchronized void recordFailure(String reason) {
+        failures++;
+        probing = false;
+        if (state == State.HALF_OPEN) {
+            open(Math.min(backoff * 2, maxBackoff), reason);
+        } else if (state == State.CLOSED && failures >= failureThreshold) {
+            open(initialBackoff, reason);
+        }
+        // failures of requests sent before the breaker opened do not extend the backoff
+    }
+
+    /**
+     * Reports that an allowed request ended without an answer the host is responsible for,
+     * e.g. it has been cancelled. A probe of the half open breaker may be sent again.
+     */
+    public synchronized void recordIgnored() {
+        probing = false;
+    }
+
+    private void open(long backoff, String reason) {
+        this.backoff = backoff;
+        long jitter = ThreadLocalRandom.current().nextLong(backoff / 4 + 1);
+        retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff + jitter);
+        state = State.OPEN;
+        LOG.warning("Tile server " + host + " is unavailable, retrying in " + backoff + " ms: " + reason);
+    }
+
+    /**
+     * Closes the breaker and forgets all failures.
+     */
+    public synchronized void reset() {
+        state = State.CLOSED;
+        failures = 0;
+        backoff = 0;
+        probing = false;
+    }
+
+    /**
+     * @return the state, {@link State#OPEN} until a request has been allowed after the backoff
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return time in milliseconds until a probe is allowed, {@code 0} if the breaker is not open
+     */
+    public synchronized long getRetryDelay() {
+        if (state != State.OPEN)
+            return 0;
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(retryAt - System.nanoTime()));
+    }
+
+    /**
+     * @return number of consecutive failures
+     */
+    public synchronized int getConsecutiveFailures() {
+        return failures;
+    }
+
+    /**
+     * @return number of requests rejected while the breaker was open or probing
+     */
+    public synchronized long getRejectedCount() {
+        return rejected;
+    }
+}
@@ -0,0 +1,222 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer.tilesources;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.openstreetmap.gui.jmapviewer.JMapViewer;
+
+/**
+ * Sends asynchronous requests with the {@code java.net.http.HttpClient} of Java 11
+ * and later, which multiplexes the requests to a host over HTTP/2 connections
+ * where the server supports it. The client is accessed by reflection, as the
+ * code is compiled for Java 8; a single client is shared by all loaders.
+ */
+final class HttpClientBridge {
+
+    private static final HttpClientBridge INSTANCE = create();
+
+    /**
+     * Whether cancelling the future returned by {@code sendAsync} aborts the exchange,
+     * which is the case since Java 16. Before, the response is received in any case.
+     */
+    private static final boolean CANCEL_ABORTS = getJavaVersion() >= 16;
+
+    private final Object client;
+    private final Object bodyHandler;
+    private final Method newRequestBuilder;
+    private final Method header;
+    private final Method timeout;
+    private final Method build;
+    private final Method sendAsync;
+    private final Method statusCode;
+    private final Method headers;
+    private final Method headerMap;
+    private final Method body;
+
+    private HttpClientBridge() throws ReflectiveOperationException {
+        Class<?> clientClass = Class.forName("java.net.http.HttpClient");
+        Class<?> clientBuilderClass = Class.forName("java.net.http.HttpClient$Builder");
+        Class<?> versionClass = Class.forName("java.net.http.HttpClient$Version");
+        Class<?> redirectClass = Class.forName("java.net.http.HttpClient$Redirect");
+        Class<?> requestClass = Class.forName("java.net.http.HttpRequest");
+        Class<?> requestBuilderClass = Class.forName("java.net.http.HttpRequest$Builder");
+        Class<?> responseClass = Class.forName("java.net.http.HttpResponse");
+        Class<?> bodyHandlerClass = Class.forName("java.net.http.HttpResponse$BodyHandler");
+        Class<?> bodyHandlersClass = Class.forName("java.net.http.HttpResponse$BodyHandlers");
+        Class<?> headersClass = Class.forName("java.net.http.HttpHeaders");
+
+        Object builder = clientClass.getMethod("newBuilder").invoke(null);
+        clientBuilderClass.getMethod("version", versionClass).invoke(builder, enumConstant(versionClass, "HTTP_2"));
+        clientBuilderClass.getMethod("followRedirects", redirectClass).invoke(builder, enumConstant(redirectClass, "NORMAL"));
+        client = clientBuilderClass.getMethod("build").invoke(builder);
+        bodyHandler = bodyHandlersClass.getMethod("ofByteArray").invoke(null);
+
+        newRequestBuilder = requestClass.getMethod("newBuilder", URI.class);
+        header = requestBuilderClass.getMethod("header", String.class, String.class);
+        timeout = requestBuilderClass.getMethod("timeout", Duration.class);
+        build = requestBuilderClass.getMethod("build");
+        sendAsync = clientClass.getMethod("sendAsync", requestClass, bodyHandlerClass);
+        statusCode = responseClass.getMethod("statusCode");
+        headers = responseClass.getMethod("headers");
+        headerMap = headersClass.getMethod("map");
+        body = responseClass.getMethod("body");
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static Object enumConstant(Class<?> enumClass, String name) {
+        return Enum.valueOf((Class) enumClass, name);
+    }
+
+    private static HttpClientBridge create() {
+        try {
+            return new HttpClientBridge();
+        } catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+            // before Java 11, or the java.net.http module is not available
+            return null;
+        }
+    }
+
+    private static int getJavaVersion() {
+        String version = System.getProperty("java.specification.version", "1.8");
+        try {
+            return version.startsWith("1.") ? Integer.parseInt(version.substring(2)) : Integer.parseInt(version);
+        } catch (NumberFormatException e) {
+            return 8;
+        }
+    }
+
+    /**
+     * @return the shared bridge, or {@code null} if the JVM does not provide {@code java.net.http.HttpClient}
+     */
+    static HttpClientBridge getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Sends a GET request. The returned future completes on a thread of the HTTP client,
+     * which should not be blocked by further processing.
+     * @param url the URL
+     * @param requestHeaders request headers; headers the HTTP client sets itself are left out
+     * @param timeoutMillis timeout of the request in milliseconds, {@code 0} for none
+     * @return the future response, which completes once the exchange has ended. Cancelling it aborts
+     *         the exchange on Java 16 and later, the future then completes with a {@code CancellationException};
+     *         before Java 16 the response is still received.
+     */
+    CompletableFuture<Response> fetch(String url, Map<String, String> requestHeaders, int timeoutMillis) {
+        try {
+            Object builder = newRequestBuilder.invoke(null, URI.create(url));
+            for (Entry<String, String> e : requestHeaders.entrySet()) {
+                try {
+                    header.invoke(builder, e.getKey(), e.getValue());
+                } catch (InvocationTargetException ex) {
+                    // restricted header the HTTP client sets itself, e.g. Connection
+                    if (JMapViewer.debug) {
+                        System.err.println("Header " + e.getKey() + " not sent: " + ex.getCause());
+                    }
+                }
+            }
+            if (timeoutMillis > 0) {
+                timeout.invoke(builder, Duration.ofMillis(timeoutMillis));
+            }
+            Object request = build.invoke(builder);
+            CompletableFuture<?> exchange = (CompletableFuture<?>) sendAsync.invoke(client, request, bodyHandler);
+            ResponseFuture response = new ResponseFuture(exchange);
+            exchange.whenComplete((r, e) -> {
+                if (e != null) {
+                    response.completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+                    return;
+                }
+                try {
+                    response.complete(toResponse(r));
+                } catch (CompletionException ex) {
+                    response.completeExceptionally(ex.getCause());
+                }
+            });
+            return response;
+        } catch (InvocationTargetException e) {
+            CompletableFuture<Response> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e.getCause());
+            return failed;
+        } catch (ReflectiveOperationException | IllegalArgumentException e) {
+            CompletableFuture<Response> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Response toResponse(Object response) {
+        try {
+            int status = (Integer) statusCode.invoke(response);
+            Map<String, List<String>> map = (Map<String, List<String>>) headerMap.invoke(headers.invoke(response));
+            return new Response(status, map, (byte[]) body.invoke(response));
+        } catch (ReflectiveOperationException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * Future response, completed by the exchange of the HTTP client. Cancelling it cancels the
+     * exchange instead of completing it right away, so it does not end before the exchange.
+     */
+    private static final class ResponseFuture extends CompletableFuture<Response> {
+        private final CompletableFuture<?> exchange;
+
+        private ResponseFuture(CompletableFuture<?> exchange) {
+            this.exchange = exchange;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return CANCEL_ABORTS && exchange.cancel(mayInterruptIfRunning);
+        }
+    }
+
+    /**
+     * Response of a tile server.
+     */
+    static final class Response {
+        private final int status;
+        private final Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        private final byte[] body;
+
+        Response(int status, Map<String, List<String>> headers, byte[] body) {
+            this.status = status;
+            this.headers.putAll(headers);
+            this.body = body;
+        }
+
+        /**
+         * @return the HTTP status code
+         */
+        int getStatus() {
+            return status;
+        }
+
+        /**
+         * Returns the first value of a response header.
+         * @param name name of the header, case insensitive
+         * @return the value, or {@code null} if the header is not present
+         */
+        String getHeader(String name) {
+            List<String> values = headers.get(name);
+            return values == null || values.isEmpty() ? null : values.get(0);
+        }
+
+        /**
+         * @return the response body
+         */
+        byte[] getBody() {
+            return body;
+        }
+    }
+}
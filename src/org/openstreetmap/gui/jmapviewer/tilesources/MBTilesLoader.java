@@ -3,6 +3,8 @@ package org.openstreetmap.gui.jmapviewer.tilesources;
 import java.io.InputStream;
 
 import org.imintel.mbtiles4j.MBTilesReader;
+import org.openstreetmap.gui.jmapviewer.JMapViewer;
+import org.openstreetmap.gui.jmapviewer.MissingTileCache;
 import org.openstreetmap.gui.jmapviewer.interfaces.TileJob;
 import org.openstreetmap.gui.jmapviewer.interfaces.TileLoaderListener;
 
@@ -64,8 +66,12 @@ public class MBTilesLoader extends AbstractTileLoader {
                    success = true;
                }
                else {
+                   // remembered by the TileController, so the database is not queried again on every repaint
+                   jmvTile.putValue("tile-info", MissingTileCache.NO_TILE);
                    jmvTile.setError(jmvTile.getKey() + " not found in MBTile database");
-                   System.err.println(jmvTile.getErrorMessage());
+                   if (JMapViewer.debug) {
+                       System.err.println(jmvTile.getErrorMessage());
+                   }
                }
             } catch (Exception e) {
                 jmvTile.setError(e.getMessage());
@@ -91,7 +97,7 @@ public class MBTilesLoader extends AbstractTileLoader {
 
         @Override
         public void startTileLoad(boolean force) {
-            jobDispatcher.execute(this);
+            jobDispatcher.execute(this, jmvTile, MBTilesLoader.this);
         }
     }
     
@@ -9,6 +9,11 @@ import java.net.URLConnection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 
 import org.openstreetmap.gui.jmapviewer.JMapViewer;
 import org.openstreetmap.gui.jmapviewer.Tile;
@@ -19,16 +24,43 @@ import org.openstreetmap.gui.jmapviewer.interfaces.TileLoaderListener;
 /**
  * A {@link TileLoader} implementation that loads tiles online sources 
  * such as OSM.
+ * <p>
+ * Connection failures and server errors are reported to the {@link HostCircuitBreaker}
+ * of the host instead of marking the tile as failed. While the host is down, tiles are
+ * not requested and are loaded again once it has recovered.
  *
  * @author Jan Peter Stotz
  * @author Joel Kozikowski
  */
 public class MapServiceLoader extends AbstractTileLoader {
-    
+
+    /**
+     * Time until an expired tile is revalidated again after a failed revalidation
+     */
+    protected static final long REVALIDATION_RETRY_MILLIS = 5 * 60 * 1000L;
+
+    /**
+     * Minimum time until tiles which could not be loaded because their host is unavailable are requested again
+     */
+    private static final long HOST_RETRY_MILLIS = 1000L;
+
+    /**
+     * Notifies listeners when tiles of unavailable hosts may be requested again
+     */
+    private static final ScheduledExecutorService retryTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "Tile retry timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     private final class MapServiceJob implements TileJob {
         private final Tile tile;
         private InputStream input;
         private boolean force;
+        private boolean revalidate;
+        private volatile boolean canceled;
+        /** connection of the running load, closed when the load is cancelled */
+        private volatile URLConnection connection;
 
         private MapServiceJob(Tile tile) {
             this.tile = tile;
@@ -36,6 +68,10 @@ public class MapServiceLoader extends AbstractTileLoader {
 
         @Override
         public void run() {
+            if (revalidate) {
+                revalidate();
+                return;
+            }
             synchronized (tile) {
                 
                 if ((tile.isLoaded() && !tile.hasError()) || tile.isLoading())
@@ -44,11 +80,36 @@ public class MapServiceLoader extends AbstractTileLoader {
                 tile.initLoading();
             }
             boolean success = false;
+            boolean acquired = false;
+            boolean allowed = false;
+            // the server answered, failures are then caused by the tile rather than the host
+            boolean answered = false;
+            String hostFailure = null;
+            long start = 0;
+            long latency = 0;
             try {
+                if (!breaker.allowRequest())
+                    return;
+                allowed = true;
+                limiter.acquire();
+                acquired = true;
+                start = System.nanoTime();
+                if (canceled)
+                    return;
                 URLConnection conn = loadTileFromOsm(tile);
+                connection = conn;
+                if (canceled)
+                    return;
                 if (force) {
                     conn.setUseCaches(false);
                 }
+                if (conn instanceof HttpURLConnection) {
+                    int status = ((HttpURLConnection) conn).getResponseCode();
+                    if (HostCircuitBreaker.isHostFailure(status))
+                        throw new IOException("Server returned HTTP response code: " + status);
+                }
+                answered = true;
+                latency = System.nanoTime() - start;
                 loadTileMetadata(tile, conn);
                 if ("no-tile".equals(tile.getValue("tile-info"))) {
                     tile.setError("No tile at this zoom level");
@@ -63,6 +124,16 @@ public class MapServiceLoader extends AbstractTileLoader {
                 }
                 success = true;
             } catch (IOException e) {
+                if (canceled)
+                    return;
+                if (!answered) {
+                    // not counted as an error of the tile, it is loaded again once the host is available
+                    hostFailure = e.getClass().getName() + ": " + e.getMessage();
+                    if (JMapViewer.debug) {
+                        System.err.println("Failed loading " + tile.getKey() + ": " + hostFailure);
+                    }
+                    return;
+                }
                 tile.setError(e.getMessage());
                 if (input == null) {
                     try {
@@ -72,9 +143,28 @@ public class MapServiceLoader extends AbstractTileLoader {
                         ioe.printStackTrace();
                     }
                 }
+            } catch (InterruptedException e) {
+                // cancelled while waiting for a connection
+                canceled = true;
+                Thread.currentThread().interrupt();
             } finally {
-                tile.finishLoading();
-                listener.tileLoadingFinished(tile, success);
+                connection = null;
+                if (acquired) {
+                    limiter.release();
+                }
+                if (allowed) {
+                    recordOutcome(answered, hostFailure, latency);
+                }
+                if (canceled && !success) {
+                    // no longer displayed, load it again when it is
+                    tile.loadingCanceled();
+                } else if (!allowed || hostFailure != null) {
+                    tile.loadingCanceled();
+                    scheduleRetry(tile);
+                } else {
+                    tile.finishLoading();
+                    listener.tileLoadingFinished(tile, success);
+                }
             }
         }
 
@@ -86,7 +176,106 @@ public class MapServiceLoader extends AbstractTileLoader {
         @Override
         public void startTileLoad(boolean force) {
             this.force = force;
-            jobDispatcher.execute(this);
+            jobDispatcher.execute(this, tile, MapServiceLoader.this, force);
+        }
+
+        @Override
+        public void cancel() {
+            canceled = true;
+            URLConnection conn = connection;
+            if (conn instanceof HttpURLConnection) {
+                // fails the blocked read of the running load
+                ((HttpURLConnection) conn).disconnect();
+            }
+        }
+
+        @Override
+        public void startRevalidation() {
+            revalidate = true;
+            revalidationDispatcher.execute(this);
+        }
+
+        /**
+         * Loads the expired tile into a copy and replaces the image once it has been
+         * decoded, so the stale image stays visible. The request is conditional if the
+         * tile has validators; if the server answers 304 Not Modified, only the expiry
+         * time of the tile is extended. If loading fails, the stale image is kept and
+         * the next attempt is postponed.
+         */
+        private void revalidate() {
+            if (!tile.isExpired()) {
+                tile.finishRevalidation();
+                return;
+            }
+            boolean success = false;
+            boolean acquired = false;
+            boolean allowed = false;
+            boolean answered = false;
+            String hostFailure = null;
+            long latency = 0;
+            try {
+                if (!breaker.allowRequest())
+                    return;
+                allowed = true;
+                limiter.acquire();
+                acquired = true;
+                long start = System.nanoTime();
+                Tile reloaded = new Tile(tile.getSource(), tile.getXtile(), tile.getYtile(), tile.getZoom());
+                reloaded.setRetainEncodedData(tile.isRetainEncodedData());
+                reloaded.setKeepEncodedDataUntilStored(tile.isKeepEncodedDataUntilStored());
+                URLConnection conn = loadTileFromOsm(reloaded);
+                setValidators(tile, conn);
+                int status = conn instanceof HttpURLConnection
+                        ? ((HttpURLConnection) conn).getResponseCode() : HttpURLConnection.HTTP_OK;
+                if (HostCircuitBreaker.isHostFailure(status))
+                    throw new IOException("Server returned HTTP response code: " + status);
+                answered = true;
+                latency = System.nanoTime() - start;
+                if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    extendFreshness(tile, conn::getHeaderField, conn.getExpiration());
+                    success = true;
+                    return;
+                }
+                loadTileMetadata(reloaded, conn);
+                try (InputStream in = conn.getInputStream()) {
+                    reloaded.loadImage(in);
+                }
+                if (reloaded.getImage() != null && !"no-tile".equals(reloaded.getValue("tile-info"))) {
+                    // the server no longer sends an expiry time or validators
+                    for (String key : new String[] {"expires", "etag", "last-modified"}) {
+                        if (reloaded.getValue(key) == null) {
+                            tile.putValue(key, null);
+                        }
+                    }
+                    tile.setRevalidationRetryTime(0);
+                    tile.replaceImage(reloaded);
+                    success = true;
+                }
+            } catch (IOException e) {
+                if (!answered) {
+                    hostFailure = e.getClass().getName() + ": " + e.getMessage();
+                }
+                if (JMapViewer.debug) {
+                    System.err.println("Failed revalidating " + tile.getKey() + ": " + e.getMessage());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (acquired) {
+                    limiter.release();
+                }
+                if (allowed) {
+                    recordOutcome(answered, hostFailure, latency);
+                }
+                if (!success) {
+                    // keeps the expiry time of the server
+                    tile.setRevalidationRetryTime(System.currentTimeMillis() + REVALIDATION_RETRY_MILLIS);
+                }
+                tile.finishRevalidation();
+                if (success) {
+                    listener.tileLoadingFinished(tile, true);
+                }
+            }
         }
     }
 
@@ -100,18 +289,135 @@ public class MapServiceLoader extends AbstractTileLoader {
 
     protected AbstractMapService mapService;
 
+    /**
+     * Bounds the concurrent connections to the host of the map service, shared by all its loaders
+     */
+    protected final ConnectionLimiter limiter;
+
+    /**
+     * Stops requests to the host of the map service while it is down, shared by all its loaders
+     */
+    protected final HostCircuitBreaker breaker;
+
+    /**
+     * Adjusts {@link #limiter} to the latency of the host, shared by all its loaders
+     */
+    protected final AdaptiveConcurrencyLimit concurrencyLimit;
+
+    /** whether the listener is already going to be notified of a retry */
+    private final AtomicBoolean retryScheduled = new AtomicBoolean();
+
     public MapServiceLoader(AbstractMapService mapService, TileLoaderListener listener) {
         this(mapService, listener, null);
     }
 
     public MapServiceLoader(AbstractMapService mapService, TileLoaderListener listener, Map<String, String> headers) {
-        super(listener);
+        super(listener, getHostDispatcher(getHost(mapService)));
         this.headers.put("Accept", "text/html, image/png, image/jpeg, image/gif, */*");
         this.headers.put("user-agent", "JMapViewer/2.0 (" + System.getProperty("java.version") + ")");
         if (headers != null) {
             this.headers.putAll(headers);
         }
         this.mapService = mapService;
+        this.limiter = getHostLimiter(getHost(mapService));
+        this.breaker = getHostBreaker(getHost(mapService));
+        this.concurrencyLimit = getHostConcurrencyLimit(getHost(mapService));
+    }
+
+    /**
+     * @return the circuit breaker of the host of the map service
+     */
+    public HostCircuitBreaker getCircuitBreaker() {
+        return breaker;
+    }
+
+    /**
+     * @return the adaptive limit of the connections to the host of the map service, with its metrics
+     */
+    public AdaptiveConcurrencyLimit getConcurrencyLimit() {
+        return concurrencyLimit;
+    }
+
+    /**
+     * Reports the outcome of a request allowed by the circuit breaker to the breaker
+     * and to the adaptive limit of the connections.
+     * @param answered {@code true} if the host answered without a server error
+     * @param hostFailure description of the failure of the host, {@code null} if it did not fail
+     * @param latencyNanos time in nanoseconds until the host answered
+     */
+    protected void recordOutcome(boolean answered, String hostFailure, long latencyNanos) {
+        if (answered) {
+            breaker.recordSuccess();
+            concurrencyLimit.onSuccess(latencyNanos);
+        } else if (hostFailure != null) {
+            breaker.recordFailure(hostFailure);
+            concurrencyLimit.onFailure();
+        } else {
+            breaker.recordIgnored();
+        }
+    }
+
+    /**
+     * Notifies the listener once the host may be requested again, so the displayed map is
+     * repainted and its missing tiles are queued again without any user interaction. The
+     * tile has not been loaded, nor counted as failed. Notifications are coalesced, as a
+     * single repaint queues all displayed tiles.
+     * @param tile a tile which could not be loaded because the host is unavailable
+     */
+    protected void scheduleRetry(Tile tile) {
+        if (!retryScheduled.compareAndSet(false, true))
+            return;
+        retryTimer.schedule(() -> notifyRetry(tile), Math.max(breaker.getRetryDelay(), HOST_RETRY_MILLIS), TimeUnit.MILLISECONDS);
+    }
+
+    private void notifyRetry(Tile tile) {
+        long delay = breaker.getRetryDelay();
+        if (delay > 0) {
+            // the breaker has opened since the retry was scheduled
+            retryTimer.schedule(() -> notifyRetry(tile), delay, TimeUnit.MILLISECONDS);
+            return;
+        }
+        retryScheduled.set(false);
+        listener.tileLoadingFinished(tile, false);
+    }
+
+    /**
+     * Sets the number of concurrent connections to the host of the map service, for all its loaders.
+     */
+    @Override
+    public void setConcurrency(int num) {
+        limiter.setLimit(num);
+        if (!isVirtualThreads()) {
+            super.setConcurrency(num);
+        }
+    }
+
+    /**
+     * @return number of concurrent connections to the host of the map service
+     */
+    @Override
+    public int getConcurrency() {
+        return Math.min(super.getConcurrency(), limiter.getLimit());
+    }
+
+    /**
+     * Returns the host tiles of the map service are loaded from, which keys the scheduler
+     * shared by all its loaders. Placeholders for alternating servers are kept, so e.g.
+     * {@code https://%s.tile.openstreetmap.org} is a single host.
+     * @param mapService the map service
+     * @return the host, or the id of the map service if it has no base URL
+     */
+    protected static String getHost(AbstractMapService mapService) {
+        String url = mapService.baseUrl;
+        if (url == null)
+            return mapService.getId();
+        int start = url.indexOf("://");
+        start = start < 0 ? 0 : start + 3;
+        int end = start;
+        while (end < url.length() && url.charAt(end) != '/' && url.charAt(end) != ':') {
+            end++;
+        }
+        return url.substring(start, end);
     }
 
     @Override
@@ -135,21 +441,41 @@ public class MapServiceLoader extends AbstractTileLoader {
     }
 
     protected void loadTileMetadata(Tile tile, URLConnection urlConn) {
-        String str = urlConn.getHeaderField("X-VE-TILEMETA-CaptureDatesRange");
+        loadTileMetadata(tile, urlConn::getHeaderField, urlConn.getExpiration());
+    }
+
+    /**
+     * Puts the metadata of the tile found in the response headers of the tile server.
+     * @param tile the tile
+     * @param headers returns the value of a response header, or {@code null}
+     * @param expiration value of the {@code Expires} header in milliseconds since the epoch, {@code 0} if unknown
+     */
+    protected void loadTileMetadata(Tile tile, Function<String, String> headers, long expiration) {
+        String str = headers.apply("X-VE-TILEMETA-CaptureDatesRange");
         if (str != null) {
             tile.putValue("capture-date", str);
         }
-        str = urlConn.getHeaderField("X-VE-Tile-Info");
+        str = headers.apply("X-VE-Tile-Info");
         if (str != null) {
             tile.putValue("tile-info", str);
         }
+        // validators of conditional requests when the tile is revalidated
+        str = headers.apply("ETag");
+        if (str != null) {
+            tile.putValue("etag", str);
+        }
+        str = headers.apply("Last-Modified");
+        if (str != null) {
+            tile.putValue("last-modified", str);
+        }
 
-        Long lng = urlConn.getExpiration();
+        Long lng = expiration;
         if (lng.equals(0L)) {
             try {
-                str = urlConn.getHeaderField("Cache-Control");
+                str = headers.apply("Cache-Control");
                 if (str != null) {
                     for (String token: str.split(",")) {
+                        token = token.trim();
                         if (token.startsWith("max-age=")) {
                             lng = Long.parseLong(token.substring(8)) * 1000 +
                                     System.currentTimeMillis();
@@ -168,6 +494,44 @@ public class MapServiceLoader extends AbstractTileLoader {
         }
     }
 
+    /**
+     * Makes the request for a tile conditional on the validators of the cached copy,
+     * so the server can answer 304 Not Modified instead of sending the tile again.
+     * @param tile the cached tile
+     * @param urlConn the connection, not yet connected
+     */
+    protected void setValidators(Tile tile, URLConnection urlConn) {
+        String etag = tile.getValue("etag");
+        if (etag != null) {
+            urlConn.setRequestProperty("If-None-Match", etag);
+        }
+        String lastModified = tile.getValue("last-modified");
+        if (lastModified != null) {
+            urlConn.setRequestProperty("If-Modified-Since", lastModified);
+        }
+    }
+
+    /**
+     * Updates a tile the server answered with 304 Not Modified: the image is kept and
+     * the expiry time and validators are taken from the response. If the response has
+     * no expiry time, the tile keeps its expiry time and is revalidated again after
+     * {@link #REVALIDATION_RETRY_MILLIS}.
+     * @param tile the cached tile
+     * @param headers returns the value of a response header, or {@code null}
+     * @param expiration value of the {@code Expires} header in milliseconds since the epoch, {@code 0} if unknown
+     */
+    protected void extendFreshness(Tile tile, Function<String, String> headers, long expiration) {
+        String expires = tile.getValue("expires");
+        tile.putValue("expires", null);
+        loadTileMetadata(tile, headers, expiration);
+        if (tile.getValue("expires") == null) {
+            tile.putValue("expires", expires);
+            tile.setRevalidationRetryTime(System.currentTimeMillis() + REVALIDATION_RETRY_MILLIS);
+        } else {
+            tile.setRevalidationRetryTime(0);
+        }
+    }
+
     protected void prepareHttpUrlConnection(HttpURLConnection urlConn) {
         for (Entry<String, String> e : headers.entrySet()) {
             urlConn.setRequestProperty(e.getKey(), e.getValue());
@@ -0,0 +1,523 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer.tilesources;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.openstreetmap.gui.jmapviewer.LongHashMap;
+import org.openstreetmap.gui.jmapviewer.Tile;
+import org.openstreetmap.gui.jmapviewer.TileRange;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileJob;
+
+/**
+ * Thread pool running tile jobs by priority instead of in submission order:
+ * tiles of the displayed zoom level first, then by distance of the tile from
+ * the centre of the viewport, so the tiles in the middle of the map are loaded
+ * before those at its edges, even if the edges have been queued earlier.
+ * Jobs of equal priority, and jobs without a tile, run in submission order
+ * after all tile jobs.
+ * <p>
+ * Priorities are computed when a job is queued and computed again for all
+ * queued jobs when the viewport moves, see {@link #setViewport(Object, double, double, int)}.
+ * <p>
+ * A scheduler may be shared by several owners, e.g. the loaders of all maps
+ * displaying tiles of the same host. Each owner has its own viewport, by which
+ * its jobs are ordered, and cancels only its own jobs; jobs of different owners
+ * are interleaved by their distance from the centre of their viewport.
+ * <p>
+ * Each tile has at most one queued or running job per owner: a job for a tile
+ * that already has one of the same owner is dropped, and its caller is notified
+ * by the listener of the job in flight, like the caller of that job. A job replacing
+ * the previous one, e.g. to reload a tile, takes its place if it has not started yet.
+ * The share of dropped jobs is reported by {@link #getDeduplicationRatio()}.
+ * <p>
+ * Threads are daemon threads and end after being idle for a while, so an
+ * unused scheduler does not hold any threads. On Java 21 and later the
+ * scheduler can run its jobs on virtual threads instead, see
+ * {@link #setVirtualThreads(boolean)}.
+ */
+public class TileJobScheduler extends ThreadPoolExecutor {
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    /** queued or running jobs by packed tile key, chained for different owners, guarded by itself */
+    private final LongHashMap<PrioritizedJob> inFlight = new LongHashMap<>(256);
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder deduplicated = new LongAdder();
+    private final LongAdder canceled = new LongAdder();
+
+    private final ThreadFactory platformThreads;
+    private final String name;
+
+    /** viewports by owner of the jobs, guarded by the scheduler */
+    private final Map<Object, Viewport> viewports = new WeakHashMap<>();
+
+    /**
+     * Constructs a new {@code TileJobScheduler}.
+     * @param threads number of threads running jobs
+     */
+    public TileJobScheduler(int threads) {
+        this("Tile loader", threads);
+    }
+
+    /**
+     * Constructs a new {@code TileJobScheduler}.
+     * @param name name of the threads, e.g. the host the jobs load tiles from
+     * @param threads number of threads running jobs
+     */
+    public TileJobScheduler(String name, int threads) {
+        super(threads, threads, 30L, TimeUnit.SECONDS, new PriorityBlockingQueue<>());
+        this.name = name;
+        AtomicInteger count = new AtomicInteger();
+        platformThreads = r -> {
+            Thread thread = new Thread(r, name + " " + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        setThreadFactory(platformThreads);
+        allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Determines whether the JVM supports virtual threads.
+     * @return {@code true} on Java 21 and later
+     */
+    public static boolean isVirtualThreadSupported() {
+        return createVirtualThreadFactory("Virtual thread check") != null;
+    }
+
+    /**
+     * Creates a factory of virtual threads by reflection, as the code is compiled for Java 8.
+     * @param name name prefix of the threads
+     * @return the factory, or {@code null} if the JVM does not support virtual threads
+     */
+    private static ThreadFactory createVirtualThreadFactory(String name) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + " ", 1L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // before Java 21, or a preview feature which is not enabled
+            return null;
+        }
+    }
+
+    /**
+     * Switches between platform and virtual threads for the threads started from now on.
+     * Idle threads of the other kind end after a while.
+     * @param virtual {@code true} for virtual threads
+     * @return {@code true} if the threads have been switched, {@code false} if the JVM does not support virtual threads
+     */
+    public synchronized boolean setVirtualThreads(boolean virtual) {
+        if (!virtual) {
+            setThreadFactory(platformThreads);
+            return true;
+        }
+        ThreadFactory factory = createVirtualThreadFactory(name);
+        if (factory == null)
+            return false;
+        setThreadFactory(factory);
+        return true;
+    }
+
+    /**
+     * Changes the number of threads running jobs.
+     * @param threads number of threads
+     */
+    public synchronized void setThreads(int threads) {
+        if (threads > getMaximumPoolSize()) {
+            setMaximumPoolSize(threads);
+            setCorePoolSize(threads);
+        } else {
+            setCorePoolSize(threads);
+            setMaximumPoolSize(threads);
+        }
+    }
+
+    /**
+     * Queues a job without a tile, run after all tile jobs.
+     */
+    @Override
+    public void execute(Runnable job) {
+        execute(job, null, null);
+    }
+
+    /**
+     * Queues a job loading a tile, without an owner.
+     * @param job the job
+     * @param tile the tile loaded by the job, {@code null} if unknown
+     */
+    public void execute(Runnable job, Tile tile) {
+        execute(job, tile, null);
+    }
+
+    /**
+     * Queues a job loading a tile.
+     * @param job the job
+     * @param tile the tile loaded by the job, {@code null} if unknown
+     * @param owner the owner of the job, e.g. the tile loader, whose viewport orders the job; may be {@code null}
+     */
+    public void execute(Runnable job, Tile tile, Object owner) {
+        execute(job, tile, owner, false);
+    }
+
+    /**
+     * Queues a job loading a tile.
+     * @param job the job
+     * @param tile the tile loaded by the job, {@code null} if unknown
+     * @param owner the owner of the job, e.g. the tile loader, whose viewport orders the job; may be {@code null}
+     * @param replace {@code true} to remove a queued job of the owner for the tile instead of dropping this job,
+     *        e.g. to force a reload; a running job is not replaced
+     */
+    public void execute(Runnable job, Tile tile, Object owner, boolean replace) {
+        PrioritizedJob prioritized = new PrioritizedJob(job, tile, owner, sequence.getAndIncrement());
+        if (tile != null) {
+            submitted.increment();
+            if (replace) {
+                removeQueued(tile, owner);
+            }
+            synchronized (inFlight) {
+                PrioritizedJob first = inFlight.get(tile.getPackedKey());
+                if (find(first, owner) != null) {
+                    deduplicated.increment();
+                    return;
+                }
+                prioritized.next = first;
+                inFlight.put(tile.getPackedKey(), prioritized);
+            }
+        }
+        prioritized.updatePriority(getViewport(owner));
+        try {
+            super.execute(prioritized);
+        } catch (RejectedExecutionException e) {
+            prioritized.done();
+            throw e;
+        }
+    }
+
+    /**
+     * Removes the queued job of an owner for the tile, if it has not started yet. Queue changes
+     * of {@link #setViewport} are excluded by the lock of the scheduler.
+     */
+    private synchronized void removeQueued(Tile tile, Object owner) {
+        PrioritizedJob queued;
+        synchronized (inFlight) {
+            queued = find(inFlight.get(tile.getPackedKey()), owner);
+        }
+        if (queued != null && getQueue().remove(queued)) {
+            queued.done();
+        }
+    }
+
+    /**
+     * Finds the job of an owner in a chain of jobs for the same tile.
+     * @return the job, or {@code null}
+     */
+    private static PrioritizedJob find(PrioritizedJob first, Object owner) {
+        for (PrioritizedJob job = first; job != null; job = job.next) {
+            if (job.owner == owner)
+                return job;
+        }
+        return null;
+    }
+
+    /**
+     * Removes all queued jobs, of all owners. Running jobs are not affected.
+     */
+    public synchronized void cancelQueued() {
+        List<Runnable> queued = new ArrayList<>();
+        getQueue().drainTo(queued);
+        for (Runnable job : queued) {
+            ((PrioritizedJob) job).done();
+        }
+    }
+
+    /**
+     * Removes the queued jobs of an owner. Running jobs and jobs of other owners are not affected.
+     * @param owner the owner of the jobs
+     */
+    public synchronized void cancelQueued(Object owner) {
+        List<Runnable> queued = new ArrayList<>();
+        getQueue().drainTo(queued);
+        List<Runnable> kept = new ArrayList<>(queued.size());
+        for (Runnable job : queued) {
+            if (((PrioritizedJob) job).owner == owner) {
+                ((PrioritizedJob) job).done();
+            } else {
+                kept.add(job);
+            }
+        }
+        getQueue().addAll(kept);
+    }
+
+    /**
+     * Cancels the jobs without an owner of tiles outside the range.
+     * @param range the tiles to keep loading
+     * @param margin number of tiles the range is extended by on each side
+     * @return number of cancelled jobs
+     * @see #cancelOutside(Object, TileRange, int)
+     */
+    public int cancelOutside(TileRange range, int margin) {
+        return cancelOutside(null, range, margin);
+    }
+
+    /**
+     * Cancels the jobs of an owner of tiles outside the range: queued jobs are removed and
+     * running jobs are asked to stop with {@link TileJob#cancel()}. Jobs without a tile and
+     * jobs of other owners are kept.
+     * @param owner the owner of the jobs
+     * @param range the tiles to keep loading
+     * @param margin number of tiles the range is extended by on each side
+     * @return number of cancelled jobs
+     */
+    public synchronized int cancelOutside(Object owner, TileRange range, int margin) {
+        List<PrioritizedJob> outside = new ArrayList<>();
+        synchronized (inFlight) {
+            inFlight.forEachValue(first -> {
+                PrioritizedJob job = find(first, owner);
+                if (job != null && !range.contains(job.tile, margin)) {
+                    outside.add(job);
+                }
+            });
+        }
+        for (PrioritizedJob job : outside) {
+            job.cancel();
+        }
+        canceled.add(outside.size());
+        return outside.size();
+    }
+
+    /**
+     * Determines whether a job without an owner for the tile is queued or running.
+     * @param tile the tile
+     * @return {@code true} if a job for the tile is in flight
+     */
+    public boolean isInFlight(Tile tile) {
+        return isInFlight(tile, null);
+    }
+
+    /**
+     * Determines whether a job of an owner for the tile is queued or running.
+     * @param tile the tile
+     * @param owner the owner of the job
+     * @return {@code true} if a job of the owner for the tile is in flight
+     */
+    public boolean isInFlight(Tile tile, Object owner) {
+        synchronized (inFlight) {
+            return find(inFlight.get(tile.getPackedKey()), owner) != null;
+        }
+    }
+
+    /**
+     * Determines whether an owner has tile jobs queued or running.
+     * @param owner the owner of the jobs
+     * @return {@code true} if a tile job of the owner is in flight
+     */
+    public boolean hasJobs(Object owner) {
+        boolean[] found = new boolean[1];
+        synchronized (inFlight) {
+            inFlight.forEachValue(first -> found[0] |= find(first, owner) != null);
+        }
+        return found[0];
+    }
+
+    /**
+     * @return number of tile jobs submitted, including dropped duplicates
+     */
+    public long getSubmittedCount() {
+        return submitted.sum();
+    }
+
+    /**
+     * @return number of tile jobs dropped because a job for the same tile was in flight
+     */
+    public long getDeduplicatedCount() {
+        return deduplicated.sum();
+    }
+
+    /**
+     * @return number of tile jobs cancelled because their tiles left the displayed range
+     */
+    public long getCanceledCount() {
+        return canceled.sum();
+    }
+
+    /**
+     * @return share of submitted tile jobs dropped as duplicates, {@code 0} if none has been submitted
+     */
+    public double getDeduplicationRatio() {
+        long total = submitted.sum();
+        return total == 0 ? 0 : (double) deduplicated.sum() / total;
+    }
+
+    /**
+     * Sets the displayed part of the map for the jobs without an owner.
+     * @param tileX X coordinate of the centre of the viewport, in tiles at the zoom level
+     * @param tileY Y coordinate of the centre of the viewport, in tiles at the zoom level
+     * @param zoom displayed zoom level
+     * @see #setViewport(Object, double, double, int)
+     */
+    public void setViewport(double tileX, double tileY, int zoom) {
+        setViewport(null, tileX, tileY, zoom);
+    }
+
+    /**
+     * Sets the part of the map displayed by an owner. If it differs from the previous
+     * one, the queued jobs of the owner are ordered again.
+     * @param owner the owner of the jobs
+     * @param tileX X coordinate of the centre of the viewport, in tiles at the zoom level
+     * @param tileY Y coordinate of the centre of the viewport, in tiles at the zoom level
+     * @param zoom displayed zoom level
+     */
+    public synchronized void setViewport(Object owner, double tileX, double tileY, int zoom) {
+        Viewport viewport = viewports.get(owner);
+        if (viewport != null && tileX == viewport.centerX && tileY == viewport.centerY && zoom == viewport.zoom)
+            return;
+        viewport = new Viewport(tileX, tileY, zoom);
+        viewports.put(owner, viewport);
+        List<Runnable> queued = new ArrayList<>();
+        getQueue().drainTo(queued);
+        for (Runnable job : queued) {
+            PrioritizedJob prioritized = (PrioritizedJob) job;
+            if (prioritized.owner == owner) {
+                prioritized.updatePriority(viewport);
+            }
+        }
+        getQueue().addAll(queued);
+    }
+
+    private synchronized Viewport getViewport(Object owner) {
+        Viewport viewport = viewports.get(owner);
+        return viewport == null ? Viewport.UNKNOWN : viewport;
+    }
+
+    /**
+     * @return zoom level displayed by the jobs without an owner, {@code -1} if no viewport has been set yet
+     */
+    public int getViewportZoom() {
+        return getViewport(null).zoom;
+    }
+
+    /**
+     * Displayed part of the map of an owner.
+     */
+    private static final class Viewport {
+        private static final Viewport UNKNOWN = new Viewport(0, 0, -1);
+
+        private final double centerX;
+        private final double centerY;
+        /** displayed zoom level, {@code -1} while unknown */
+        private final int zoom;
+
+        private Viewport(double centerX, double centerY, int zoom) {
+            this.centerX = centerX;
+            this.centerY = centerY;
+            this.zoom = zoom;
+        }
+    }
+
+    /**
+     * Queued job with its priority.
+     */
+    private final class PrioritizedJob implements Runnable, Comparable<PrioritizedJob> {
+        private final Runnable job;
+        private final Tile tile;
+        private final Object owner;
+        private final long sequence;
+        /** next job of another owner for the same tile, guarded by {@link #inFlight} */
+        private PrioritizedJob next;
+        /** difference of the zoom level of the tile to the displayed one */
+        private int zoomDistance;
+        /** squared distance of the tile from the centre of the viewport, in tiles at the zoom level of the tile */
+        private double distance;
+
+        private PrioritizedJob(Runnable job, Tile tile, Object owner, long sequence) {
+            this.job = job;
+            this.tile = tile;
+            this.owner = owner;
+            this.sequence = sequence;
+        }
+
+        private void updatePriority(Viewport viewport) {
+            int zoom = viewport.zoom;
+            if (tile == null || zoom < 0) {
+                zoomDistance = tile == null ? Integer.MAX_VALUE : 0;
+                distance = 0;
+                return;
+            }
+            int z = tile.getZoom();
+            zoomDistance = Math.abs(z - zoom);
+            double scale = Math.scalb(1.0, z - zoom);
+            double dx = tile.getXtile() + 0.5 - viewport.centerX * scale;
+            double dy = tile.getYtile() + 0.5 - viewport.centerY * scale;
+            distance = dx * dx + dy * dy;
+        }
+
+        @Override
+        public void run() {
+            try {
+                job.run();
+            } finally {
+                done();
+            }
+        }
+
+        /**
+         * Removes the job from the queue, or stops it if it is running. Queue changes of
+         * {@link #setViewport} are excluded by the lock of the scheduler.
+         */
+        private void cancel() {
+            if (getQueue().remove(this)) {
+                done();
+            } else if (job instanceof TileJob) {
+                ((TileJob) job).cancel();
+            }
+        }
+
+        /**
+         * Ends the job in flight, later jobs for the tile are queued again.
+         */
+        private void done() {
+            if (tile == null)
+                return;
+            synchronized (inFlight) {
+                long key = tile.getPackedKey();
+                PrioritizedJob first = inFlight.get(key);
+                if (first == this) {
+                    if (next == null) {
+                        inFlight.remove(key);
+                    } else {
+                        inFlight.put(key, next);
+                    }
+                } else {
+                    for (PrioritizedJob job = first; job != null; job = job.next) {
+                        if (job.next == this) {
+                            job.next = next;
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+
+        @Override
+        public int compareTo(PrioritizedJob other) {
+            int c = Integer.compare(zoomDistance, other.zoomDistance);
+            if (c == 0) {
+                c = Double.compare(distance, other.distance);
+            }
+            return c != 0 ? c : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.openstreetmap.gui.jmapviewer.tilesources.AdaptiveConcurrencyLimit;
+import org.openstreetmap.gui.jmapviewer.tilesources.ConnectionLimiter;
+
+/**
+ * Unit tests of {@link AdaptiveConcurrencyLimit} class.
+ */
+public class AdaptiveConcurrencyLimitTest {
+
+    /**
+     * Reports a window of requests while all connections are in use.
+     */
+    private static void window(ConnectionLimiter limiter, AdaptiveConcurrencyLimit adaptive, long latencyMillis, int failures)
+            throws InterruptedException {
+        while (limiter.getActive() < limiter.getLimit()) {
+            limiter.acquire();
+        }
+        int samples = Math.max(10, adaptive.getLimit());
+        for (int i = 0; i < samples; i++) {
+            if (i == samples - 1) {
+                // idle when the window is evaluated
+                while (limiter.getActive() > 0) {
+                    limiter.release();
+                }
+            }
+            if (i < failures) {
+                adaptive.onFailure();
+            } else {
+                adaptive.onSuccess(TimeUnit.MILLISECONDS.toNanos(latencyMillis));
+            }
+        }
+    }
+
+    /**
+     * Unit test of increasing the limit while the latency is flat and decreasing it when latency or errors climb.
+     * @throws InterruptedException never
+     */
+    @Test
+    public void testAimd() throws InterruptedException {
+        ConnectionLimiter limiter = new ConnectionLimiter(4);
+        AdaptiveConcurrencyLimit adaptive = new AdaptiveConcurrencyLimit(limiter);
+
+        // measured but not adjusted while disabled
+        window(limiter, adaptive, 20, 0);
+        assertEquals(4, adaptive.getLimit());
+        assertEquals(20.0, adaptive.getLatency(), 1e-9);
+
+        adaptive.setEnabled(true);
+        for (int i = 0; i < 4; i++) {
+            window(limiter, adaptive, 20, 0);
+        }
+        assertEquals(8, adaptive.getLimit());
+        assertEquals(8, limiter.getLimit());
+        assertEquals(4, adaptive.getIncreaseCount());
+
+        // latency doubles
+        window(limiter, adaptive, 40, 0);
+        assertEquals(6, adaptive.getLimit());
+        assertEquals(40.0, adaptive.getLatency(), 1e-9);
+        assertTrue(adaptive.getBaselineLatency() > 20 && adaptive.getBaselineLatency() < 40);
+
+        // errors at flat latency
+        window(limiter, adaptive, 20, 2);
+        assertEquals(4, adaptive.getLimit());
+        assertEquals(0.2, adaptive.getErrorRate(), 1e-9);
+        assertEquals(2, adaptive.getDecreaseCount());
+
+        // not increased if the connections were not all in use
+        for (int i = 0; i < 10; i++) {
+            adaptive.onSuccess(TimeUnit.MILLISECONDS.toNanos(20));
+        }
+        window(limiter, adaptive, 20, 0);
+        assertEquals(5, adaptive.getLimit());
+        adaptive.setMaxLimit(3);
+        assertEquals(3, limiter.getLimit());
+        assertEquals(90, adaptive.getSampleCount());
+    }
+}
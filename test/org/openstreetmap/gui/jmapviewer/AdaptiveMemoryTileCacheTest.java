@@ -0,0 +1,84 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.ref.WeakReference;
+
+import javax.management.Notification;
+
+import org.junit.Test;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileSource;
+import org.openstreetmap.gui.jmapviewer.tilesources.OnlineMapServices;
+
+/**
+ * Unit tests of {@link AdaptiveMemoryTileCache} class.
+ */
+public class AdaptiveMemoryTileCacheTest {
+
+    /**
+     * Cache that always sees enough heap headroom.
+     */
+    private static class RoomyCache extends AdaptiveMemoryTileCache {
+        RoomyCache(double workingSetFactor, int maxCacheSize) {
+            super(workingSetFactor, maxCacheSize);
+        }
+
+        @Override
+        protected boolean hasHeadroom() {
+            return true;
+        }
+    }
+
+    /**
+     * Unit test of growing and shrinking the cache.
+     */
+    @Test
+    public void testGrowAndShrink() {
+        TileSource source = new OnlineMapServices.Mapnik();
+        AdaptiveMemoryTileCache cache = new RoomyCache(2, 500);
+        try {
+            assertEquals(200, cache.getCacheSize());
+            cache.setVisibleTileCount(120);
+            assertEquals(240, cache.getCacheSize());
+            cache.setVisibleTileCount(10);
+            assertEquals(240, cache.getCacheSize());
+
+            for (int x = 0; x < 600; x++) {
+                cache.addTile(new Tile(source, x, 0, 12));
+            }
+            // grown instead of evicting, up to the maximum
+            assertEquals(500, cache.getCacheSize());
+            assertEquals(500, cache.getTileCount());
+
+            cache.handleNotification(new Notification(MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED, this, 1), null);
+            assertEquals(250, cache.getCacheSize());
+            assertEquals(250, cache.getTileCount());
+
+            // never below the visible tiles
+            cache.setVisibleTileCount(200);
+            cache.handleNotification(new Notification(MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED, this, 2), null);
+            assertEquals(200, cache.getCacheSize());
+        } finally {
+            cache.close();
+        }
+    }
+
+    /**
+     * Unit test that the memory notifications do not keep a cache that has not been closed from being garbage collected.
+     * @throws InterruptedException if interrupted while waiting for the garbage collector
+     */
+    @Test
+    public void testNotPinned() throws InterruptedException {
+        WeakReference<AdaptiveMemoryTileCache> cache = new WeakReference<>(new AdaptiveMemoryTileCache(2, 500));
+        for (int i = 0; i < 50 && cache.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(cache.get());
+        // unregisters the listener of the collected cache
+        new AdaptiveMemoryTileCache(2, 500).close();
+    }
+}
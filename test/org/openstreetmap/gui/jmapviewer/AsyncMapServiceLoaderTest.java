@@ -0,0 +1,165 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileLoader;
+import org.openstreetmap.gui.jmapviewer.tilesources.AbstractOsmMapService;
+import org.openstreetmap.gui.jmapviewer.tilesources.AsyncMapServiceLoader;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Unit tests of {@link AsyncMapServiceLoader} class, against a local tile server.
+ */
+public class AsyncMapServiceLoaderTest {
+
+    private HttpServer server;
+    private final AtomicInteger requests = new AtomicInteger();
+    private volatile String userAgent;
+    private final CountDownLatch received = new CountDownLatch(1);
+    private final CountDownLatch unblock = new CountDownLatch(1);
+
+    private static class LocalMapService extends AbstractOsmMapService {
+        LocalMapService(int port) {
+            super("Local", "http://127.0.0.1:" + port, "local");
+        }
+    }
+
+    /**
+     * Starts a tile server answering tiles of zoom level 3 with a PNG image, tiles of zoom level 5 once
+     * {@link #unblock} has been released, and all other tiles with 404.
+     * @throws IOException if the server cannot be started
+     */
+    @Before
+    public void setUp() throws IOException {
+        Assume.assumeTrue(AsyncMapServiceLoader.isSupported());
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB), "png", png);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            requests.incrementAndGet();
+            userAgent = exchange.getRequestHeaders().getFirst("User-Agent");
+            if (exchange.getRequestURI().getPath().startsWith("/5/")) {
+                received.countDown();
+                try {
+                    unblock.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                exchange.sendResponseHeaders(404, -1);
+                exchange.close();
+                return;
+            }
+            if (exchange.getRequestURI().getPath().startsWith("/3/")) {
+                exchange.getResponseHeaders().add("Content-Type", "image/png");
+                exchange.getResponseHeaders().add("Cache-Control", "public, max-age=3600");
+                exchange.sendResponseHeaders(200, png.size());
+                try (OutputStream out = exchange.getResponseBody()) {
+                    png.writeTo(out);
+                }
+            } else {
+                exchange.sendResponseHeaders(404, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * Stops the tile server.
+     */
+    @After
+    public void tearDown() {
+        unblock.countDown();
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    private Tile load(LocalMapService source, int zoom) throws InterruptedException {
+        CountDownLatch finished = new CountDownLatch(1);
+        TileLoader loader = source.getTileLoader((t, success) -> finished.countDown());
+        assertTrue(loader instanceof AsyncMapServiceLoader);
+        Tile tile = new Tile(source, 1, 2, zoom);
+        loader.createTileLoaderJob(tile).startTileLoad();
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        return tile;
+    }
+
+    /**
+     * Unit test of loading a tile, with its metadata.
+     * @throws InterruptedException if interrupted while waiting for the tile
+     */
+    @Test
+    public void testLoad() throws InterruptedException {
+        LocalMapService source = new LocalMapService(server.getAddress().getPort());
+        source.setAsyncLoading(true);
+        long now = System.currentTimeMillis();
+        Tile tile = load(source, 3);
+        assertTrue(tile.isLoaded());
+        assertFalse(tile.hasError());
+        assertNotNull(tile.getImage());
+        assertEquals(256, tile.getImage().getWidth());
+        assertTrue(Long.parseLong(tile.getValue("expires")) >= now + 3600_000);
+        assertEquals(1, requests.get());
+        assertTrue(userAgent.startsWith("JMapViewer/"));
+    }
+
+    /**
+     * Unit test of a tile the server does not have.
+     * @throws InterruptedException if interrupted while waiting for the tile
+     */
+    @Test
+    public void testNotFound() throws InterruptedException {
+        LocalMapService source = new LocalMapService(server.getAddress().getPort());
+        source.setAsyncLoading(true);
+        Tile tile = load(source, 4);
+        assertTrue(tile.isLoaded());
+        assertTrue(tile.hasError());
+        assertTrue(tile.getErrorMessage().contains("404"));
+    }
+
+    /**
+     * Unit test of cancelling a request in flight, which ends the exchange before the server answers.
+     * @throws InterruptedException if interrupted while waiting for the request
+     */
+    @Test
+    public void testCancel() throws InterruptedException {
+        LocalMapService source = new LocalMapService(server.getAddress().getPort());
+        source.setAsyncLoading(true);
+        AtomicInteger finished = new AtomicInteger();
+        TileLoader loader = source.getTileLoader((t, success) -> finished.incrementAndGet());
+        Tile tile = new Tile(source, 1, 2, 5);
+        loader.createTileLoaderJob(tile).startTileLoad();
+        assertTrue(received.await(10, TimeUnit.SECONDS));
+        loader.cancelOutside(new TileRange(10, 10, 11, 11, 5), 0);
+        long deadline = System.currentTimeMillis() + 10_000;
+        while ((tile.isLoading() || loader.hasOutstandingTasks()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertFalse(tile.isLoading());
+        assertFalse(tile.isLoaded());
+        assertFalse(loader.hasOutstandingTasks());
+        assertEquals(0, finished.get());
+    }
+}
@@ -0,0 +1,78 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileSource;
+import org.openstreetmap.gui.jmapviewer.tilesources.OnlineMapServices;
+
+/**
+ * Unit tests of {@link ConcurrentTileCache} class.
+ */
+public class ConcurrentTileCacheTest {
+
+    private final TileSource source = new OnlineMapServices.Mapnik();
+
+    /**
+     * Unit test of {@link ConcurrentTileCache#getTile}.
+     */
+    @Test
+    public void testGetTile() {
+        ConcurrentTileCache cache = new ConcurrentTileCache(10);
+        Tile tile = new Tile(source, 1, 2, 3);
+        cache.addTile(tile);
+        assertSame(tile, cache.getTile(source, 1, 2, 3));
+        assertNull(cache.getTile(source, 2, 1, 3));
+    }
+
+    /**
+     * Unit test of {@link ConcurrentTileCache#addTile} eviction.
+     */
+    @Test
+    public void testEviction() {
+        ConcurrentTileCache cache = new ConcurrentTileCache(10);
+        for (int i = 0; i <= 10; i++) {
+            cache.addTile(new Tile(source, i, 0, 5));
+        }
+        // the sweep evicting a tile has cleared the flags of all others
+        assertEquals(10, cache.getTileCount());
+        int unreferenced = -1;
+        for (int i = 0; i <= 10; i++) {
+            if (cache.hash.containsKey(Tile.getPackedKey(source, i, 0, 5))) {
+                if (unreferenced < 0) {
+                    unreferenced = i;
+                } else {
+                    // reference the other tiles, so the clock hand skips them
+                    assertNotNull(cache.getTile(source, i, 0, 5));
+                }
+            }
+        }
+        cache.addTile(new Tile(source, 11, 0, 5));
+        assertEquals(10, cache.getTileCount());
+        assertNull(cache.getTile(source, unreferenced, 0, 5));
+        assertNotNull(cache.getTile(source, 11, 0, 5));
+    }
+
+    /**
+     * Unit test of {@link ConcurrentTileCache#addTile} keeping the tile just added when the cache is full.
+     */
+    @Test
+    public void testAddedTileSurvivesEviction() {
+        ConcurrentTileCache cache = new ConcurrentTileCache(10);
+        for (int i = 0; i < 10; i++) {
+            cache.addTile(new Tile(source, i, 0, 5));
+        }
+        Tile added = new Tile(source, 10, 0, 5);
+        cache.addTile(added);
+        assertEquals(10, cache.getTileCount());
+        assertSame(added, cache.getTile(source, 10, 0, 5));
+        // the next tile added evicts an older one, not the previous one
+        cache.addTile(new Tile(source, 11, 0, 5));
+        assertSame(added, cache.getTile(source, 10, 0, 5));
+        assertNotNull(cache.getTile(source, 11, 0, 5));
+    }
+}
@@ -0,0 +1,66 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.openstreetmap.gui.jmapviewer.tilesources.AbstractTileLoader;
+import org.openstreetmap.gui.jmapviewer.tilesources.ConnectionLimiter;
+import org.openstreetmap.gui.jmapviewer.tilesources.TileJobScheduler;
+
+/**
+ * Unit tests of {@link ConnectionLimiter} class.
+ */
+public class ConnectionLimiterTest {
+
+    /**
+     * Unit test of waiting for a connection, and of raising the limit while waiting.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @Test
+    public void testLimit() throws InterruptedException {
+        ConnectionLimiter limiter = new ConnectionLimiter(1);
+        limiter.acquire();
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiting = new Thread(() -> {
+            try {
+                limiter.acquire();
+                acquired.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        waiting.start();
+        assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+        limiter.setLimit(2);
+        assertTrue(acquired.await(10, TimeUnit.SECONDS));
+        assertEquals(2, limiter.getActive());
+
+        // lowered below the open connections, takes effect as they are closed
+        limiter.setLimit(1);
+        limiter.release();
+        assertEquals(1, limiter.getActive());
+        limiter.release();
+        assertEquals(0, limiter.getActive());
+    }
+
+    /**
+     * Unit test of {@link AbstractTileLoader#setVirtualThreads(boolean)}, which falls back to platform threads
+     * if the JVM does not support virtual threads.
+     */
+    @Test
+    public void testVirtualThreads() {
+        try {
+            assertEquals(TileJobScheduler.isVirtualThreadSupported(), AbstractTileLoader.setVirtualThreads(true));
+            assertEquals(TileJobScheduler.isVirtualThreadSupported(), AbstractTileLoader.isVirtualThreads());
+        } finally {
+            AbstractTileLoader.setVirtualThreads(false);
+        }
+        assertFalse(AbstractTileLoader.isVirtualThreads());
+    }
+}
@@ -0,0 +1,174 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileClearController;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileSource;
+import org.openstreetmap.gui.jmapviewer.tilesources.AbstractOsmMapService;
+import org.openstreetmap.gui.jmapviewer.tilesources.OnlineMapServices;
+
+/**
+ * Unit tests of {@link DiskTileStore} class.
+ */
+public class DiskTileStoreTest {
+
+    /**
+     * Temporary directory of the store.
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final TileSource source = new OnlineMapServices.Mapnik();
+
+    private static class LocalMapService extends AbstractOsmMapService {
+        LocalMapService(String url) {
+            super("Local", url, "local");
+        }
+    }
+
+    private Tile createLoadedTile(int x) throws IOException {
+        return createLoadedTile(source, x, 256);
+    }
+
+    private static Tile createLoadedTile(TileSource source, int x, int size) throws IOException {
+        Tile tile = TestTiles.createLoadedTile(source, x, size);
+        tile.putValue("expires", "1234");
+        return tile;
+    }
+
+    /**
+     * Unit test of {@link DiskTileStore#store} and {@link DiskTileStore#load} across instances.
+     * @throws Exception if an error occurs
+     */
+    @Test
+    public void testStoreAndLoad() throws Exception {
+        DiskTileStore store = new DiskTileStore(folder.getRoot(), 1024 * 1024);
+        store.store(createLoadedTile(1));
+        assertTrue(store.close(10_000));
+
+        DiskTileStore reopened = new DiskTileStore(folder.getRoot(), 1024 * 1024);
+        Tile tile = new Tile(source, 1, 0, 10);
+        assertTrue(reopened.load(tile));
+        assertNotNull(tile.getImage());
+        assertEquals(256, tile.getImage().getWidth());
+        assertEquals("1234", tile.getValue("expires"));
+        assertFalse(reopened.load(new Tile(source, 2, 0, 10)));
+        reopened.close(10_000);
+        assertTrue(reopened.getTotalBytes() > 0);
+    }
+
+    /**
+     * Unit test of {@link DiskTileStore#clear}.
+     * @throws Exception if an error occurs
+     */
+    @Test
+    public void testClear() throws Exception {
+        DiskTileStore store = new DiskTileStore(folder.getRoot(), 1024 * 1024);
+        for (int x = 0; x < 5; x++) {
+            store.store(createLoadedTile(x));
+        }
+        store.close(10_000);
+        List<File> deleted = new ArrayList<>();
+        boolean[] finished = {false};
+        store.clear(source, new TileClearController() {
+            @Override
+            public void initClearDir(File dir) {
+                // not needed
+            }
+
+            @Override
+            public void initClearFiles(File[] files) {
+                assertEquals(5, files.length);
+            }
+
+            @Override
+            public boolean cancel() {
+                return false;
+            }
+
+            @Override
+            public void fileDeleted(File file) {
+                deleted.add(file);
+            }
+
+            @Override
+            public void clearFinished() {
+                finished[0] = true;
+            }
+        });
+        assertEquals(5, deleted.size());
+        assertTrue(finished[0]);
+        assertEquals(0, store.getTotalBytes());
+        assertFalse(store.load(new Tile(source, 0, 0, 10)));
+    }
+
+    /**
+     * Unit test that sources whose ids only differ in characters replaced in file names are stored apart.
+     * @throws Exception if an error occurs
+     */
+    @Test
+    public void testSimilarSourceIds() throws Exception {
+        // the id of a map service is its base URL
+        TileSource slash = new LocalMapService("http://127.0.0.1/tiles/a");
+        TileSource colon = new LocalMapService("http://127.0.0.1/tiles:a");
+        DiskTileStore store = new DiskTileStore(folder.getRoot(), 1024 * 1024);
+        assertNotEquals(store.getFile(new Tile(slash, 1, 0, 10)), store.getFile(new Tile(colon, 1, 0, 10)));
+        store.store(createLoadedTile(slash, 1, 64));
+        store.store(createLoadedTile(colon, 1, 128));
+        assertTrue(store.close(10_000));
+
+        DiskTileStore reopened = new DiskTileStore(folder.getRoot(), 1024 * 1024);
+        Tile tile = new Tile(slash, 1, 0, 10);
+        assertTrue(reopened.load(tile));
+        assertEquals(64, tile.getImage().getWidth());
+        tile = new Tile(colon, 1, 0, 10);
+        assertTrue(reopened.load(tile));
+        assertEquals(128, tile.getImage().getWidth());
+        assertTrue(reopened.close(10_000));
+    }
+
+    /**
+     * Unit test that tiles stored after {@link DiskTileStore#close} are ignored and
+     * that the encoded data kept for the store is dropped once the tile has been stored.
+     * @throws Exception if an error occurs
+     */
+    @Test
+    public void testStoreAfterClose() throws Exception {
+        DiskTileStore store = new DiskTileStore(folder.getRoot(), 1024 * 1024);
+        Tile tile = createLoadedTile(1);
+        tile.setRetainEncodedData(false);
+        tile.setKeepEncodedDataUntilStored(true);
+        tile.loadImage(tile.getEncodedData());
+        store.store(tile);
+        tile.encodedDataStored();
+        assertNull(tile.getEncodedData());
+        assertNotNull(tile.getImage());
+        assertTrue(store.close(10_000));
+
+        Tile closed = createLoadedTile(2);
+        store.store(closed);
+        store.store(closed);
+        assertNotNull(closed.getEncodedData());
+        closed.encodedDataStored();
+        assertNotNull(closed.getEncodedData());
+
+        DiskTileStore reopened = new DiskTileStore(folder.getRoot(), 1024 * 1024);
+        assertTrue(reopened.load(new Tile(source, 1, 0, 10)));
+        assertFalse(reopened.load(new Tile(source, 2, 0, 10)));
+        assertTrue(reopened.close(10_000));
+    }
+}
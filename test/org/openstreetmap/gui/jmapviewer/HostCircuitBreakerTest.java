@@ -0,0 +1,55 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.openstreetmap.gui.jmapviewer.tilesources.HostCircuitBreaker;
+import org.openstreetmap.gui.jmapviewer.tilesources.HostCircuitBreaker.State;
+
+/**
+ * Unit tests of {@link HostCircuitBreaker} class.
+ */
+public class HostCircuitBreakerTest {
+
+    /**
+     * Unit test of opening the breaker, probing it and closing it again.
+     * @throws InterruptedException if interrupted while waiting for the backoff
+     */
+    @Test
+    public void testOpenAndProbe() throws InterruptedException {
+        HostCircuitBreaker breaker = new HostCircuitBreaker("test", 3, 200, 400);
+        for (int i = 0; i < 2; i++) {
+            assertTrue(breaker.allowRequest());
+            breaker.recordFailure("refused");
+        }
+        assertEquals(State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+        breaker.recordFailure("refused");
+        assertEquals(State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+        assertTrue(breaker.getRetryDelay() > 0);
+
+        // a single probe after the backoff, failing doubles the backoff
+        Thread.sleep(260);
+        assertTrue(breaker.allowRequest());
+        assertEquals(State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+        breaker.recordFailure("refused");
+        assertEquals(State.OPEN, breaker.getState());
+        assertTrue(breaker.getRetryDelay() > 250);
+
+        // a cancelled probe allows another one, a successful one closes the breaker
+        Thread.sleep(520);
+        assertTrue(breaker.allowRequest());
+        breaker.recordIgnored();
+        assertTrue(breaker.allowRequest());
+        breaker.recordSuccess();
+        assertEquals(State.CLOSED, breaker.getState());
+        assertEquals(0, breaker.getConsecutiveFailures());
+        assertTrue(breaker.allowRequest());
+        assertEquals(2, breaker.getRejectedCount());
+    }
+}
@@ -0,0 +1,59 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+import org.openstreetmap.gui.jmapviewer.tilesources.OnlineMapServices;
+
+/**
+ * Unit tests of {@link LongHashMap} class.
+ */
+public class LongHashMapTest {
+
+    /**
+     * Compares {@link LongHashMap} with {@link HashMap} on random operations.
+     */
+    @Test
+    public void testRandomOperations() {
+        LongHashMap<Long> map = new LongHashMap<>(4);
+        Map<Long, Long> reference = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            long key = 1 + random.nextInt(2000);
+            if (random.nextInt(3) == 0) {
+                assertEquals(reference.remove(key), map.remove(key));
+            } else {
+                assertEquals(reference.put(key, (long) i), map.put(key, (long) i));
+            }
+            assertEquals(reference.size(), map.size());
+        }
+        for (long key = 1; key <= 2000; key++) {
+            assertEquals(reference.get(key), map.get(key));
+        }
+        map.clear();
+        assertEquals(0, map.size());
+        assertNull(map.get(1));
+    }
+
+    /**
+     * Unit test of {@link Tile#getPackedKey(org.openstreetmap.gui.jmapviewer.interfaces.TileSource, int, int, int)}.
+     */
+    @Test
+    public void testPackedKey() {
+        OnlineMapServices.Mapnik mapnik = new OnlineMapServices.Mapnik();
+        OnlineMapServices.CycleMap cycleMap = new OnlineMapServices.CycleMap();
+        int max = (1 << JMapViewer.MAX_ZOOM) - 1;
+        assertEquals(Tile.getPackedKey(mapnik, max, 0, 22), new Tile(mapnik, max, 0, 22).getPackedKey());
+        assertNotEquals(Tile.getPackedKey(mapnik, max, 0, 22), Tile.getPackedKey(mapnik, 0, max, 22));
+        assertNotEquals(Tile.getPackedKey(mapnik, 1, 1, 1), Tile.getPackedKey(mapnik, 1, 1, 2));
+        assertNotEquals(Tile.getPackedKey(mapnik, 1, 1, 1), Tile.getPackedKey(cycleMap, 1, 1, 1));
+        assertNotEquals(0, Tile.getPackedKey(mapnik, 0, 0, 0));
+    }
+}
@@ -0,0 +1,217 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileLoader;
+import org.openstreetmap.gui.jmapviewer.tilesources.AbstractOsmMapService;
+import org.openstreetmap.gui.jmapviewer.tilesources.HostCircuitBreaker;
+import org.openstreetmap.gui.jmapviewer.tilesources.MapServiceLoader;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Unit tests of {@link org.openstreetmap.gui.jmapviewer.tilesources.MapServiceLoader} class, against a local tile server.
+ */
+public class MapServiceLoaderTest {
+
+    private static final String ETAG = "\"v1\"";
+
+    private HttpServer server;
+    private final AtomicInteger downloads = new AtomicInteger();
+    private final AtomicInteger notModified = new AtomicInteger();
+    private final AtomicInteger unavailable = new AtomicInteger();
+    private final AtomicBoolean down = new AtomicBoolean();
+
+    private static class LocalMapService extends AbstractOsmMapService {
+        LocalMapService(int port) {
+            super("Local", "http://127.0.0.1:" + port, "local");
+        }
+    }
+
+    /**
+     * Starts a tile server sending tiles with an ETag, which answers conditional requests for that ETag with 304,
+     * or 503 while it is down.
+     * @throws IOException if the server cannot be started
+     */
+    @Before
+    public void setUp() throws IOException {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB), "png", png);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            if (down.get()) {
+                unavailable.incrementAndGet();
+                exchange.sendResponseHeaders(503, -1);
+                exchange.close();
+                return;
+            }
+            exchange.getResponseHeaders().add("ETag", ETAG);
+            exchange.getResponseHeaders().add("Last-Modified", "Tue, 15 Sep 2026 08:00:00 GMT");
+            exchange.getResponseHeaders().add("Cache-Control", "max-age=600");
+            if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                notModified.incrementAndGet();
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+            downloads.incrementAndGet();
+            exchange.getResponseHeaders().add("Content-Type", "image/png");
+            exchange.sendResponseHeaders(200, png.size());
+            try (OutputStream out = exchange.getResponseBody()) {
+                png.writeTo(out);
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * Stops the tile server.
+     */
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    /**
+     * Unit test of revalidating an expired tile with a conditional request, answered with 304 Not Modified.
+     * @throws InterruptedException if interrupted while waiting for the tile
+     */
+    @Test
+    public void testConditionalRevalidation() throws InterruptedException {
+        LocalMapService source = new LocalMapService(server.getAddress().getPort());
+        Semaphore finished = new Semaphore(0);
+        TileLoader loader = source.getTileLoader((t, success) -> finished.release());
+        Tile tile = new Tile(source, 1, 2, 3);
+        loader.createTileLoaderJob(tile).startTileLoad();
+        assertTrue(finished.tryAcquire(10, TimeUnit.SECONDS));
+        assertFalse(tile.hasError());
+        assertEquals(ETAG, tile.getValue("etag"));
+        assertEquals("Tue, 15 Sep 2026 08:00:00 GMT", tile.getValue("last-modified"));
+        BufferedImage image = tile.getImage();
+
+        tile.putValue("expires", Long.toString(System.currentTimeMillis() - 1));
+        assertTrue(tile.initRevalidation());
+        long now = System.currentTimeMillis();
+        loader.createTileLoaderJob(tile).startRevalidation();
+        assertTrue(finished.tryAcquire(10, TimeUnit.SECONDS));
+        assertFalse(tile.isRevalidating());
+        assertFalse(tile.isExpired());
+        assertTrue(Long.parseLong(tile.getValue("expires")) >= now + 600_000);
+        assertSame(image, tile.getImage());
+        assertEquals(1, downloads.get());
+        assertEquals(1, notModified.get());
+    }
+
+    /**
+     * Unit test of a failed revalidation, which keeps the expiry time of the server and postpones the next one.
+     * @throws InterruptedException if interrupted while waiting for the revalidation
+     */
+    @Test
+    public void testFailedRevalidation() throws InterruptedException {
+        LocalMapService source = new LocalMapService(server.getAddress().getPort());
+        Semaphore finished = new Semaphore(0);
+        MapServiceLoader loader = (MapServiceLoader) source.getTileLoader((t, success) -> finished.release());
+        try {
+            Tile tile = new Tile(source, 1, 2, 3);
+            loader.createTileLoaderJob(tile).startTileLoad();
+            assertTrue(finished.tryAcquire(10, TimeUnit.SECONDS));
+
+            String expires = Long.toString(System.currentTimeMillis() - 1);
+            tile.putValue("expires", expires);
+            down.set(true);
+            assertTrue(tile.initRevalidation());
+            long now = System.currentTimeMillis();
+            loader.createTileLoaderJob(tile).startRevalidation();
+            long deadline = now + 10_000;
+            while (tile.isRevalidating() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertFalse(tile.isRevalidating());
+            assertEquals(1, unavailable.get());
+            assertEquals(expires, tile.getValue("expires"));
+            assertTrue(tile.isExpired());
+            assertTrue(tile.getRevalidationRetryTime() >= now + 60_000);
+            // not revalidated again before the retry time
+            assertFalse(tile.initRevalidation());
+
+            down.set(false);
+            tile.setRevalidationRetryTime(0);
+            assertTrue(tile.initRevalidation());
+            loader.createTileLoaderJob(tile).startRevalidation();
+            assertTrue(finished.tryAcquire(10, TimeUnit.SECONDS));
+            assertFalse(tile.isExpired());
+            assertEquals(0, tile.getRevalidationRetryTime());
+        } finally {
+            loader.getCircuitBreaker().reset();
+        }
+    }
+
+    /**
+     * Unit test of failing fast while the tile server is down, and loading tiles again once it has recovered.
+     * @throws InterruptedException if interrupted while waiting for the tiles
+     */
+    @Test
+    public void testCircuitBreaker() throws InterruptedException {
+        LocalMapService source = new LocalMapService(server.getAddress().getPort());
+        Semaphore finished = new Semaphore(0);
+        MapServiceLoader loader = (MapServiceLoader) source.getTileLoader((t, success) -> finished.release());
+        HostCircuitBreaker breaker = loader.getCircuitBreaker();
+        try {
+            down.set(true);
+            Tile[] tiles = new Tile[7];
+            for (int i = 0; i < tiles.length; i++) {
+                tiles[i] = new Tile(source, i, 0, 3);
+                loader.createTileLoaderJob(tiles[i]).startTileLoad();
+                awaitJob(loader, tiles[i]);
+            }
+            // opened after 5 failures, later tiles are not requested
+            assertEquals(5, unavailable.get());
+            assertEquals(HostCircuitBreaker.State.OPEN, breaker.getState());
+            for (Tile tile : tiles) {
+                assertFalse(tile.isLoaded());
+                assertFalse(tile.isLoading());
+                assertEquals(0, tile.getLoadErrorCount());
+            }
+
+            // the listener is notified after the backoff, so the tiles are queued again and probe the server
+            down.set(false);
+            assertTrue(finished.tryAcquire(10, TimeUnit.SECONDS));
+            loader.createTileLoaderJob(tiles[6]).startTileLoad();
+            assertTrue(finished.tryAcquire(10, TimeUnit.SECONDS));
+            assertTrue(tiles[6].isLoaded());
+            assertFalse(tiles[6].hasError());
+            assertEquals(HostCircuitBreaker.State.CLOSED, breaker.getState());
+            assertEquals(5, unavailable.get());
+        } finally {
+            breaker.reset();
+        }
+    }
+
+    private static void awaitJob(MapServiceLoader loader, Tile tile) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (loader.isInFlight(tile) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertFalse(loader.isInFlight(tile));
+    }
+}
@@ -0,0 +1,166 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileSource;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileWeigher;
+import org.openstreetmap.gui.jmapviewer.tilesources.AbstractOsmMapService;
+import org.openstreetmap.gui.jmapviewer.tilesources.OnlineMapServices;
+
+/**
+ * Unit tests of {@link MemoryTileCache} class.
+ */
+public class MemoryTileCacheTest {
+
+    private static final long TILE_BYTES = 256 * 256 * 4;
+
+    private final TileSource source = new OnlineMapServices.Mapnik();
+
+    private static final class LocalMapService extends AbstractOsmMapService {
+        LocalMapService(String url) {
+            super("Local", url, "local");
+        }
+    }
+
+    private Tile createTile(int x, int size) {
+        return new Tile(source, x, 0, 10, new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB));
+    }
+
+    /**
+     * Unit test of {@link MemoryTileCache#getBytesInUse}.
+     */
+    @Test
+    public void testBytesInUse() {
+        MemoryTileCache cache = new MemoryTileCache(10);
+        cache.addTile(createTile(0, 256));
+        cache.addTile(new Tile(source, 1, 0, 10));
+        assertEquals(TILE_BYTES, cache.getBytesInUse());
+        // image replaced after loading
+        cache.getTile(source, 0, 0, 10).setImage(new BufferedImage(512, 512, BufferedImage.TYPE_INT_ARGB));
+        cache.getTile(source, 0, 0, 10);
+        assertEquals(4 * TILE_BYTES, cache.getBytesInUse());
+        cache.clear();
+        assertEquals(0, cache.getBytesInUse());
+    }
+
+    /**
+     * Unit test of {@link MemoryTileCache#setMaxBytes}.
+     */
+    @Test
+    public void testByteBudget() {
+        MemoryTileCache cache = new MemoryTileCache(3 * TILE_BYTES, TileWeigher.RASTER_BYTES);
+        for (int x = 0; x < 3; x++) {
+            cache.addTile(createTile(x, 256));
+        }
+        assertEquals(3, cache.getTileCount());
+        // a 512px tile weighs as much as four 256px tiles, only itself remains
+        cache.addTile(createTile(3, 512));
+        assertEquals(1, cache.getTileCount());
+        assertNotNull(cache.getTile(source, 3, 0, 10));
+        assertNull(cache.getTile(source, 0, 0, 10));
+        cache.setMaxBytes(0);
+        for (int x = 0; x < 3; x++) {
+            cache.addTile(createTile(x, 256));
+        }
+        assertEquals(4, cache.getTileCount());
+        assertEquals(7 * TILE_BYTES, cache.getBytesInUse());
+    }
+
+    /**
+     * Unit test of {@link MemoryTileCache#getStats}.
+     */
+    @Test
+    public void testStats() {
+        MemoryTileCache cache = new MemoryTileCache(2);
+        TileCacheStats stats = cache.getStats();
+        assertNull(cache.getTile(source, 0, 0, 10));
+        cache.addTile(createTile(0, 256));
+        cache.addTile(createTile(1, 256));
+        assertNotNull(cache.getTile(source, 0, 0, 10));
+        cache.addTile(createTile(2, 256));
+
+        assertEquals(1, stats.getHitCount());
+        assertEquals(1, stats.getMissCount());
+        assertEquals(0.5, stats.getHitRate(), 1e-9);
+        assertEquals(3, stats.getLoadCount());
+        assertEquals(1, stats.getEvictionCount());
+        assertEquals(1, stats.getEvictionAgeHistogram()[0]);
+        assertEquals(2 * TILE_BYTES, stats.getBytesInUse());
+
+        assertEquals(0, TileCacheStats.getAgeBucket(0));
+        assertEquals(1, TileCacheStats.getAgeBucket(1));
+        assertEquals(3, TileCacheStats.getAgeBucket(5));
+        assertEquals(TileCacheStats.AGE_BUCKETS - 1, TileCacheStats.getAgeBucket(Long.MAX_VALUE));
+
+        stats.reset();
+        assertEquals(0, stats.getEvictionCount());
+    }
+
+    /**
+     * Unit test of the retention policies of {@link MemoryTileCache}.
+     */
+    @Test
+    public void testRetention() {
+        MemoryTileCache cache = new MemoryTileCache(2);
+        cache.setRetainedZoom(2);
+        cache.addTile(new Tile(source, 0, 0, 1, new BufferedImage(256, 256, BufferedImage.TYPE_INT_ARGB)));
+        // Stuttgart at zoom 10 is in tiles 537/352 and 538/352
+        cache.addAreaOfInterest(new AreaOfInterest(48.7, 9.1, 48.8, 9.2, 10, 10));
+        cache.addTile(new Tile(source, 538, 352, 10, new BufferedImage(256, 256, BufferedImage.TYPE_INT_ARGB)));
+        for (int x = 0; x < 5; x++) {
+            cache.addTile(createTile(x, 256));
+        }
+        assertEquals(4, cache.getTileCount());
+        assertNotNull(cache.getTile(source, 0, 0, 1));
+        assertNotNull(cache.getTile(source, 538, 352, 10));
+        assertEquals(2 * TILE_BYTES, cache.getPinnedBytes());
+        assertEquals(4 * TILE_BYTES, cache.getBytesInUse());
+
+        // unpinned tiles start over as most recently used
+        cache.setRetainedZoom(-1);
+        assertEquals(3, cache.getTileCount());
+        assertEquals(TILE_BYTES, cache.getPinnedBytes());
+        cache.addTile(createTile(5, 256));
+        cache.addTile(createTile(6, 256));
+        assertNull(cache.getTile(source, 0, 0, 1));
+        cache.removeAreaOfInterest(cache.getAreasOfInterest().get(0));
+        assertEquals(0, cache.getPinnedBytes());
+        assertEquals(2, cache.getTileCount());
+    }
+
+    /**
+     * Unit test of tile sources sharing the index in their packed keys once all indexes have been registered.
+     */
+    @Test
+    public void testSharedSourceIndex() {
+        Map<Long, String> ids = new HashMap<>();
+        String first = null;
+        String second = null;
+        for (int i = 0; i < 1 << 16 && second == null; i++) {
+            String id = "http://127.0.0.1/shared/" + i;
+            first = ids.put(Tile.getPackedKey(id, 0, 0, 1), id);
+            if (first != null) {
+                second = id;
+            }
+        }
+        assertNotNull(second);
+        TileSource firstSource = new LocalMapService(first);
+        TileSource secondSource = new LocalMapService(second);
+        Tile tile = new Tile(firstSource, 0, 0, 1);
+        assertEquals(tile.getPackedKey(), new Tile(secondSource, 0, 0, 1).getPackedKey());
+
+        MemoryTileCache cache = new MemoryTileCache(10);
+        cache.addTile(tile);
+        assertSame(tile, cache.getTile(firstSource, 0, 0, 1));
+        assertNull(cache.getTile(secondSource, 0, 0, 1));
+    }
+}
@@ -0,0 +1,73 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+
+import org.junit.Test;
+
+/**
+ * Unit tests of {@link OffHeapRasterAllocator} class.
+ */
+public class OffHeapRasterAllocatorTest {
+
+    /**
+     * Unit test of {@link OffHeapRasterAllocator#copyOf} and {@link OffHeapRasterAllocator#free}.
+     */
+    @Test
+    public void testCopyAndFree() {
+        OffHeapRasterAllocator allocator = new OffHeapRasterAllocator(2 * 16 * 16 * 4, 2 * 16 * 16 * 4);
+        BufferedImage image = new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(3, 5, 0xff123456);
+
+        BufferedImage copy = allocator.copyOf(image);
+        assertNotSame(image, copy);
+        assertEquals(0xff123456, copy.getRGB(3, 5));
+        assertEquals(0, copy.getRGB(0, 0));
+        BufferedImage second = allocator.copyOf(image);
+        // the only slab is used up, the image stays on the heap
+        assertSame(image, allocator.copyOf(image));
+        assertEquals(2 * 16 * 16 * 4, allocator.getUsedBytes());
+
+        assertTrue(allocator.free(copy));
+        assertFalse(allocator.free(copy));
+        assertFalse(allocator.free(image));
+        assertEquals(16 * 16 * 4, allocator.getUsedBytes());
+        // not reused while the freed image may still be painted
+        assertSame(image, allocator.copyOf(image));
+        copy = null;
+        BufferedImage reused = image;
+        for (int i = 0; i < 50 && reused == image; i++) {
+            System.gc();
+            reused = allocator.copyOf(image);
+        }
+        assertNotSame(image, reused);
+        assertTrue(allocator.free(second));
+        assertEquals(16 * 16 * 4, allocator.getUsedBytes());
+        assertEquals(2 * 16 * 16 * 4, allocator.getReservedBytes());
+    }
+
+    /**
+     * Unit test that an allocator does not free the images of another allocator.
+     */
+    @Test
+    public void testTwoAllocators() {
+        OffHeapRasterAllocator first = new OffHeapRasterAllocator(16 * 16 * 4, 16 * 16 * 4);
+        OffHeapRasterAllocator second = new OffHeapRasterAllocator(16 * 16 * 4, 16 * 16 * 4);
+        BufferedImage image = new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB);
+        BufferedImage copy = first.copyOf(image);
+        assertNotSame(image, copy);
+        assertSame(copy, second.copyOf(copy));
+
+        assertFalse(second.free(copy));
+        assertEquals(0, second.getUsedBytes());
+        assertEquals(16 * 16 * 4, first.getUsedBytes());
+        assertTrue(first.free(copy));
+        assertEquals(0, first.getUsedBytes());
+    }
+}
@@ -0,0 +1,152 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileSource;
+import org.openstreetmap.gui.jmapviewer.tilesources.OnlineMapServices;
+
+/**
+ * Unit tests of {@link PackFileTileStore} class.
+ */
+public class PackFileTileStoreTest {
+
+    /**
+     * Temporary directory of the store.
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final TileSource source = new OnlineMapServices.Mapnik();
+
+    private Tile createLoadedTile(int x, int size) throws IOException {
+        return TestTiles.createLoadedTile(source, x, size);
+    }
+
+    /**
+     * Unit test of reading, rewriting, compacting and reopening a store.
+     * @throws Exception if an error occurs
+     */
+    @Test
+    public void testStoreCompactAndReopen() throws Exception {
+        PackFileTileStore store = new PackFileTileStore(folder.getRoot(), 4096);
+        for (int x = 0; x < 20; x++) {
+            store.store(createLoadedTile(x, 64));
+        }
+        // rewrite all tiles, leaving the first records dead
+        for (int x = 0; x < 20; x++) {
+            store.store(createLoadedTile(x, 128));
+        }
+        assertTrue(store.getLiveBytes() < store.getTotalBytes());
+        store.compact(0.1);
+        assertEquals(store.getLiveBytes(), store.getTotalBytes());
+        store.close();
+
+        PackFileTileStore reopened = new PackFileTileStore(folder.getRoot(), 4096);
+        for (int x = 0; x < 20; x++) {
+            Tile tile = new Tile(source, x, 0, 10);
+            assertTrue(reopened.load(tile));
+            assertEquals(128, tile.getImage().getWidth());
+        }
+        reopened.clear(source, null);
+        assertFalse(reopened.load(new Tile(source, 0, 0, 10)));
+        reopened.close();
+
+        PackFileTileStore cleared = new PackFileTileStore(folder.getRoot(), 4096);
+        assertFalse(cleared.load(new Tile(source, 0, 0, 10)));
+        cleared.close();
+    }
+
+    /**
+     * Unit test that compaction drops the records of removed tiles once no older record is left.
+     * @throws Exception if an error occurs
+     */
+    @Test
+    public void testCompactDropsRemovedTiles() throws Exception {
+        TileSource cycleMap = new OnlineMapServices.CycleMap();
+        PackFileTileStore store = new PackFileTileStore(folder.newFolder("store"), 8192);
+        for (int x = 0; x < 20; x++) {
+            store.store(createLoadedTile(x, 64));
+        }
+        store.clear(source, null);
+        // move the removal records out of the newest segment
+        for (int x = 0; x < 30; x++) {
+            store.store(TestTiles.createLoadedTile(cycleMap, x, 64));
+        }
+        store.compact(0);
+        store.close();
+
+        PackFileTileStore expected = new PackFileTileStore(folder.newFolder("expected"), 8192);
+        for (int x = 0; x < 30; x++) {
+            expected.store(TestTiles.createLoadedTile(cycleMap, x, 64));
+        }
+        PackFileTileStore reopened = new PackFileTileStore(new File(folder.getRoot(), "store"), 8192);
+        assertEquals(expected.getTotalBytes(), reopened.getTotalBytes());
+        assertFalse(reopened.load(new Tile(source, 0, 0, 10)));
+        assertTrue(reopened.load(new Tile(cycleMap, 0, 0, 10)));
+        expected.close();
+        reopened.close();
+    }
+
+    /**
+     * Unit test of dropping the oldest segments when the total size is exceeded.
+     * @throws Exception if an error occurs
+     */
+    @Test
+    public void testTotalSizeLimit() throws Exception {
+        PackFileTileStore store = new PackFileTileStore(folder.getRoot(), 4096, 3 * 4096);
+        for (int x = 0; x < 200; x++) {
+            store.store(createLoadedTile(x, 64));
+            assertTrue(store.getTotalBytes() <= 3 * 4096);
+        }
+        assertFalse(store.load(new Tile(source, 0, 0, 10)));
+        assertTrue(store.load(new Tile(source, 199, 0, 10)));
+        assertEquals(store.getLiveBytes(), store.getTotalBytes());
+        store.close();
+        File[] files = folder.getRoot().listFiles();
+        assertTrue(files != null && files.length <= 3);
+    }
+
+    /**
+     * Unit test of reading tiles appended to the newest segment and of cutting off a record with an invalid length.
+     * @throws Exception if an error occurs
+     */
+    @Test
+    public void testInvalidDataLength() throws Exception {
+        PackFileTileStore store = new PackFileTileStore(folder.getRoot(), 1 << 20);
+        for (int x = 0; x < 2; x++) {
+            store.store(createLoadedTile(x, 64 * (x + 1)));
+            // read while the segment is growing
+            Tile tile = new Tile(source, x, 0, 10);
+            assertTrue(store.load(tile));
+            assertEquals(64 * (x + 1), tile.getImage().getWidth());
+        }
+        store.close();
+
+        File[] files = folder.getRoot().listFiles();
+        assertEquals(1, files.length);
+        try (RandomAccessFile file = new RandomAccessFile(files[0], "rw")) {
+            // skip the first record: magic, header, data length and data
+            file.seek(4);
+            file.seek(8 + file.readInt());
+            long second = file.getFilePointer() + 4 + file.readInt();
+            file.seek(second + 4);
+            file.seek(second + 8 + file.readInt());
+            file.writeInt(-2);
+        }
+        PackFileTileStore reopened = new PackFileTileStore(folder.getRoot(), 1 << 20);
+        assertTrue(reopened.load(new Tile(source, 0, 0, 10)));
+        assertFalse(reopened.load(new Tile(source, 1, 0, 10)));
+        assertEquals(reopened.getLiveBytes(), reopened.getTotalBytes());
+        reopened.close();
+    }
+}
@@ -0,0 +1,60 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileSource;
+import org.openstreetmap.gui.jmapviewer.tilesources.OnlineMapServices;
+
+/**
+ * Unit tests of {@link PartitionedTileCache} class.
+ */
+public class PartitionedTileCacheTest {
+
+    /**
+     * Unit test that tile sources do not evict each other.
+     */
+    @Test
+    public void testPartitions() {
+        TileSource street = new OnlineMapServices.Mapnik();
+        TileSource cycle = new OnlineMapServices.CycleMap();
+        PartitionedTileCache cache = new PartitionedTileCache(10, 5);
+        cache.setQuota(cycle.getId(), 20);
+        for (int x = 0; x < 10; x++) {
+            cache.addTile(new Tile(street, x, 0, 10));
+        }
+        for (int x = 0; x < 25; x++) {
+            cache.addTile(new Tile(cycle, x, 0, 10));
+        }
+        assertEquals(10, cache.getPartitionTileCount(street.getId()));
+        assertEquals(20, cache.getPartitionTileCount(cycle.getId()));
+        assertEquals(5, cache.getOverflowTileCount());
+        assertEquals(35, cache.getTileCount());
+        assertEquals(35, cache.getCacheSize());
+        for (int x = 0; x < 10; x++) {
+            assertNotNull(cache.getTile(street, x, 0, 10));
+        }
+
+        // tiles in the overflow pool move back to their partition
+        Tile overflown = cache.getTile(cycle, 0, 0, 10);
+        assertNotNull(overflown);
+        assertEquals(20, cache.getPartitionTileCount(cycle.getId()));
+        assertEquals(5, cache.getOverflowTileCount());
+        assertSame(overflown, cache.getTile(cycle, 0, 0, 10));
+
+        // the overflow pool is shared
+        for (int x = 10; x < 20; x++) {
+            cache.addTile(new Tile(street, x, 0, 10));
+        }
+        assertEquals(5, cache.getOverflowTileCount());
+        assertNull(cache.getTile(cycle, 1, 0, 10));
+        assertEquals(10, cache.getStats().getEvictionCount());
+
+        cache.clear();
+        assertEquals(0, cache.getTileCount());
+    }
+}
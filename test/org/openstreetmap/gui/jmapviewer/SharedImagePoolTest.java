@@ -0,0 +1,97 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileSource;
+import org.openstreetmap.gui.jmapviewer.tilesources.OnlineMapServices;
+
+/**
+ * Unit tests of {@link SharedImagePool} class.
+ */
+public class SharedImagePoolTest {
+
+    private static ByteBuffer encode(int rgb) throws IOException {
+        BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, rgb);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    /**
+     * Unit test of sharing images between tiles with identical encoded data.
+     * @throws IOException if an error occurs
+     */
+    @Test
+    public void testSharing() throws IOException {
+        SharedImagePool previous = Tile.getImagePool();
+        SharedImagePool pool = new SharedImagePool();
+        Tile.setImagePool(pool);
+        try {
+            TileSource source = new OnlineMapServices.Mapnik();
+            Tile ocean1 = new Tile(source, 0, 0, 5);
+            Tile ocean2 = new Tile(source, 1, 0, 5);
+            Tile land = new Tile(source, 2, 0, 5);
+            // separate byte arrays with the same content
+            ocean1.loadImage(encode(0x0000ff));
+            ocean2.loadImage(encode(0x0000ff));
+            land.loadImage(encode(0x00ff00));
+            assertSame(ocean1.getImage(), ocean2.getImage());
+            assertNotSame(ocean1.getImage(), land.getImage());
+            assertEquals(2, pool.getImageCount());
+            assertEquals(3, pool.getReferenceCount());
+
+            ocean1.releaseImage();
+            assertNull(ocean1.getImage());
+            ocean1.releaseImage();
+            assertEquals(2, pool.getImageCount());
+            assertEquals(0xff0000ff, ocean2.getImage().getRGB(0, 0));
+            ocean2.releaseImage();
+            land.releaseImage();
+            assertEquals(0, pool.getImageCount());
+            assertEquals(0, pool.getReferenceCount());
+        } finally {
+            Tile.setImagePool(previous);
+        }
+    }
+
+    private static void loadUnreleased(TileSource source, ByteBuffer data) throws IOException {
+        new Tile(source, 0, 0, 5).loadImage(data);
+    }
+
+    /**
+     * Unit test of dropping the image of a tile which is discarded without being released.
+     * @throws IOException if an error occurs
+     * @throws InterruptedException if interrupted while waiting for garbage collection
+     */
+    @Test
+    public void testUnreleasedTile() throws IOException, InterruptedException {
+        assertNull(Tile.getImagePool());
+        SharedImagePool pool = new SharedImagePool();
+        Tile.setImagePool(pool);
+        try {
+            loadUnreleased(new OnlineMapServices.Mapnik(), encode(0x0000ff));
+            assertEquals(1, pool.getImageCount());
+            for (int i = 0; i < 100 && pool.getImageCount() > 0; i++) {
+                System.gc();
+                Thread.sleep(10);
+            }
+            assertEquals(0, pool.getImageCount());
+            assertEquals(0, pool.getReferenceCount());
+        } finally {
+            Tile.setImagePool(null);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import org.openstreetmap.gui.jmapviewer.interfaces.TileSource;
+
+/**
+ * Creates tiles with encoded image data for the unit tests of caches and stores.
+ */
+final class TestTiles {
+
+    private TestTiles() {
+        // Hide default constructor for utilities classes
+    }
+
+    /**
+     * Encodes a blank image.
+     * @param size width and height of the image
+     * @return the PNG encoded image
+     * @throws IOException if the image cannot be encoded
+     */
+    static byte[] encodePng(int size) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB), "png", out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Creates a loaded tile at zoom level 10 that retains its encoded image data.
+     * @param source the tile source
+     * @param x the X position of the tile, its Y position is 0
+     * @param size width and height of the blank image of the tile
+     * @return the loaded tile
+     * @throws IOException if the image cannot be encoded
+     */
+    static Tile createLoadedTile(TileSource source, int x, int size) throws IOException {
+        Tile tile = new Tile(source, x, 0, 10);
+        tile.setRetainEncodedData(true);
+        tile.loadImage(new ByteArrayInputStream(encodePng(size)));
+        tile.finishLoading();
+        return tile;
+    }
+}
@@ -0,0 +1,75 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileSource;
+import org.openstreetmap.gui.jmapviewer.tilesources.OnlineMapServices;
+
+/**
+ * Unit tests of {@link TileCacheSnapshot} class.
+ */
+public class TileCacheSnapshotTest {
+
+    /**
+     * Temporary directory for the snapshot
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Tile createLoadedTile(TileSource source, int x) throws IOException {
+        Tile tile = TestTiles.createLoadedTile(source, x, 256);
+        tile.putValue("expires", "12345");
+        return tile;
+    }
+
+    /**
+     * Unit test of {@link TileCacheSnapshot#save} and {@link TileCacheSnapshot#restore}.
+     * @throws Exception if an error occurs
+     */
+    @Test
+    public void testSaveAndRestore() throws Exception {
+        File file = new File(folder.getRoot(), "snapshot");
+        JMapViewer map = new JMapViewer(new MemoryTileCache(), false);
+        TileSource source = map.getTileController().getTileSource();
+        map.setDisplayPosition(new Coordinate(48.5, 9.25), 10);
+        MemoryTileCache cache = (MemoryTileCache) map.getTileController().getTileCache();
+        cache.addTile(createLoadedTile(source, 1));
+        cache.addTile(createLoadedTile(source, 2));
+        // not loaded, not saved
+        cache.addTile(new Tile(source, 3, 0, 10));
+        TileCacheSnapshot.save(map, file);
+
+        JMapViewer restored = new JMapViewer(new MemoryTileCache(), false);
+        assertTrue(TileCacheSnapshot.restore(restored, file));
+        assertEquals(10, restored.getZoom());
+        assertEquals(48.5, restored.getPosition().getLat(), 0.01);
+        assertEquals(9.25, restored.getPosition().getLon(), 0.01);
+
+        MemoryTileCache restoredCache = (MemoryTileCache) restored.getTileController().getTileCache();
+        assertEquals(2, restoredCache.getTileCount());
+        for (int x = 1; x <= 2; x++) {
+            Tile tile = restoredCache.getTile(source, x, 0, 10);
+            assertNotNull(tile);
+            for (int i = 0; i < 1000 && !tile.isLoaded(); i++) {
+                Thread.sleep(10);
+            }
+            assertTrue(tile.isLoaded());
+            assertEquals(256, tile.getImage().getWidth());
+            assertEquals("12345", tile.getValue("expires"));
+        }
+
+        // snapshot of another tile source is ignored
+        restored.setTileSource(new OnlineMapServices.CycleMap());
+        assertFalse(TileCacheSnapshot.restore(restored, file));
+    }
+}
@@ -0,0 +1,177 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileJob;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileLoader;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileLoaderListener;
+import org.openstreetmap.gui.jmapviewer.tilesources.OnlineMapServices;
+
+/**
+ * Unit tests of {@link TileController} class.
+ */
+public class TileControllerTest {
+
+    /**
+     * Records the jobs started by the {@link TileController}.
+     */
+    private static class RecordingTileLoader implements TileLoader {
+        final List<Tile> loads = new ArrayList<>();
+        final List<Tile> revalidations = new ArrayList<>();
+
+        @Override
+        public TileJob createTileLoaderJob(Tile tile) {
+            return new TileJob() {
+                @Override
+                public void run() {
+                    // not used
+                }
+
+                @Override
+                public void startTileLoad() {
+                    startTileLoad(false);
+                }
+
+                @Override
+                public void startTileLoad(boolean force) {
+                    loads.add(tile);
+                }
+
+                @Override
+                public void startRevalidation() {
+                    revalidations.add(tile);
+                }
+            };
+        }
+
+        @Override
+        public void cancelOutstandingTasks() {
+            // not used
+        }
+
+        @Override
+        public int getMaxLoadRetries() {
+            return 2;
+        }
+    }
+
+    private static class RecordingMapnik extends OnlineMapServices.Mapnik {
+        final RecordingTileLoader loader = new RecordingTileLoader();
+        TileLoaderListener listener;
+
+        @Override
+        public TileLoader getTileLoader(TileLoaderListener listener) {
+            this.listener = listener;
+            return loader;
+        }
+    }
+
+    /**
+     * Unit test of revalidation of expired tiles in {@link TileController#getTile}.
+     */
+    @Test
+    public void testExpiredTileIsRevalidated() {
+        RecordingMapnik source = new RecordingMapnik();
+        TileController controller = new TileController(source, new MemoryTileCache(), (tile, success) -> { });
+
+        Tile tile = controller.getTile(1, 2, 3);
+        assertEquals(1, source.loader.loads.size());
+        tile.finishLoading();
+
+        // fresh and unknown expiry: never loaded again
+        tile.putValue("expires", Long.toString(System.currentTimeMillis() + 60_000));
+        assertSame(tile, controller.getTile(1, 2, 3));
+        tile.putValue("expires", null);
+        assertSame(tile, controller.getTile(1, 2, 3));
+        assertEquals(1, source.loader.loads.size());
+        assertTrue(source.loader.revalidations.isEmpty());
+
+        // expired: kept and revalidated once
+        tile.putValue("expires", Long.toString(System.currentTimeMillis() - 1));
+        assertSame(tile, controller.getTile(1, 2, 3));
+        assertSame(tile, controller.getTile(1, 2, 3));
+        assertTrue(tile.isLoaded());
+        assertTrue(tile.isRevalidating());
+        assertEquals(1, source.loader.revalidations.size());
+        assertEquals(1, source.loader.loads.size());
+
+        tile.finishRevalidation();
+        assertFalse(tile.isRevalidating());
+        controller.getTile(1, 2, 3);
+        assertEquals(2, source.loader.revalidations.size());
+    }
+
+    /**
+     * Unit test of the {@link MissingTileCache} of {@link TileController#getTile}.
+     * @throws InterruptedException if interrupted while waiting for the missing tile to expire
+     */
+    @Test
+    public void testMissingTileIsNotLoadedAgain() throws InterruptedException {
+        RecordingMapnik source = new RecordingMapnik();
+        TileController controller = new TileController(source, new MemoryTileCache(), (tile, success) -> { });
+
+        Tile tile = controller.getTile(1, 2, 3);
+        tile.initLoading();
+        tile.putValue("tile-info", MissingTileCache.NO_TILE);
+        tile.setError("not found");
+        tile.finishLoading();
+        source.listener.tileLoadingFinished(tile, false);
+        assertEquals(1, controller.getMissingTileCache().size());
+
+        // evicted and requested again: known to be missing without a load job
+        controller.getTileCache().clear();
+        Tile missing = controller.getTile(1, 2, 3);
+        assertNotSame(tile, missing);
+        assertTrue(missing.isLoaded());
+        assertTrue(MissingTileCache.isNoTile(missing));
+        controller.getTile(1, 2, 3);
+        assertEquals(1, source.loader.loads.size());
+
+        // looked up once again after the time to live
+        controller.getMissingTileCache().setTimeToLive(source.getId(), 1);
+        controller.getMissingTileCache().markMissing(missing);
+        Thread.sleep(10);
+        controller.getTile(1, 2, 3);
+        controller.getTile(1, 2, 3);
+        assertEquals(2, source.loader.loads.size());
+        assertSame(missing, source.loader.loads.get(1));
+        assertFalse(MissingTileCache.isNoTile(missing));
+    }
+
+    /**
+     * Unit test that missing tiles are loaded once if they are not remembered, or before they are.
+     */
+    @Test
+    public void testMissingTileWithoutTimeToLive() {
+        RecordingMapnik source = new RecordingMapnik();
+        TileController controller = new TileController(source, new MemoryTileCache(), (tile, success) -> { });
+        controller.getMissingTileCache().setTimeToLive(source.getId(), 0);
+
+        for (int x = 0; x < 2; x++) {
+            Tile tile = controller.getTile(x, 2, 3);
+            tile.initLoading();
+            tile.putValue("tile-info", MissingTileCache.NO_TILE);
+            tile.setError("not found");
+            tile.finishLoading();
+            // repainted before the listener has been notified
+            controller.getTile(x, 2, 3);
+            source.listener.tileLoadingFinished(tile, false);
+            controller.getTile(x, 2, 3);
+            controller.getTile(x, 2, 3);
+            assertTrue(MissingTileCache.isNoTile(tile));
+            // the time to live of the second tile is the default one
+            controller.getMissingTileCache().setTimeToLive(source.getId(), 60_000);
+        }
+        assertEquals(2, source.loader.loads.size());
+        assertEquals(1, controller.getMissingTileCache().size());
+    }
+}
@@ -0,0 +1,344 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileJob;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileLoaderListener;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileSource;
+import org.openstreetmap.gui.jmapviewer.tilesources.AbstractTileLoader;
+import org.openstreetmap.gui.jmapviewer.tilesources.OnlineMapServices;
+import org.openstreetmap.gui.jmapviewer.tilesources.TileJobScheduler;
+
+/**
+ * Unit tests of {@link TileJobScheduler} class.
+ */
+public class TileJobSchedulerTest {
+
+    /**
+     * Loader of a map view, recording the order its tiles are loaded in.
+     */
+    private static final class ViewerLoader extends AbstractTileLoader {
+        private final String name;
+        private final List<String> order;
+
+        ViewerLoader(String name, TileJobScheduler scheduler, List<String> order) {
+            super((tile, success) -> { }, scheduler);
+            this.name = name;
+            this.order = order;
+        }
+
+        @Override
+        public TileJob createTileLoaderJob(Tile tile) {
+            return new TileJob() {
+                @Override
+                public void run() {
+                    order.add(name + " " + tile.getZoom() + "/" + tile.getXtile() + "/" + tile.getYtile());
+                }
+
+                @Override
+                public void startTileLoad() {
+                    jobDispatcher.execute(this, tile, ViewerLoader.this);
+                }
+
+                @Override
+                public void startTileLoad(boolean force) {
+                    startTileLoad();
+                }
+            };
+        }
+
+        @Override
+        public int getMaxLoadRetries() {
+            return 0;
+        }
+    }
+
+    /**
+     * Unit test of the order of queued jobs, and of ordering them again when the viewport moves.
+     * @throws InterruptedException if interrupted while waiting for the jobs
+     */
+    @Test
+    public void testPriority() throws InterruptedException {
+        TileSource source = new OnlineMapServices.Mapnik();
+        TileJobScheduler scheduler = new TileJobScheduler(1);
+        try {
+            CountDownLatch blocked = new CountDownLatch(1);
+            scheduler.execute(() -> {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            scheduler.setViewport(5.5, 5.5, 4);
+
+            List<String> order = Collections.synchronizedList(new ArrayList<>());
+            scheduler.execute(() -> order.add("other"));
+            for (Tile tile : Arrays.asList(new Tile(source, 0, 0, 4), new Tile(source, 5, 5, 3),
+                    new Tile(source, 9, 9, 4), new Tile(source, 5, 5, 4), new Tile(source, 6, 5, 4))) {
+                scheduler.execute(() -> order.add(tile.getZoom() + "/" + tile.getXtile() + "/" + tile.getYtile()), tile);
+            }
+            // moved to the lower right, the tiles are ordered again
+            scheduler.setViewport(9.5, 9.5, 4);
+
+            blocked.countDown();
+            scheduler.shutdown();
+            assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+            assertEquals(Arrays.asList("4/9/9", "4/6/5", "4/5/5", "4/0/0", "3/5/5", "other"), order);
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Unit test of the schedulers of remote hosts, shared by the loaders of a host only.
+     */
+    @Test
+    public void testHostDispatchers() {
+        TileLoaderListener listener = (tile, success) -> { };
+        AbstractTileLoader mapnik = (AbstractTileLoader) new OnlineMapServices.Mapnik().getTileLoader(listener);
+        AbstractTileLoader mapnik2 = (AbstractTileLoader) new OnlineMapServices.Mapnik().getTileLoader(listener);
+        AbstractTileLoader cycleMap = (AbstractTileLoader) new OnlineMapServices.CycleMap().getTileLoader(listener);
+        int connections = cycleMap.getConcurrency();
+        try {
+            AbstractTileLoader.setConcurrentConnections("%s.tile.openstreetmap.org", 3);
+            assertEquals(3, mapnik.getConcurrency());
+            assertEquals(3, mapnik2.getConcurrency());
+            assertEquals(connections, cycleMap.getConcurrency());
+        } finally {
+            AbstractTileLoader.setConcurrentConnections("%s.tile.openstreetmap.org", connections);
+        }
+    }
+
+    /**
+     * Unit test of dropping jobs for tiles which already have a job in flight.
+     * @throws InterruptedException if interrupted while waiting for the jobs
+     */
+    @Test
+    public void testDeduplication() throws InterruptedException {
+        TileSource source = new OnlineMapServices.Mapnik();
+        TileJobScheduler scheduler = new TileJobScheduler(1);
+        try {
+            CountDownLatch blocked = new CountDownLatch(1);
+            CountDownLatch done = new CountDownLatch(2);
+            Tile tile = new Tile(source, 1, 1, 4);
+            Runnable job = () -> {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            };
+            scheduler.execute(job, tile);
+            scheduler.execute(job, tile);
+            scheduler.execute(job, new Tile(source, 1, 1, 4));
+            scheduler.execute(job, new Tile(source, 2, 1, 4));
+            assertTrue(scheduler.isInFlight(tile));
+            assertEquals(4, scheduler.getSubmittedCount());
+            assertEquals(2, scheduler.getDeduplicatedCount());
+            assertEquals(0.5, scheduler.getDeduplicationRatio(), 1e-9);
+
+            blocked.countDown();
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            scheduler.shutdown();
+            assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+            assertFalse(scheduler.isInFlight(tile));
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Unit test of a job replacing the queued job for the same tile, e.g. to reload it, instead of being dropped.
+     * @throws InterruptedException if interrupted while waiting for the jobs
+     */
+    @Test
+    public void testReplaceQueued() throws InterruptedException {
+        TileSource source = new OnlineMapServices.Mapnik();
+        TileJobScheduler scheduler = new TileJobScheduler(1);
+        try {
+            CountDownLatch blocked = new CountDownLatch(1);
+            Tile running = new Tile(source, 2, 2, 4);
+            scheduler.execute(() -> {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, running, this);
+            Tile tile = new Tile(source, 1, 1, 4);
+            List<String> order = Collections.synchronizedList(new ArrayList<>());
+            scheduler.execute(() -> order.add("load"), tile, this);
+            scheduler.execute(() -> order.add("reload"), tile, this, true);
+            scheduler.execute(() -> order.add("load again"), tile, this);
+            // a running job is not replaced
+            scheduler.execute(() -> order.add("reload running"), running, this, true);
+            assertEquals(2, scheduler.getDeduplicatedCount());
+
+            blocked.countDown();
+            scheduler.shutdown();
+            assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+            assertEquals(Collections.singletonList("reload"), order);
+            assertFalse(scheduler.isInFlight(tile, this));
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Unit test of {@link TileJobScheduler#cancelQueued()}, which ends the jobs in flight.
+     */
+    @Test
+    public void testCancelQueued() {
+        TileSource source = new OnlineMapServices.Mapnik();
+        TileJobScheduler scheduler = new TileJobScheduler(1);
+        CountDownLatch blocked = new CountDownLatch(1);
+        try {
+            scheduler.execute(() -> {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            Tile tile = new Tile(source, 1, 1, 4);
+            scheduler.execute(() -> { }, tile);
+            assertTrue(scheduler.isInFlight(tile));
+            scheduler.cancelQueued();
+            assertFalse(scheduler.isInFlight(tile));
+            assertTrue(scheduler.getQueue().isEmpty());
+        } finally {
+            blocked.countDown();
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Unit test of {@link TileJobScheduler#cancelOutside}: queued jobs outside the range are removed,
+     * running ones are asked to stop.
+     * @throws InterruptedException if interrupted while waiting for the jobs
+     */
+    @Test
+    public void testCancelOutside() throws InterruptedException {
+        TileSource source = new OnlineMapServices.Mapnik();
+        TileJobScheduler scheduler = new TileJobScheduler(1);
+        try {
+            CountDownLatch running = new CountDownLatch(1);
+            CountDownLatch canceled = new CountDownLatch(1);
+            CountDownLatch blocked = new CountDownLatch(1);
+            Tile far = new Tile(source, 0, 0, 5);
+            scheduler.execute(new TileJob() {
+                @Override
+                public void run() {
+                    running.countDown();
+                    try {
+                        blocked.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+
+                @Override
+                public void startTileLoad() {
+                    // not used
+                }
+
+                @Override
+                public void startTileLoad(boolean force) {
+                    // not used
+                }
+
+                @Override
+                public void cancel() {
+                    canceled.countDown();
+                }
+            }, far);
+            assertTrue(running.await(10, TimeUnit.SECONDS));
+
+            List<String> order = Collections.synchronizedList(new ArrayList<>());
+            for (Tile tile : Arrays.asList(new Tile(source, 10, 10, 5), new Tile(source, 12, 10, 5),
+                    new Tile(source, 14, 10, 5), new Tile(source, 10, 10, 4))) {
+                scheduler.execute(() -> order.add(tile.getZoom() + "/" + tile.getXtile() + "/" + tile.getYtile()), tile);
+            }
+            assertEquals(3, scheduler.cancelOutside(new TileRange(9, 9, 11, 11, 5), 1));
+            assertFalse(scheduler.isInFlight(new Tile(source, 14, 10, 5)));
+            assertEquals(3, scheduler.getCanceledCount());
+            assertEquals(0, canceled.getCount());
+            blocked.countDown();
+
+            scheduler.shutdown();
+            assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+            assertEquals(Arrays.asList("5/10/10", "5/12/10"), order);
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Unit test of two map views sharing a scheduler: each one orders and cancels its own jobs only.
+     * @throws InterruptedException if interrupted while waiting for the jobs
+     */
+    @Test
+    public void testTwoViewers() throws InterruptedException {
+        TileSource source = new OnlineMapServices.Mapnik();
+        TileJobScheduler scheduler = new TileJobScheduler(1);
+        try {
+            CountDownLatch blocked = new CountDownLatch(1);
+            scheduler.execute(() -> {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            List<String> order = Collections.synchronizedList(new ArrayList<>());
+            ViewerLoader left = new ViewerLoader("left", scheduler, order);
+            ViewerLoader right = new ViewerLoader("right", scheduler, order);
+            left.setViewport(0.5, 0.5, 4);
+            right.setViewport(9.5, 9.5, 4);
+
+            // the same tiles are loaded for both views
+            for (ViewerLoader loader : Arrays.asList(left, right)) {
+                for (Tile tile : Arrays.asList(new Tile(source, 9, 9, 4), new Tile(source, 5, 5, 4), new Tile(source, 0, 0, 4))) {
+                    loader.createTileLoaderJob(tile).startTileLoad();
+                }
+            }
+            assertEquals(0, scheduler.getDeduplicatedCount());
+            assertTrue(left.isInFlight(new Tile(source, 9, 9, 4)));
+            assertTrue(right.isInFlight(new Tile(source, 9, 9, 4)));
+
+            // the left view cancels its own jobs only, and leaves the order of the right view
+            left.cancelOutside(new TileRange(0, 0, 5, 5, 4), 0);
+            left.setViewport(5.5, 5.5, 4);
+            assertFalse(left.isInFlight(new Tile(source, 9, 9, 4)));
+            assertTrue(right.isInFlight(new Tile(source, 9, 9, 4)));
+            assertEquals(1, scheduler.getCanceledCount());
+
+            // the right view drops its queued jobs, the left view still has some
+            right.cancelOutstandingTasks();
+            assertFalse(right.hasOutstandingTasks());
+            assertTrue(left.hasOutstandingTasks());
+            right.createTileLoaderJob(new Tile(source, 9, 9, 4)).startTileLoad();
+
+            blocked.countDown();
+            scheduler.shutdown();
+            assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+            assertEquals(Arrays.asList("left 4/5/5", "right 4/9/9", "left 4/0/0"), order);
+            assertFalse(left.hasOutstandingTasks());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileSource;
+import org.openstreetmap.gui.jmapviewer.tilesources.OnlineMapServices;
+
+/**
+ * Unit tests of {@link TinyLfuTileCache} class.
+ */
+public class TinyLfuTileCacheTest {
+
+    /**
+     * Unit test that a scan of tiles seen once does not flush frequently used tiles.
+     */
+    @Test
+    public void testScanResistance() {
+        TileSource source = new OnlineMapServices.Mapnik();
+        TinyLfuTileCache cache = new TinyLfuTileCache(200);
+        for (int round = 0; round < 3; round++) {
+            for (int x = 0; x < 150; x++) {
+                if (cache.getTile(source, x, 0, 10) == null) {
+                    cache.addTile(new Tile(source, x, 0, 10));
+                }
+            }
+        }
+        assertEquals(150, cache.getTileCount());
+
+        // long pan at high zoom
+        for (int x = 0; x < 1500; x++) {
+            cache.addTile(new Tile(source, x, 0, 18));
+        }
+        assertEquals(200, cache.getTileCount());
+        for (int x = 0; x < 150; x++) {
+            assertNotNull(cache.getTile(source, x, 0, 10));
+        }
+        // the most recent tile of the scan is still in the window
+        assertNotNull(cache.getTile(source, 1499, 0, 18));
+        assertNull(cache.getTile(source, 1000, 0, 18));
+
+        cache.setCacheSize(100);
+        assertEquals(100, cache.getTileCount());
+        cache.clear();
+        assertEquals(0, cache.getTileCount());
+    }
+
+    /**
+     * Paints a frame of tiles, adding the missing ones.
+     */
+    private static void paint(TinyLfuTileCache cache, TileSource source, int zoom, int fromX, int toX) {
+        cache.setVisibleTileCount(toX - fromX);
+        for (int x = fromX; x < toX; x++) {
+            if (cache.getTile(source, x, 0, zoom) == null) {
+                cache.addTile(new Tile(source, x, 0, zoom));
+            }
+        }
+    }
+
+    /**
+     * Unit test that repainting tiles seen only once does not let them evict frequently revisited tiles.
+     */
+    @Test
+    public void testRepaintedScan() {
+        TileSource source = new OnlineMapServices.Mapnik();
+        TinyLfuTileCache cache = new TinyLfuTileCache(200);
+        for (int visit = 0; visit < 3; visit++) {
+            paint(cache, source, 10, 0, 150);
+            // panned away and back again
+            paint(cache, source, 10, 0, 0);
+        }
+
+        // slow pan at high zoom, repainted while the tiles of each view load
+        for (int x = 0; x < 600; x += 2) {
+            for (int repaint = 0; repaint < 10; repaint++) {
+                paint(cache, source, 18, x, x + 2);
+            }
+        }
+        assertEquals(200, cache.getTileCount());
+        for (int x = 0; x < 150; x++) {
+            assertNotNull(cache.getTile(source, x, 0, 10));
+        }
+        assertNotNull(cache.getTile(source, 599, 0, 18));
+    }
+
+    /**
+     * Unit test of {@link FrequencySketch}.
+     */
+    @Test
+    public void testFrequencySketch() {
+        FrequencySketch sketch = new FrequencySketch(64);
+        long key = Tile.getPackedKey("test", 1, 2, 3);
+        assertEquals(0, sketch.frequency(key));
+        for (int i = 0; i < 20; i++) {
+            sketch.increment(key);
+        }
+        assertEquals(15, sketch.frequency(key));
+        // aging halves the counters
+        for (int i = 0; i < 640; i++) {
+            sketch.increment(Tile.getPackedKey("test", i, 0, 10));
+        }
+        assertEquals(7, sketch.frequency(key));
+    }
+}
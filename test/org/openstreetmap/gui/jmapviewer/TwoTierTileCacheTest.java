@@ -0,0 +1,123 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileSource;
+import org.openstreetmap.gui.jmapviewer.tilesources.OnlineMapServices;
+
+/**
+ * Unit tests of {@link TwoTierTileCache} class.
+ */
+public class TwoTierTileCacheTest {
+
+    private final TileSource source = new OnlineMapServices.Mapnik();
+
+    private Tile createLoadedTile(int x) throws IOException {
+        return TestTiles.createLoadedTile(source, x, 256);
+    }
+
+    /**
+     * Unit test of demotion to and promotion from the warm tier.
+     * @throws Exception if an error occurs
+     */
+    @Test
+    public void testPromotion() throws Exception {
+        TwoTierTileCache cache = new TwoTierTileCache(1, 1024 * 1024);
+        CountDownLatch decoded = new CountDownLatch(1);
+        cache.setTileLoaderListener((tile, success) -> {
+            tile.setLoaded(success);
+            decoded.countDown();
+        });
+        cache.addTile(createLoadedTile(0));
+        cache.addTile(createLoadedTile(1));
+        assertEquals(1, cache.getTileCount());
+        assertEquals(1, cache.getWarmTileCount());
+        assertTrue(cache.getWarmBytes() > 0);
+
+        Tile promoted = cache.getTile(source, 0, 0, 10);
+        assertNotNull(promoted);
+        assertTrue(decoded.await(10, TimeUnit.SECONDS));
+        assertTrue(promoted.isLoaded());
+        assertEquals(256, promoted.getImage().getWidth());
+        // the tile at x=1 has been demoted in turn
+        assertEquals(1, cache.getWarmTileCount());
+        assertNull(cache.getTile(source, 2, 0, 10));
+    }
+
+    /**
+     * Unit test that tiles only retain their encoded image data if a consumer needs it.
+     * @throws Exception if an error occurs
+     */
+    @Test
+    public void testRetainEncodedData() throws Exception {
+        Tile tile = new Tile(source, 0, 0, 10);
+        tile.loadImage(new ByteArrayInputStream(TestTiles.encodePng(256)));
+        assertNotNull(tile.getImage());
+        assertNull(tile.getEncodedData());
+
+        // added before it is loaded, as by the TileController
+        Tile cached = new Tile(source, 1, 0, 10);
+        new TwoTierTileCache(1, 1024 * 1024).addTile(cached);
+        cached.loadImage(new ByteArrayInputStream(TestTiles.encodePng(256)));
+        assertEquals(TestTiles.encodePng(256).length, cached.getEncodedData().remaining());
+    }
+
+    /**
+     * Unit test of a tile evicted while it is decoded after its promotion.
+     * @throws Exception if an error occurs
+     */
+    @Test
+    public void testEvictedWhileDecoding() throws Exception {
+        TwoTierTileCache cache = new TwoTierTileCache(1, 1024 * 1024);
+        cache.addTile(createLoadedTile(0));
+        cache.addTile(createLoadedTile(1));
+        Tile evicting = createLoadedTile(2);
+
+        CountDownLatch decoding = new CountDownLatch(1);
+        CountDownLatch evicted = new CountDownLatch(1);
+        SharedImagePool pool = new SharedImagePool() {
+            @Override
+            public BufferedImage acquire(ByteBuffer data) {
+                if (Thread.currentThread().getName().startsWith("TwoTierTileCache decoder")) {
+                    decoding.countDown();
+                    try {
+                        evicted.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.acquire(data);
+            }
+        };
+        Tile.setImagePool(pool);
+        try {
+            Tile promoted = cache.getTile(source, 0, 0, 10);
+            assertTrue(decoding.await(10, TimeUnit.SECONDS));
+            cache.addTile(evicting);
+            evicted.countDown();
+            for (int i = 0; i < 1000 && cache.getWarmTileCount() < 2; i++) {
+                Thread.sleep(10);
+            }
+            // the data of the evicted tile is back in the warm tier and its image is not held
+            assertEquals(2, cache.getWarmTileCount());
+            assertFalse(promoted.isLoaded());
+            assertEquals(0, pool.getReferenceCount());
+            assertNotNull(cache.getTile(source, 0, 0, 10));
+        } finally {
+            Tile.setImagePool(null);
+        }
+    }
+}